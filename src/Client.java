@@ -1,4 +1,343 @@
-package PACKAGE_NAME;
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
 
-public class Client {
+// Клиент сервера телефонной книги. Каждый вызов отправляет запрос сразу и возвращает future;
+// ответы приходят в порядке запросов, поэтому их можно слать конвейером, не дожидаясь предыдущих.
+// Один запрос lookupPhones разрешает до PhoneBookProtocol.MAX_BATCH номеров за один обмен.
+public class Client implements Closeable {
+    private static final int LOCAL_CONTACTS = 1000000;
+
+    private interface ResponseReader<T> {
+        T read(DataInputStream in) throws IOException;
+    }
+
+    private static final class Pending<T> {
+        final int requestId;
+        final ResponseReader<T> reader;
+        final CompletableFuture<T> future = new CompletableFuture<>();
+
+        Pending(int requestId, ResponseReader<T> reader) {
+            this.requestId = requestId;
+            this.reader = reader;
+        }
+
+        void complete(DataInputStream in) throws IOException {
+            future.complete(reader.read(in));
+        }
+    }
+
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private final Queue<Pending<?>> pending = new ConcurrentLinkedQueue<>();
+    private final Thread responseThread;
+    private int nextRequestId;                  // под блокировкой out
+    private volatile IOException failure;
+
+    public Client(String host, int port) throws IOException {
+        socket = new Socket();
+        socket.setTcpNoDelay(true);
+        socket.connect(new InetSocketAddress(host, port));
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), PhoneBookProtocol.BUFFER_SIZE));
+        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), PhoneBookProtocol.BUFFER_SIZE));
+        responseThread = new Thread(this::readResponses, "phonebook-client-" + socket.getLocalPort());
+        responseThread.setDaemon(true);
+        responseThread.start();
+    }
+
+    // Номера в любой записи; неверный номер просто не находится. results[i] - владелец phones[i] или null
+    public CompletableFuture<Contact[]> lookupPhones(String... phones) {
+        long[] keys = new long[phones.length];
+        for (int i = 0; i < phones.length; i++) {
+            keys[i] = PhoneNumbers.normalize(phones[i]);
+        }
+        return lookupPhones(keys, keys.length);
+    }
+
+    // Первые count упакованных номеров; массив можно менять сразу после возврата
+    public CompletableFuture<Contact[]> lookupPhones(long[] keys, int count) {
+        if (count > PhoneBookProtocol.MAX_BATCH) {
+            throw new IllegalArgumentException("больше " + PhoneBookProtocol.MAX_BATCH + " номеров в пакете");
+        }
+        return send(PhoneBookProtocol.LOOKUP_PHONES, request -> {
+            request.writeInt(count);
+            for (int i = 0; i < count; i++) {
+                request.writeLong(keys[i]);
+            }
+        }, response -> {
+            Contact[] contacts = new Contact[response.readInt()];
+            for (int i = 0; i < contacts.length; i++) {
+                contacts[i] = PhoneBookProtocol.readOptional(response);
+            }
+            return contacts;
+        });
+    }
+
+    public CompletableFuture<Contact> findByPhone(String phone) {
+        return lookupPhones(phone).thenApply(contacts -> contacts[0]);
+    }
+
+    public CompletableFuture<Contact> findByName(String name) {
+        return send(PhoneBookProtocol.FIND_NAME, request -> request.writeUTF(name), PhoneBookProtocol::readOptional);
+    }
+
+    public CompletableFuture<List<Contact>> findByPrefix(String prefix, int limit) {
+        return send(PhoneBookProtocol.FIND_PREFIX, request -> {
+            request.writeUTF(prefix);
+            request.writeInt(limit);
+        }, PhoneBookProtocol::readList);
+    }
+
+    public CompletableFuture<List<Contact>> findFuzzy(String query, int limit) {
+        return send(PhoneBookProtocol.FIND_FUZZY, request -> {
+            request.writeUTF(query);
+            request.writeInt(limit);
+        }, PhoneBookProtocol::readList);
+    }
+
+    public CompletableFuture<Void> add(String name, String phone) {
+        long key = PhoneNumbers.normalize(phone);
+        if (key < 0) {
+            return CompletableFuture.failedFuture(
+                    new IllegalArgumentException("неверный номер " + phone + ": " + PhoneNumbers.describe(key)));
+        }
+        return send(PhoneBookProtocol.ADD, request -> {
+            request.writeUTF(name);
+            request.writeLong(key);
+        }, response -> null);
+    }
+
+    public CompletableFuture<Boolean> remove(String name) {
+        return send(PhoneBookProtocol.REMOVE, request -> request.writeUTF(name), DataInputStream::readBoolean);
+    }
+
+    private interface RequestWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    // Запрос встает в очередь ожидания до записи в сокет: иначе ответ мог бы прийти раньше
+    private <T> CompletableFuture<T> send(byte operation, RequestWriter body, ResponseReader<T> reader) {
+        synchronized (out) {
+            if (failure != null) {
+                return CompletableFuture.failedFuture(failure);
+            }
+            Pending<T> request = new Pending<>(nextRequestId++, reader);
+            pending.add(request);
+            try {
+                out.writeInt(request.requestId);
+                out.writeByte(operation);
+                body.write(out);
+                out.flush();
+            } catch (IOException e) {
+                fail(e);
+            }
+            // поток ответов мог упасть, пока запрос вставал в очередь
+            if (failure != null) {
+                fail(failure);
+            }
+            return request.future;
+        }
+    }
+
+    private void readResponses() {
+        try {
+            while (true) {
+                int requestId = in.readInt();
+                byte status = in.readByte();
+                Pending<?> request = pending.poll();
+                if (request == null || request.requestId != requestId) {
+                    throw new IOException("ответ на неожиданный запрос " + requestId);
+                }
+                if (status == PhoneBookProtocol.OK) {
+                    request.complete(in);
+                } else {
+                    request.future.completeExceptionally(new IOException("ошибка сервера: " + in.readUTF()));
+                }
+            }
+        } catch (IOException e) {
+            fail(socket.isClosed() ? new IOException("соединение закрыто") : e);
+        }
+    }
+
+    private void fail(IOException e) {
+        if (failure == null) {
+            failure = e;
+        }
+        Pending<?> request;
+        while ((request = pending.poll()) != null) {
+            request.future.completeExceptionally(failure);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+        try {
+            responseThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Нагрузочный тест: каждое соединение держит depth пакетных запросов в полете.
+    // Аргументы: [хост:порт | - [соединений [секунд [номеров в пакете [глубина конвейера]]]]]
+    // "-" поднимает сервер с контактами в этом же процессе и ходит к нему через loopback.
+    public static void main(String[] args) throws Exception {
+        String target = args.length > 0 ? args[0] : "-";
+        int connections = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        int batch = args.length > 3 ? Integer.parseInt(args[3]) : 1000;
+        int depth = args.length > 4 ? Integer.parseInt(args[4]) : 8;
+
+        PhoneBookStore store = null;
+        PhoneBookServer server = null;
+        String host;
+        int port;
+        if (target.equals("-")) {
+            store = new PhoneBookStore();
+            for (int i = 0; i < LOCAL_CONTACTS; i++) {
+                store.add("Контакт " + i, Long.toString(loadPhone(i)));
+            }
+            server = new PhoneBookServer(store, new InetSocketAddress("127.0.0.1", 0));
+            host = "127.0.0.1";
+            port = server.getPort();
+            System.out.println("Локальный сервер на порту " + port + ", контактов: " + store.size());
+        } else {
+            int colon = target.lastIndexOf(':');
+            host = target.substring(0, colon);
+            port = Integer.parseInt(target.substring(colon + 1));
+        }
+
+        System.out.println("Соединений: " + connections + ", пакет: " + batch + ", глубина конвейера: " + depth);
+        long[] keys = loadKeys();
+        LoadWorker[] workers = new LoadWorker[connections];
+        for (int i = 0; i < connections; i++) {
+            workers[i] = new LoadWorker(new Client(host, port), keys, batch, depth);
+        }
+        long warmupEnd = System.nanoTime() + 1000000000L;
+        long end = warmupEnd + seconds * 1000000000L;
+        for (LoadWorker worker : workers) {
+            worker.start(warmupEnd, end);
+        }
+        long requests = 0, found = 0, errors = 0;
+        long[] latencies = new long[0];
+        for (LoadWorker worker : workers) {
+            worker.join();
+            requests += worker.requests;
+            found += worker.found;
+            errors += worker.errors;
+            int offset = latencies.length;
+            latencies = Arrays.copyOf(latencies, offset + worker.latencyCount);
+            System.arraycopy(worker.latencies, 0, latencies, offset, worker.latencyCount);
+            worker.client.close();
+        }
+        Arrays.sort(latencies);
+
+        System.out.printf("Запросов/с: %d, номеров/с: %d, найдено: %.1f%%%n",
+                requests / seconds, requests * batch / seconds, 100.0 * found / Math.max(1, requests * batch));
+        if (latencies.length > 0) {
+            System.out.printf("Задержка запроса, мс: p50 %.2f, p99 %.2f, p99.9 %.2f, max %.2f%n",
+                    percentile(latencies, 0.50), percentile(latencies, 0.99),
+                    percentile(latencies, 0.999), latencies[latencies.length - 1] / 1e6);
+        }
+        if (errors > 0) {
+            System.out.println("Ошибок: " + errors);
+        }
+
+        if (server != null) {
+            server.close();
+            store.close();
+        }
+    }
+
+    // Номера как в CollectionsPerformanceTest
+    private static long loadPhone(int i) {
+        return 79000000000L + i * 7L;
+    }
+
+    // Упакованные номера запросов: половина есть в локальной книге, половина - мимо
+    private static long[] loadKeys() {
+        long[] keys = new long[2 * LOCAL_CONTACTS];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = PhoneNumbers.pack(Long.toString(loadPhone(i)));
+        }
+        return keys;
+    }
+
+    private static double percentile(long[] sorted, double quantile) {
+        return sorted[(int) Math.min(sorted.length - 1, sorted.length * quantile)] / 1e6;
+    }
+
+    private static final class LoadWorker {
+        private static final int MAX_SAMPLES = 1 << 20;
+
+        final Client client;
+        private final long[] keyPool;
+        private final int batch;
+        private final Semaphore inFlight;
+        private final int depth;
+        private Thread thread;
+        // Пишутся в потоке ответов клиента, читаются после join: видимость дает семафор
+        long requests;
+        long found;
+        long errors;
+        final long[] latencies = new long[MAX_SAMPLES];
+        int latencyCount;
+
+        LoadWorker(Client client, long[] keyPool, int batch, int depth) {
+            this.client = client;
+            this.keyPool = keyPool;
+            this.batch = batch;
+            this.depth = depth;
+            this.inFlight = new Semaphore(depth);
+        }
+
+        void start(long warmupEnd, long end) {
+            thread = new Thread(() -> run(warmupEnd, end));
+            thread.start();
+        }
+
+        void join() throws InterruptedException {
+            thread.join();
+        }
+
+        private void run(long warmupEnd, long end) {
+            long[] keys = new long[batch];
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            try {
+                long now;
+                while ((now = System.nanoTime()) < end && client.failure == null) {
+                    inFlight.acquire();
+                    for (int i = 0; i < batch; i++) {
+                        keys[i] = keyPool[random.nextInt(keyPool.length)];
+                    }
+                    long sent = System.nanoTime();
+                    boolean measured = now >= warmupEnd;
+                    client.lookupPhones(keys, batch).whenComplete((contacts, error) -> {
+                        if (error != null) {
+                            errors++;
+                        } else if (measured) {
+                            requests++;
+                            for (Contact contact : contacts) {
+                                if (contact != null) found++;
+                            }
+                            if (latencyCount < MAX_SAMPLES) {
+                                latencies[latencyCount++] = System.nanoTime() - sent;
+                            }
+                        }
+                        inFlight.release();
+                    });
+                }
+                inFlight.acquire(depth);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
 }
@@ -1,4 +1,14 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongConsumer;
+import java.util.random.RandomGenerator;
 
 enum Suit {
     HEARTS("♥"), DIAMONDS("♦"), CLUBS("♣"), SPADES("♠");
@@ -32,15 +42,46 @@ enum Rank {
     public int getValue() { return value; }
 }
 
+// Карта кодируется байтом: номер ранга * 4 + номер масти. Объекты Card - 52 общие константы,
+// так что раздача из Shoe ничего не создает
 class Card {
+    private static final Suit[] SUITS = Suit.values();
+    private static final Rank[] RANKS = Rank.values();
+    private static final Card[] CARDS = new Card[RANKS.length * SUITS.length];
+    
+    static {
+        for (Rank rank : RANKS) {
+            for (Suit suit : SUITS) {
+                CARDS[encode(suit, rank)] = new Card(suit, rank);
+            }
+        }
+    }
+    
     private final Suit suit;
     private final Rank rank;
     
-    public Card(Suit suit, Rank rank) {
+    private Card(Suit suit, Rank rank) {
         this.suit = suit;
         this.rank = rank;
     }
     
+    public static Card of(Suit suit, Rank rank) {
+        return CARDS[encode(suit, rank)];
+    }
+    
+    public static Card of(int code) {
+        return CARDS[code];
+    }
+    
+    public static int encode(Suit suit, Rank rank) {
+        return rank.ordinal() << 2 | suit.ordinal();
+    }
+    
+    public static Rank rankOf(int code) {
+        return RANKS[code >> 2];
+    }
+    
+    public int getCode() { return encode(suit, rank); }
     public Suit getSuit() { return suit; }
     public Rank getRank() { return rank; }
     public int getValue() { return rank.getValue(); }
@@ -51,107 +92,231 @@ class Card {
     }
 }
 
-class Deck {
-    private Deque<Card> cards;
+// Шуз из нескольких колод: по байту на карту, перемешивание Фишера-Йетса на месте.
+// Когда раздача доходит до отрезной карты, шуз пора перемешать после раунда (endRound); если карты
+// кончились посреди раунда, перемешивается только сброс прошлых раундов - карты на столе остаются
+// на столе и второй раз не выпадут
+class Shoe {
+    public static final int DECK_SIZE = 52;
     
-    public Deck() {
-        cards = new ArrayDeque<>();
-        initializeDeck();
+    private final byte[] cards;
+    private final int cutCard;
+    private final RandomGenerator random;
+    private int position;
+    private int roundStart;     // карты [roundStart, position) - на столе в текущем раунде
+    
+    // cutCard - сколько карт раздается до перемешивания
+    public Shoe(int decks, int cutCard, RandomGenerator random) {
+        if (decks < 1 || decks > 64) {
+            throw new IllegalArgumentException("колод в шузе должно быть от 1 до 64");
+        }
+        if (cutCard < 1 || cutCard > decks * DECK_SIZE) {
+            throw new IllegalArgumentException("отрезная карта вне шуза: " + cutCard);
+        }
+        cards = new byte[decks * DECK_SIZE];
+        for (int i = 0; i < cards.length; i++) {
+            cards[i] = (byte) (i % DECK_SIZE);
+        }
+        this.cutCard = cutCard;
+        this.random = random;
+        shuffle();
     }
     
-    private void initializeDeck() {
-        for (Suit suit : Suit.values()) {
-            for (Rank rank : Rank.values()) {
-                cards.add(new Card(suit, rank));
-            }
+    // penetration - доля шуза, раздаваемая до перемешивания
+    public static Shoe withPenetration(int decks, double penetration, RandomGenerator random) {
+        return new Shoe(decks, cutCard(decks, penetration), random);
+    }
+    
+    // Отрезная карта для доли шуза penetration
+    public static int cutCard(int decks, double penetration) {
+        if (!(penetration > 0 && penetration <= 1)) {
+            throw new IllegalArgumentException("проникновение должно быть больше 0 и не больше 1");
         }
+        return Math.max(1, (int) Math.round(decks * DECK_SIZE * penetration));
     }
     
     public void shuffle() {
-        List<Card> cardList = new ArrayList<>(cards);
-        Collections.shuffle(cardList);
-        cards = new ArrayDeque<>(cardList);
+        shuffle(0, cards.length);
+        position = 0;
+        roundStart = 0;
+    }
+    
+    // Конец раунда: за отрезной картой шуз перемешивается (true), иначе карты раунда уходят в сброс
+    public boolean endRound() {
+        if (pastCutCard()) {
+            shuffle();
+            return true;
+        }
+        roundStart = position;
+        return false;
+    }
+    
+    // Код карты для Card.of
+    public int draw() {
+        if (position == cards.length) {
+            reshuffleDiscards();
+        }
+        return cards[position++];
+    }
+    
+    // Карты раунда переносятся в начало шуза, сброс за ними перемешивается и раздается дальше
+    private void reshuffleDiscards() {
+        int inPlay = position - roundStart;
+        if (inPlay == cards.length) {
+            throw new IllegalStateException("раунд занял весь шуз: перемешивать нечего");
+        }
+        byte[] table = Arrays.copyOfRange(cards, roundStart, position);
+        System.arraycopy(cards, 0, cards, inPlay, roundStart);
+        System.arraycopy(table, 0, cards, 0, inPlay);
+        shuffle(inPlay, cards.length);
+        roundStart = 0;
+        position = inPlay;
+    }
+    
+    private void shuffle(int from, int to) {
+        for (int i = to - 1; i > from; i--) {
+            int j = from + random.nextInt(i - from + 1);
+            byte card = cards[i];
+            cards[i] = cards[j];
+            cards[j] = card;
+        }
     }
     
     public Card drawCard() {
-        return cards.poll();
+        return Card.of(draw());
     }
     
-    public boolean isEmpty() {
-        return cards.isEmpty();
+    public int getCutCard() {
+        return cutCard;
+    }
+    
+    public boolean pastCutCard() {
+        return position >= cutCard;
+    }
+    
+    public int remaining() {
+        return cards.length - position;
+    }
+    
+    // Состав по классам StrategySolver: неразданные карты вместе с картами текущего раунда -
+    // то, из чего в этом раунде сданы и еще будут сдаваться карты
+    public int[] remainingByClass() {
+        int[] counts = new int[StrategySolver.CLASSES];
+        for (int i = roundStart; i < cards.length; i++) {
+            counts[StrategySolver.classOf(Card.rankOf(cards[i]))]++;
+        }
+        return counts;
     }
     
     public int size() {
-        return cards.size();
+        return cards.length;
     }
 }
 
+// Состояние руки одним числом: сумма с тузами за 1, есть ли туз, число карт (0, 1, 2, 3 и больше).
+// Добавление карты - одно чтение из таблицы переходов, очки и признаки руки - тоже чтения
+// из таблиц, без обхода карт. Сумма больше 31 в игре не встречается и не различается
+final class HandState {
+    public static final int EMPTY = 0;
+    public static final int STATES = 256;
+    private static final int MAX_HARD = 31;
+    private static final Rank[] RANKS = Rank.values();
+    
+    private static final short[] NEXT = new short[STATES << 4];    // состояние * 16 + ранг
+    private static final byte[] SCORE = new byte[STATES];
+    private static final boolean[] SOFT = new boolean[STATES];
+    private static final boolean[] BUSTED = new boolean[STATES];
+    private static final boolean[] BLACKJACK = new boolean[STATES];
+    
+    static {
+        for (int state = 0; state < STATES; state++) {
+            int hard = hard(state);
+            boolean ace = (state & 4) != 0;
+            int cards = state & 3;
+            SOFT[state] = ace && hard + 10 <= 21;
+            SCORE[state] = (byte) (SOFT[state] ? hard + 10 : hard);
+            BUSTED[state] = hard > 21;
+            BLACKJACK[state] = cards == 2 && SCORE[state] == 21;
+            for (Rank rank : RANKS) {
+                int value = rank == Rank.ACE ? 1 : rank.getValue();
+                NEXT[state << 4 | rank.ordinal()] = (short) encode(Math.min(hard + value, MAX_HARD),
+                        ace || rank == Rank.ACE, Math.min(cards + 1, 3));
+            }
+        }
+    }
+    
+    private HandState() {}
+    
+    private static int encode(int hard, boolean ace, int cards) {
+        return hard << 3 | (ace ? 4 : 0) | cards;
+    }
+    
+    private static int hard(int state) {
+        return state >>> 3;
+    }
+    
+    public static int next(int state, Rank rank) {
+        return NEXT[state << 4 | rank.ordinal()];
+    }
+    
+    // По коду карты из Shoe
+    public static int next(int state, int code) {
+        return NEXT[state << 4 | code >> 2];
+    }
+    
+    // Лучшая сумма: туз за 11, если так нет перебора
+    public static int score(int state) { return SCORE[state]; }
+    public static boolean isSoft(int state) { return SOFT[state]; }
+    public static boolean isBusted(int state) { return BUSTED[state]; }
+    public static boolean isBlackjack(int state) { return BLACKJACK[state]; }
+    public static int cardCount(int state) { return state & 3; }     // 3 - три и больше
+}
+
 class Player {
     private String name;
     private List<Card> hand;
-    private int score;
+    private int handState;      // HandState
     private int totalWins;
     
     public Player(String name) {
         this.name = name;
         this.hand = new ArrayList<>();
-        this.score = 0;
+        this.handState = HandState.EMPTY;
         this.totalWins = 0;
     }
     
     public String getName() { return name; }
     public List<Card> getHand() { return hand; }
-    public int getScore() { return score; }
+    public int getHandState() { return handState; }
+    public int getScore() { return HandState.score(handState); }
+    public boolean isSoft() { return HandState.isSoft(handState); }
     public int getTotalWins() { return totalWins; }
     
     public void addCard(Card card) {
         hand.add(card);
-        calculateScore();
+        handState = HandState.next(handState, card.getRank());
     }
     
     public void clearHand() {
         hand.clear();
-        score = 0;
+        handState = HandState.EMPTY;
     }
     
     public void addWin() {
         totalWins++;
     }
     
-    private void calculateScore() {
-        score = 0;
-        int aceCount = 0;
-        
-        // Считаем все карты, кроме тузов
-        for (Card card : hand) {
-            if (card.getRank() == Rank.ACE) {
-                aceCount++;
-            } else {
-                score += card.getValue();
-            }
-        }
-        
-        // Добавляем тузы
-        for (int i = 0; i < aceCount; i++) {
-            if (score + 11 <= 21) {
-                score += 11;
-            } else {
-                score += 1;
-            }
-        }
-    }
-    
     public boolean isBusted() {
-        return score > 21;
+        return HandState.isBusted(handState);
     }
     
     public boolean hasBlackjack() {
-        return score == 21 && hand.size() == 2;
+        return HandState.isBlackjack(handState);
     }
     
     @Override
     public String toString() {
-        return name + " (Очки: " + score + ", Побед: " + totalWins + ")";
+        return name + " (Очки: " + getScore() + ", Побед: " + totalWins + ")";
     }
     
     public String showHand(boolean showAll) {
@@ -161,7 +326,7 @@ class Player {
             for (Card card : hand) {
                 sb.append(card).append(" ");
             }
-            sb.append("[").append(score).append(" очков]");
+            sb.append("[").append(getScore()).append(" очков]");
         } else {
             // Для дилера - первая карта скрыта
             sb.append("[Скрыто] ");
@@ -173,15 +338,1204 @@ class Player {
     }
 }
 
+// Правила стола, общие для интерактивной игры и симуляции
+class BlackjackRules {
+    public static final int DEALER_STANDS_ON = 17;
+    public static final int RESHUFFLE_BELOW = 20;    // карт в колоде после раунда
+    public static final int DECKS = 1;
+    
+    // Исход руки игрока: очки таблицы лидеров и выплата в ставках (блэкджек платит 3 к 2)
+    enum Outcome {
+        BUST(0, -1, "ПРОИГРАЛ (перебор)"),
+        LOSS(0, -1, "ПРОИГРАЛ"),
+        PUSH(1, 0, "НИЧЬЯ!"),
+        WIN(2, 1, "ВЫИГРАЛ!"),
+        DEALER_BUST(2, 1, "ВЫИГРАЛ (дилер перебрал)!"),
+        BLACKJACK(3, 1.5, "ВЫИГРАЛ (блэкджек)!");
+        
+        private final int points;
+        private final double payout;
+        private final int halfUnits;
+        private final String message;
+        
+        Outcome(int points, double payout, String message) {
+            this.points = points;
+            this.payout = payout;
+            this.halfUnits = (int) Math.round(payout * 2);
+            this.message = message;
+        }
+        
+        public int getPoints() { return points; }
+        public double getPayout() { return payout; }
+        public int getHalfUnits() { return halfUnits; }
+        public String getMessage() { return message; }
+        public boolean isWin() { return points >= 2; }
+    }
+    
+    private BlackjackRules() {}
+    
+    public static boolean dealerHits(Player dealer) {
+        return dealerHits(dealer.getHandState());
+    }
+    
+    public static boolean dealerHits(int dealerHand) {
+        return HandState.score(dealerHand) < DEALER_STANDS_ON;
+    }
+    
+    // Отрезная карта, при которой после раунда остается меньше RESHUFFLE_BELOW карт
+    public static int cutCard(int decks) {
+        return decks * Shoe.DECK_SIZE - RESHUFFLE_BELOW + 1;
+    }
+    
+    // Руки уже доиграны: игрок и дилер больше не берут карт
+    public static Outcome settle(Player player, Player dealer) {
+        return settle(player.getHandState(), dealer.getHandState());
+    }
+    
+    // По состояниям HandState
+    public static Outcome settle(int player, int dealer) {
+        if (HandState.isBusted(player)) {
+            return Outcome.BUST;
+        } else if (HandState.isBlackjack(player) && !HandState.isBlackjack(dealer)) {
+            return Outcome.BLACKJACK;
+        } else if (HandState.isBusted(dealer)) {
+            return Outcome.DEALER_BUST;
+        } else if (HandState.score(player) > HandState.score(dealer)) {
+            return Outcome.WIN;
+        } else if (HandState.score(player) == HandState.score(dealer)) {
+            return Outcome.PUSH;
+        } else {
+            return Outcome.LOSS;
+        }
+    }
+}
+
+// Решение игрока: брать ли еще карту при руке hand (состояние HandState).
+// Одна стратегия используется всеми потоками симуляции
+interface PlayerStrategy {
+    boolean hit(int hand, Rank dealerUpCard);
+}
+
+enum StandardStrategy implements PlayerStrategy {
+    // Берет, пока перебор невозможен
+    CAUTIOUS {
+        @Override
+        public boolean hit(int hand, Rank dealerUpCard) {
+            return HandState.score(hand) <= 11;
+        }
+    },
+    // Как дилер: до 17
+    DEALER {
+        @Override
+        public boolean hit(int hand, Rank dealerUpCard) {
+            return HandState.score(hand) < BlackjackRules.DEALER_STANDS_ON;
+        }
+    },
+    // Базовая стратегия для игры без удвоения и сплита
+    BASIC {
+        @Override
+        public boolean hit(int hand, Rank dealerUpCard) {
+            int score = HandState.score(hand);
+            int up = dealerUpCard.getValue();
+            if (HandState.isSoft(hand)) {
+                return score <= 17 || (score == 18 && up >= 9);
+            }
+            if (score <= 11) {
+                return true;
+            } else if (score == 12) {
+                return up < 4 || up > 6;
+            } else if (score <= 16) {
+                return up > 6;
+            }
+            return false;
+        }
+    }
+}
+
+// Решения и матожидания на ставку по состоянию руки и открытой карте дилера;
+// каждый запрос - чтение из массива
+final class StrategyTable implements PlayerStrategy {
+    private final boolean[] hit;
+    private final double[] evHit;
+    private final double[] evStand;
+    private final double expectedValue;
+    
+    StrategyTable(boolean[] hit, double[] evHit, double[] evStand, double expectedValue) {
+        this.hit = hit;
+        this.evHit = evHit;
+        this.evStand = evStand;
+        this.expectedValue = expectedValue;
+    }
+    
+    @Override
+    public boolean hit(int hand, Rank dealerUpCard) {
+        return hit[index(hand, dealerUpCard)];
+    }
+    
+    // NaN для рук, которых при этой открытой карте не бывает
+    public double evHit(int hand, Rank dealerUpCard) {
+        return evHit[index(hand, dealerUpCard)];
+    }
+    
+    public double evStand(int hand, Rank dealerUpCard) {
+        return evStand[index(hand, dealerUpCard)];
+    }
+    
+    // Матожидание раунда при игре, оптимальной для каждого состава руки
+    public double getExpectedValue() {
+        return expectedValue;
+    }
+    
+    private static int index(int hand, Rank dealerUpCard) {
+        return hand * StrategySolver.CLASSES + StrategySolver.classOf(dealerUpCard);
+    }
+}
+
+/*
+ * Точное матожидание взять/остановиться по правилам BlackjackRules: дилер берет до 17 и заранее
+ * блэкджек не проверяет, блэкджек платит 3 к 2, удвоения и сплита нет. Карты различаются только
+ * классом (туз, 2..9, десятка), состав шуза - число карт каждого класса.
+ * Для каждой открытой карты дилера - своя задача, задачи идут параллельно:
+ *  - рука игрока и состав шуза без открытой карты однозначно задают друг друга, поэтому
+ *    матожидания руки запоминаются по составу (смешанная система счисления по классам);
+ *  - распределение итогов дилера (17..21, блэкджек, перебор) запоминается по составу и руке дилера.
+ * Скрытая карта дилера сдана раньше добора игрока, но неизвестна ему, так что ее можно считать
+ * взятой из остатка после добора.
+ * Таблица стратегии зависит только от суммы руки: решение для состояния HandState - по матожиданиям
+ * всех составов с этим состоянием, взвешенным по вероятности до них добраться при оптимальной игре.
+ * Состояниям, куда оптимальная игра не ведет (игрок отступил от стратегии), - веса при доборе
+ * в каждой руке, чтобы совет был и для них.
+ */
+final class StrategySolver {
+    static final int CLASSES = 10;
+    private static final Rank[] CLASS_RANKS = {Rank.ACE, Rank.TWO, Rank.THREE, Rank.FOUR, Rank.FIVE,
+            Rank.SIX, Rank.SEVEN, Rank.EIGHT, Rank.NINE, Rank.TEN};
+    private static final int MAX_DECKS = 8;
+    private static final int DEALER_OUTCOMES = 7;     // 17, 18, 19, 20, 21, блэкджек, перебор
+    private static final int DEALER_BLACKJACK = 5;
+    private static final int DEALER_BUST = 6;
+    
+    private final int[] shoe = new int[CLASSES];
+    private final long[] radix = new long[CLASSES];
+    private final int size;
+    private final int threads;
+    
+    public StrategySolver(int decks, int threads) {
+        this(fullShoe(decks), threads);
+    }
+    
+    // Расчет для оставшегося шуза: counts[c] - карт класса c (см. Shoe.remainingByClass).
+    // Если в какой-то ветви раунда карты кончаются, она просто не дает вклада
+    public StrategySolver(int[] counts, int threads) {
+        if (counts.length != CLASSES) {
+            throw new IllegalArgumentException("состав шуза - по " + CLASSES + " классам карт");
+        }
+        if (threads < 1) {
+            throw new IllegalArgumentException("нужен хотя бы один поток");
+        }
+        long weight = 1;
+        int total = 0;
+        for (int c = 0; c < CLASSES; c++) {
+            // не больше, чем в MAX_DECKS колодах: иначе ключи составов не помещаются в long
+            if (counts[c] < 0 || counts[c] > classSize(c) * MAX_DECKS) {
+                throw new IllegalArgumentException("карт класса " + CLASS_RANKS[c] + " должно быть от 0 до "
+                        + classSize(c) * MAX_DECKS + ": " + counts[c]);
+            }
+            shoe[c] = counts[c];
+            radix[c] = weight;
+            weight *= shoe[c] + 1;
+            total += counts[c];
+        }
+        if (total == 0) {
+            throw new IllegalArgumentException("шуз пуст");
+        }
+        size = total;
+        this.threads = threads;
+    }
+    
+    private static int[] fullShoe(int decks) {
+        if (decks < 1 || decks > MAX_DECKS) {
+            throw new IllegalArgumentException("для расчета стратегии колод должно быть от 1 до " + MAX_DECKS);
+        }
+        int[] counts = new int[CLASSES];
+        for (int c = 0; c < CLASSES; c++) {
+            counts[c] = classSize(c) * decks;
+        }
+        return counts;
+    }
+    
+    // Карт класса в одной колоде: десяток с картинками 16, остальных по 4
+    private static int classSize(int c) {
+        return c == CLASSES - 1 ? 16 : 4;
+    }
+    
+    static int classOf(Rank rank) {
+        return rank == Rank.ACE ? 0 : Math.min(rank.getValue(), 10) - 1;
+    }
+    
+    public StrategyTable solve() throws InterruptedException {
+        int cells = HandState.STATES * CLASSES;
+        Sums optimal = new Sums(cells);
+        Sums fallback = new Sums(cells);
+        List<Callable<Double>> tasks = new ArrayList<>();
+        for (int up = 0; up < CLASSES; up++) {
+            if (shoe[up] == 0) {
+                continue;
+            }
+            int upClass = up;
+            tasks.add(() -> new UpCard(upClass).solve(optimal, fallback));
+        }
+        
+        double expectedValue = 0;
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, CLASSES));
+        try {
+            // задачи пишут только в столбцы своей открытой карты
+            for (Future<Double> task : pool.invokeAll(tasks)) {
+                expectedValue += task.get();
+            }
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("ошибка расчета стратегии", e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+        
+        boolean[] hit = new boolean[cells];
+        double[] evHit = new double[cells];
+        double[] evStand = new double[cells];
+        for (int i = 0; i < cells; i++) {
+            Sums sums = optimal.weight[i] > 0 ? optimal : fallback;
+            evHit[i] = sums.weight[i] > 0 ? sums.hit[i] / sums.weight[i] : Double.NaN;
+            evStand[i] = sums.weight[i] > 0 ? sums.stand[i] / sums.weight[i] : Double.NaN;
+            hit[i] = evHit[i] > evStand[i];
+        }
+        return new StrategyTable(hit, evHit, evStand, expectedValue);
+    }
+    
+    // Взвешенные суммы матожиданий по клеткам таблицы
+    private static final class Sums {
+        final double[] hit;
+        final double[] stand;
+        final double[] weight;
+        
+        Sums(int cells) {
+            hit = new double[cells];
+            stand = new double[cells];
+            weight = new double[cells];
+        }
+        
+        void add(int cell, double reach, Node node) {
+            hit[cell] += reach * node.hit;
+            stand[cell] += reach * node.stand;
+            weight[cell] += reach;
+        }
+    }
+    
+    // Рука игрока: состав шуза, из которого она добирает, и матожидания
+    private static final class Node {
+        final int hand;
+        final int[] counts;
+        final int remaining;
+        double stand;
+        double hit = Double.NaN;
+        double reach;           // вероятность руки при оптимальной игре
+        double anyReach;        // то же, если добирать в каждой руке
+        
+        Node(int hand, int[] counts, int remaining) {
+            this.hand = hand;
+            this.counts = counts;
+            this.remaining = remaining;
+        }
+        
+        double best() {
+            return hit > stand ? hit : stand;
+        }
+    }
+    
+    // Расчет для одной открытой карты дилера. Состав меняется на месте при спуске
+    // и восстанавливается при возврате
+    private final class UpCard {
+        private final int up;
+        private final int dealerStart;
+        private final int[] counts = shoe.clone();
+        private int remaining = size;
+        private long index;
+        private final Map<Long, Node> nodes = new HashMap<>();
+        private final Map<Long, double[]> dealerOutcomes = new HashMap<>();
+        private final List<List<Node>> levels = new ArrayList<>();  // руки по числу карт
+        
+        UpCard(int up) {
+            this.up = up;
+            dealerStart = HandState.next(HandState.EMPTY, CLASS_RANKS[up]);
+            for (int c = 0; c < CLASSES; c++) {
+                index += counts[c] * radix[c];
+            }
+        }
+        
+        // Вклад открытой карты в матожидание раунда
+        double solve(Sums optimal, Sums fallback) {
+            double upProbability = (double) counts[up] / remaining;
+            take(up);
+            double expectedValue = 0;
+            for (int first = 0; first < CLASSES; first++) {
+                if (counts[first] == 0) {
+                    continue;
+                }
+                double firstProbability = (double) counts[first] / remaining;
+                take(first);
+                for (int second = first; second < CLASSES; second++) {
+                    if (counts[second] == 0) {
+                        continue;
+                    }
+                    // пары разных классов приходят в двух порядках
+                    double p = firstProbability * counts[second] / remaining * (first == second ? 1 : 2);
+                    take(second);
+                    int hand = HandState.next(HandState.next(HandState.EMPTY, CLASS_RANKS[first]), CLASS_RANKS[second]);
+                    if (HandState.isBlackjack(hand)) {
+                        // блэкджек игрока - ничья только против блэкджека дилера
+                        expectedValue += p * 1.5 * (1 - dealer(dealerStart)[DEALER_BLACKJACK]);
+                    } else {
+                        Node node = player(hand, 2);
+                        node.reach += p;
+                        node.anyReach += p;
+                        expectedValue += p * node.best();
+                    }
+                    putBack(second);
+                }
+                putBack(first);
+            }
+            spreadReach();
+            for (List<Node> level : levels) {
+                for (Node node : level) {
+                    int cell = node.hand * CLASSES + up;
+                    optimal.add(cell, node.reach, node);
+                    fallback.add(cell, node.anyReach, node);
+                }
+            }
+            return upProbability * expectedValue;
+        }
+        
+        private Node player(int hand, int cards) {
+            Node node = nodes.get(index);
+            if (node != null) {
+                return node;
+            }
+            node = new Node(hand, counts.clone(), remaining);
+            node.stand = stand(HandState.score(hand), dealer(dealerStart));
+            if (HandState.score(hand) < 21) {
+                double hit = 0;
+                for (int c = 0; c < CLASSES; c++) {
+                    if (counts[c] == 0) {
+                        continue;
+                    }
+                    double p = (double) counts[c] / remaining;
+                    int next = HandState.next(hand, CLASS_RANKS[c]);
+                    if (HandState.isBusted(next)) {
+                        hit -= p;
+                    } else {
+                        take(c);
+                        hit += p * player(next, cards + 1).best();
+                        putBack(c);
+                    }
+                }
+                node.hit = hit;
+            }
+            nodes.put(index, node);
+            while (levels.size() <= cards) {
+                levels.add(new ArrayList<>());
+            }
+            levels.get(cards).add(node);
+            return node;
+        }
+        
+        // Вероятность дойти до руки: от начальных рук к добравшим, по числу карт.
+        // При оптимальной игре дальше идут только руки, где взять выгоднее
+        private void spreadReach() {
+            for (List<Node> level : levels) {
+                for (Node node : level) {
+                    if (Double.isNaN(node.hit)) {
+                        continue;
+                    }
+                    boolean hits = node.hit > node.stand;
+                    long nodeIndex = nodeIndex(node.counts);
+                    for (int c = 0; c < CLASSES; c++) {
+                        Node child = node.counts[c] == 0 ? null : nodes.get(nodeIndex - radix[c]);
+                        if (child != null) {
+                            double p = (double) node.counts[c] / node.remaining;
+                            child.anyReach += node.anyReach * p;
+                            if (hits) {
+                                child.reach += node.reach * p;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        
+        private long nodeIndex(int[] nodeCounts) {
+            long nodeIndex = 0;
+            for (int c = 0; c < CLASSES; c++) {
+                nodeIndex += nodeCounts[c] * radix[c];
+            }
+            return nodeIndex;
+        }
+        
+        // Итоги дилера с руки hand при текущем составе
+        private double[] dealer(int hand) {
+            long key = index << 6 | dealerKey(hand);
+            double[] known = dealerOutcomes.get(key);
+            if (known != null) {
+                return known;
+            }
+            double[] outcomes = new double[DEALER_OUTCOMES];
+            for (int c = 0; c < CLASSES; c++) {
+                if (counts[c] == 0) {
+                    continue;
+                }
+                double p = (double) counts[c] / remaining;
+                int next = HandState.next(hand, CLASS_RANKS[c]);
+                if (BlackjackRules.dealerHits(next)) {
+                    take(c);
+                    double[] further = dealer(next);
+                    putBack(c);
+                    for (int k = 0; k < DEALER_OUTCOMES; k++) {
+                        outcomes[k] += p * further[k];
+                    }
+                } else if (HandState.isBusted(next)) {
+                    outcomes[DEALER_BUST] += p;
+                } else if (HandState.isBlackjack(next)) {
+                    outcomes[DEALER_BLACKJACK] += p;
+                } else {
+                    outcomes[HandState.score(next) - BlackjackRules.DEALER_STANDS_ON] += p;
+                }
+            }
+            dealerOutcomes.put(key, outcomes);
+            return outcomes;
+        }
+        
+        // Рука из одной открытой карты - 0; дальше важны только очки и мягкость
+        private int dealerKey(int hand) {
+            return HandState.cardCount(hand) == 1 ? 0 : 1 + (HandState.score(hand) << 1 | (HandState.isSoft(hand) ? 1 : 0));
+        }
+        
+        private void take(int c) {
+            counts[c]--;
+            remaining--;
+            index -= radix[c];
+        }
+        
+        private void putBack(int c) {
+            counts[c]++;
+            remaining++;
+            index += radix[c];
+        }
+    }
+    
+    // Матожидание остановки на score против распределения итогов дилера
+    private static double stand(int score, double[] dealer) {
+        double ev = dealer[DEALER_BUST];
+        if (score < 21) {
+            ev -= dealer[DEALER_BLACKJACK];     // 21 из трех карт против блэкджека - ничья
+        }
+        for (int total = 17; total <= 21; total++) {
+            ev += dealer[total - 17] * Integer.signum(score - total);
+        }
+        return ev;
+    }
+}
+
+// Итоги симуляции. Выплаты хранятся в половинах ставки, чтобы суммы по миллиардам раздач
+// оставались точными
+class SimulationResult {
+    private long hands;
+    private long halfUnits;
+    private long squaredHalfUnits;
+    private final long[] outcomes = new long[BlackjackRules.Outcome.values().length];
+    private long nanos;
+    
+    public void add(BlackjackRules.Outcome outcome) {
+        long half = outcome.getHalfUnits();
+        hands++;
+        halfUnits += half;
+        squaredHalfUnits += half * half;
+        outcomes[outcome.ordinal()]++;
+    }
+    
+    public void merge(SimulationResult other) {
+        hands += other.hands;
+        halfUnits += other.halfUnits;
+        squaredHalfUnits += other.squaredHalfUnits;
+        for (int i = 0; i < outcomes.length; i++) {
+            outcomes[i] += other.outcomes[i];
+        }
+    }
+    
+    public long getHands() { return hands; }
+    public long getNanos() { return nanos; }
+    public void setNanos(long nanos) { this.nanos = nanos; }
+    
+    public long count(BlackjackRules.Outcome outcome) {
+        return outcomes[outcome.ordinal()];
+    }
+    
+    // Средний выигрыш игрока на ставку; преимущество казино - минус это число
+    public double expectedValue() {
+        return hands == 0 ? Double.NaN : halfUnits / 2.0 / hands;
+    }
+    
+    public double standardError() {
+        if (hands < 2) {
+            return Double.NaN;
+        }
+        double mean = (double) halfUnits / hands;
+        double variance = ((double) squaredHalfUnits / hands - mean * mean) * hands / (hands - 1);
+        return Math.sqrt(Math.max(variance, 0)) / 2 / Math.sqrt(hands);
+    }
+    
+    // Полуширина доверительного интервала матожидания: z = 1.96 для 95%, 2.576 для 99%
+    public double confidence(double z) {
+        return z * standardError();
+    }
+    
+    public double handsPerSecond() {
+        return nanos == 0 ? 0 : hands * 1e9 / nanos;
+    }
+}
+
+// Раунды без консоли по тем же правилам, что и BlackjackGame. Каждый поток играет свои столы
+// со своим шузом и своим генератором, выделенным из одного зерна, и копит свой SimulationResult;
+// итоги сливаются в конце. Одно и то же зерно при том же числе потоков дает тот же результат.
+class BlackjackSimulator {
+    private final PlayerStrategy strategy;
+    private final int seats;
+    private final int decks;
+    private final int cutCard;
+    private final int threads;
+    
+    // cutCard - как в Shoe: сколько карт раздается до перемешивания
+    public BlackjackSimulator(PlayerStrategy strategy, int seats, int decks, int cutCard, int threads) {
+        if (seats < 1 || seats > 4) {
+            throw new IllegalArgumentException("игроков за столом должно быть от 1 до 4");
+        }
+        if (threads < 1) {
+            throw new IllegalArgumentException("нужен хотя бы один поток");
+        }
+        this.strategy = strategy;
+        this.seats = seats;
+        this.decks = decks;
+        this.cutCard = cutCard;
+        this.threads = threads;
+    }
+    
+    public SimulationResult simulate(long hands, long seed) throws InterruptedException {
+        SplittableRandom root = new SplittableRandom(seed);
+        List<Callable<SimulationResult>> workers = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            long quota = hands / threads + (i < hands % threads ? 1 : 0);
+            Table table = new Table(root.split());
+            workers.add(() -> table.play(quota));
+        }
+        
+        long start = System.nanoTime();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        SimulationResult total = new SimulationResult();
+        try {
+            for (Future<SimulationResult> worker : pool.invokeAll(workers)) {
+                total.merge(worker.get());
+            }
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("ошибка симуляции", e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+        total.setNanos(System.nanoTime() - start);
+        return total;
+    }
+    
+    // Стол одного потока
+    private final class Table {
+        private final Shoe shoe;
+        private final int[] hands = new int[seats];    // состояния HandState
+        
+        Table(SplittableRandom random) {
+            shoe = new Shoe(decks, cutCard, random);
+        }
+        
+        // Раунды, пока не сыграно quota рук. Руки - только состояния HandState, без объектов
+        SimulationResult play(long quota) {
+            SimulationResult result = new SimulationResult();
+            while (result.getHands() < quota) {
+                for (int i = 0; i < seats; i++) {
+                    hands[i] = HandState.next(HandState.next(HandState.EMPTY, shoe.draw()), shoe.draw());
+                }
+                int dealer = HandState.next(HandState.EMPTY, shoe.draw());
+                int upCard = shoe.draw();
+                dealer = HandState.next(dealer, upCard);
+                
+                Rank up = Card.rankOf(upCard);
+                for (int i = 0; i < seats; i++) {
+                    int hand = hands[i];
+                    while (!HandState.isBlackjack(hand) && !HandState.isBusted(hand) && strategy.hit(hand, up)) {
+                        hand = HandState.next(hand, shoe.draw());
+                    }
+                    hands[i] = hand;
+                }
+                while (BlackjackRules.dealerHits(dealer)) {
+                    dealer = HandState.next(dealer, shoe.draw());
+                }
+                for (int i = 0; i < seats; i++) {
+                    result.add(BlackjackRules.settle(hands[i], dealer));
+                }
+                
+                shoe.endRound();
+            }
+            return result;
+        }
+    }
+}
+
+// Двоичный протокол сервера блэкджека: байт типа сообщения, затем тело. Карты - коды Card.
+// Раунд для места: ROUND, затем пока можно брать - TURN и ответ HIT (сервер шлет CARD)
+// или STAND (сервер шлет STOOD), в конце RESULT.
+class BlackjackProtocol {
+    // клиент -> сервер
+    static final byte JOIN = 1;       // UTF имя - первое сообщение соединения
+    static final byte HIT = 2;
+    static final byte STAND = 3;
+
+    // сервер -> клиент
+    static final byte SEATED = 10;    // int стол, int место
+    static final byte ROUND = 11;     // byte открытая карта дилера, byte, byte карты игрока
+    static final byte TURN = 12;      // ждет HIT или STAND
+    static final byte CARD = 13;      // byte карта - ответ на HIT
+    static final byte STOOD = 14;     // ответ на STAND
+    static final byte RESULT = 15;    // byte исход (BlackjackRules.Outcome), byte очки дилера, long очки игрока в таблице лидеров
+
+    static final int BUFFER_SIZE = 4 << 10;
+
+    private BlackjackProtocol() {}
+}
+
+// Сервер блэкджека: соединение - место за столом, места по порядку подключения собираются в столы
+// до seatsPerTable мест. Каждый стол играет раунды в своем виртуальном потоке и опрашивает места
+// по очереди: ожидание ответа игрока блокирует только этот виртуальный поток, так что столов могут
+// быть тысячи. Новые места садятся за стол перед следующим раундом; стол, из-за которого ушли все,
+// закрывается. Таблица лидеров и статистика общие для всех столов.
+class BlackjackServer implements Closeable {
+    private static final int DECISION_TIMEOUT_MILLIS = 30000;
+    private static final int ACCEPT_BACKOFF_MILLIS = 100;
+
+    private final ServerSocket serverSocket;
+    private final ExecutorService threads = Executors.newVirtualThreadPerTaskExecutor();
+    private final Set<Socket> sockets = ConcurrentHashMap.newKeySet();
+    private final Thread acceptor;
+    private final int seatsPerTable;
+    private final AtomicInteger nextTableId = new AtomicInteger();
+    private Table openTable;                    // под блокировкой this
+    private volatile boolean closed;
+
+    private final Map<String, LongAdder> leaderboard = new ConcurrentHashMap<>();
+    private final LongAdder rounds = new LongAdder();
+    private final LongAdder[] outcomes = new LongAdder[BlackjackRules.Outcome.values().length];
+
+    public BlackjackServer(InetSocketAddress address, int seatsPerTable) throws IOException {
+        if (seatsPerTable < 1 || seatsPerTable > 4) {
+            throw new IllegalArgumentException("мест за столом должно быть от 1 до 4");
+        }
+        this.seatsPerTable = seatsPerTable;
+        for (int i = 0; i < outcomes.length; i++) {
+            outcomes[i] = new LongAdder();
+        }
+        serverSocket = new ServerSocket();
+        serverSocket.bind(address, 4096);
+        acceptor = Thread.ofPlatform().name("blackjack-acceptor").start(this::acceptLoop);
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public long getRounds() {
+        return rounds.sum();
+    }
+
+    public long count(BlackjackRules.Outcome outcome) {
+        return outcomes[outcome.ordinal()].sum();
+    }
+
+    // Первые limit игроков по очкам таблицы лидеров
+    public List<Map.Entry<String, Long>> leaders(int limit) {
+        List<Map.Entry<String, Long>> sorted = new ArrayList<>();
+        leaderboard.forEach((name, points) -> sorted.add(Map.entry(name, points.sum())));
+        sorted.sort(Map.Entry.<String, Long>comparingByValue().reversed());
+        return sorted.subList(0, Math.min(limit, sorted.size()));
+    }
+
+    private void acceptLoop() {
+        while (!closed) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                sockets.add(socket);
+                // close() мог пройти между accept и add и этого сокета уже не увидеть
+                if (closed) {
+                    socket.close();
+                    break;
+                }
+                try {
+                    threads.execute(() -> join(socket));
+                } catch (RejectedExecutionException e) {
+                    sockets.remove(socket);
+                    socket.close();
+                }
+            } catch (IOException e) {
+                if (!closed) {
+                    System.err.println("Ошибка приема соединения: " + e.getMessage());
+                    // при исчерпании дескрипторов accept падает сразу - не крутимся вхолостую
+                    try {
+                        Thread.sleep(ACCEPT_BACKOFF_MILLIS);
+                    } catch (InterruptedException interrupted) {
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    // Знакомство с игроком и место за открытым столом
+    private void join(Socket socket) {
+        try {
+            socket.setSoTimeout(DECISION_TIMEOUT_MILLIS);
+            Seat seat = new Seat(socket);
+            if (seat.in.readByte() != BlackjackProtocol.JOIN) {
+                throw new IOException("ожидалось JOIN");
+            }
+            seat.name = seat.in.readUTF();
+            // дальше в соединение пишет только поток стола
+            synchronized (this) {
+                if (openTable == null || !openTable.offer(seat)) {
+                    openTable = new Table(nextTableId.incrementAndGet());
+                    openTable.offer(seat);
+                    threads.execute(openTable::run);
+                }
+            }
+        } catch (IOException | RejectedExecutionException e) {
+            close(socket);
+        }
+    }
+
+    private void close(Socket socket) {
+        sockets.remove(socket);
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // соединение уже не нужно
+        }
+    }
+
+    private static final class Seat {
+        final Socket socket;
+        final DataInputStream in;
+        final DataOutputStream out;
+        String name;
+        int number;
+        int hand;               // HandState
+        boolean left;
+
+        Seat(Socket socket) throws IOException {
+            this.socket = socket;
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BlackjackProtocol.BUFFER_SIZE));
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BlackjackProtocol.BUFFER_SIZE));
+        }
+    }
+
+    private final class Table {
+        final int id;
+        private final Shoe shoe = new Shoe(BlackjackRules.DECKS, BlackjackRules.cutCard(BlackjackRules.DECKS),
+                new SplittableRandom());
+        private final List<Seat> seats = new ArrayList<>();
+        private final List<Seat> joining = new ArrayList<>();    // под блокировкой стола
+        private int joined;
+        private boolean finished;
+
+        Table(int id) {
+            this.id = id;
+        }
+
+        // false - стол полон или уже закрыт, нужен новый
+        synchronized boolean offer(Seat seat) {
+            if (finished || joined == seatsPerTable) {
+                return false;
+            }
+            seat.number = ++joined;
+            joining.add(seat);
+            return true;
+        }
+
+        void run() {
+            while (!closed) {
+                List<Seat> seated;
+                synchronized (this) {
+                    seated = new ArrayList<>(joining);
+                    joining.clear();
+                    if (seats.isEmpty() && seated.isEmpty()) {
+                        finished = true;
+                        return;
+                    }
+                }
+                for (Seat seat : seated) {
+                    try {
+                        seat.out.writeByte(BlackjackProtocol.SEATED);
+                        seat.out.writeInt(id);
+                        seat.out.writeInt(seat.number);
+                        seat.out.flush();
+                        seats.add(seat);
+                    } catch (IOException e) {
+                        close(seat.socket);
+                    }
+                }
+                if (seats.isEmpty()) {
+                    continue;
+                }
+                playRound();
+                for (Iterator<Seat> i = seats.iterator(); i.hasNext(); ) {
+                    Seat seat = i.next();
+                    if (seat.left) {
+                        i.remove();
+                        close(seat.socket);
+                    }
+                }
+            }
+            for (Seat seat : seats) {
+                close(seat.socket);
+            }
+        }
+
+        // Порядок раздачи как в BlackjackGame: по две карты игрокам, затем скрытая и открытая дилеру
+        private void playRound() {
+            int[] cards = new int[seats.size() * 2];
+            for (int i = 0; i < seats.size(); i++) {
+                cards[2 * i] = shoe.draw();
+                cards[2 * i + 1] = shoe.draw();
+                seats.get(i).hand = HandState.next(HandState.next(HandState.EMPTY, cards[2 * i]), cards[2 * i + 1]);
+            }
+            int dealer = HandState.next(HandState.EMPTY, shoe.draw());
+            int upCard = shoe.draw();
+            dealer = HandState.next(dealer, upCard);
+
+            for (int i = 0; i < seats.size(); i++) {
+                Seat seat = seats.get(i);
+                try {
+                    seat.out.writeByte(BlackjackProtocol.ROUND);
+                    seat.out.writeByte(upCard);
+                    seat.out.writeByte(cards[2 * i]);
+                    seat.out.writeByte(cards[2 * i + 1]);
+                    seat.out.flush();
+                } catch (IOException e) {
+                    seat.left = true;
+                }
+            }
+            for (Seat seat : seats) {
+                if (!seat.left) {
+                    playerTurn(seat);
+                }
+            }
+            while (BlackjackRules.dealerHits(dealer)) {
+                dealer = HandState.next(dealer, shoe.draw());
+            }
+
+            for (Seat seat : seats) {
+                if (seat.left) {
+                    continue;
+                }
+                BlackjackRules.Outcome outcome = BlackjackRules.settle(seat.hand, dealer);
+                LongAdder points = leaderboard.computeIfAbsent(seat.name, name -> new LongAdder());
+                points.add(outcome.getPoints());
+                outcomes[outcome.ordinal()].increment();
+                try {
+                    seat.out.writeByte(BlackjackProtocol.RESULT);
+                    seat.out.writeByte(outcome.ordinal());
+                    seat.out.writeByte(HandState.score(dealer));
+                    seat.out.writeLong(points.sum());
+                    seat.out.flush();
+                } catch (IOException e) {
+                    seat.left = true;
+                }
+            }
+            rounds.increment();
+            shoe.endRound();
+        }
+
+        // Как playerTurn в BlackjackGame: брать можно, пока нет блэкджека и перебора.
+        // Молчание дольше DECISION_TIMEOUT_MILLIS или разрыв - игрок уходит из-за стола
+        private void playerTurn(Seat seat) {
+            try {
+                while (!HandState.isBlackjack(seat.hand) && !HandState.isBusted(seat.hand)) {
+                    seat.out.writeByte(BlackjackProtocol.TURN);
+                    seat.out.flush();
+                    byte decision = seat.in.readByte();
+                    if (decision == BlackjackProtocol.HIT) {
+                        int card = shoe.draw();
+                        seat.hand = HandState.next(seat.hand, card);
+                        seat.out.writeByte(BlackjackProtocol.CARD);
+                        seat.out.writeByte(card);
+                    } else if (decision == BlackjackProtocol.STAND) {
+                        seat.out.writeByte(BlackjackProtocol.STOOD);
+                        seat.out.flush();
+                        return;
+                    } else {
+                        throw new IOException("неизвестное решение: " + decision);
+                    }
+                }
+                seat.out.flush();
+            } catch (SocketException | EOFException e) {
+                seat.left = true;
+            } catch (IOException e) {
+                if (!closed) {
+                    System.err.println("Ошибка места " + seat.name + " за столом " + id + ": " + e.getMessage());
+                }
+                seat.left = true;
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        serverSocket.close();
+        for (Socket socket : sockets) {
+            close(socket);
+        }
+        threads.shutdown();
+        try {
+            acceptor.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Аргументы: [порт [мест за столом]]
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 7071;
+        int seatsPerTable = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+
+        BlackjackServer server = new BlackjackServer(new InetSocketAddress(port), seatsPerTable);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                server.close();
+                System.out.println("Сыграно раундов: " + server.getRounds());
+            } catch (IOException e) {
+                System.err.println("Ошибка остановки: " + e.getMessage());
+            }
+        }));
+        System.out.println("Сервер блэкджека слушает порт " + server.getPort() + " (мест за столом: " + seatsPerTable + ")");
+    }
+}
+
+// Место за столом сервера блэкджека. Решения принимает PlayerStrategy по руке, которую клиент
+// ведет сам по картам из сообщений сервера.
+class BlackjackClient implements Closeable {
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private int table;
+    private int seat;
+
+    public BlackjackClient(String host, int port, String name) throws IOException {
+        socket = new Socket();
+        socket.setTcpNoDelay(true);
+        socket.connect(new InetSocketAddress(host, port));
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BlackjackProtocol.BUFFER_SIZE));
+        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BlackjackProtocol.BUFFER_SIZE));
+        out.writeByte(BlackjackProtocol.JOIN);
+        out.writeUTF(name);
+        out.flush();
+        expect(BlackjackProtocol.SEATED);
+        table = in.readInt();
+        seat = in.readInt();
+    }
+
+    public int getTable() { return table; }
+    public int getSeat() { return seat; }
+
+    // Один раунд от раздачи до итога. latency получает наносекунды от отправки решения
+    // до ответа сервера на него
+    public BlackjackRules.Outcome playRound(PlayerStrategy strategy, LongConsumer latency) throws IOException {
+        expect(BlackjackProtocol.ROUND);
+        Rank up = Card.rankOf(in.readByte());
+        int hand = HandState.next(HandState.next(HandState.EMPTY, in.readByte()), in.readByte());
+        while (true) {
+            byte message = in.readByte();
+            if (message == BlackjackProtocol.RESULT) {
+                BlackjackRules.Outcome outcome = BlackjackRules.Outcome.values()[in.readByte()];
+                in.readByte();      // очки дилера
+                in.readLong();      // очки в таблице лидеров
+                return outcome;
+            }
+            if (message != BlackjackProtocol.TURN) {
+                throw new IOException("неожиданное сообщение: " + message);
+            }
+            boolean hit = strategy.hit(hand, up);
+            long sent = System.nanoTime();
+            out.writeByte(hit ? BlackjackProtocol.HIT : BlackjackProtocol.STAND);
+            out.flush();
+            expect(hit ? BlackjackProtocol.CARD : BlackjackProtocol.STOOD);
+            latency.accept(System.nanoTime() - sent);
+            if (hit) {
+                hand = HandState.next(hand, in.readByte());
+            }
+        }
+    }
+
+    private void expect(byte type) throws IOException {
+        byte message = in.readByte();
+        if (message != type) {
+            throw new IOException("ожидалось сообщение " + type + ", пришло " + message);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+
+    // Нагрузочный тест: по виртуальному потоку на место, места играют базовой стратегией.
+    // Аргументы: [хост:порт | - [столов [секунд [мест за столом]]]]
+    // "-" поднимает сервер в этом же процессе и ходит к нему через loopback.
+    public static void main(String[] args) throws Exception {
+        String target = args.length > 0 ? args[0] : "-";
+        int tables = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        int seatsPerTable = args.length > 3 ? Integer.parseInt(args[3]) : 4;
+
+        BlackjackServer server = null;
+        String host;
+        int port;
+        if (target.equals("-")) {
+            server = new BlackjackServer(new InetSocketAddress("127.0.0.1", 0), seatsPerTable);
+            host = "127.0.0.1";
+            port = server.getPort();
+            System.out.println("Локальный сервер на порту " + port);
+        } else {
+            int colon = target.lastIndexOf(':');
+            host = target.substring(0, colon);
+            port = Integer.parseInt(target.substring(colon + 1));
+        }
+
+        int seats = tables * seatsPerTable;
+        System.out.println("Столов: " + tables + ", мест: " + seats);
+        List<LoadSeat> players = new ArrayList<>(seats);
+        for (int i = 0; i < seats; i++) {
+            players.add(new LoadSeat("Игрок " + (i % 100)));
+        }
+        // места подключаются в своих потоках: стол начинает раунд с первым севшим и не ждет остальных
+        long warmupEnd = System.nanoTime() + 1000000000L;
+        long end = warmupEnd + seconds * 1000000000L;
+        try (ExecutorService threads = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (LoadSeat player : players) {
+                threads.execute(() -> player.run(host, port, warmupEnd, end));
+            }
+        }
+
+        long hands = 0;
+        long errors = 0;
+        Map<Integer, Long> tableRounds = new HashMap<>();
+        long[] latencies = new long[0];
+        for (LoadSeat player : players) {
+            hands += player.hands;
+            if (player.error != null) {
+                errors++;
+            }
+            if (player.client != null) {
+                // раундов у стола столько, сколько итогов получило место, сыгравшее больше всех
+                tableRounds.merge(player.client.getTable(), player.hands, Math::max);
+            }
+            int offset = latencies.length;
+            latencies = Arrays.copyOf(latencies, offset + player.latencyCount);
+            System.arraycopy(player.latencies, 0, latencies, offset, player.latencyCount);
+        }
+        Arrays.sort(latencies);
+        long rounds = tableRounds.values().stream().mapToLong(Long::longValue).sum();
+
+        System.out.printf("Раундов/с: %d, рук/с: %d, столов: %d%n", rounds / seconds, hands / seconds, tableRounds.size());
+        if (latencies.length > 0) {
+            System.out.printf("Ответ на решение, мс: p50 %.3f, p99 %.3f, p99.9 %.3f, max %.3f (решений: %d)%n",
+                    percentile(latencies, 0.50), percentile(latencies, 0.99),
+                    percentile(latencies, 0.999), latencies[latencies.length - 1] / 1e6, latencies.length);
+        }
+        if (errors > 0) {
+            System.out.println("Мест с ошибками: " + errors);
+        }
+
+        if (server != null) {
+            System.out.println("Лидеры: " + server.leaders(3));
+            server.close();
+        }
+    }
+
+    private static double percentile(long[] sorted, double quantile) {
+        return sorted[(int) Math.min(sorted.length - 1, sorted.length * quantile)] / 1e6;
+    }
+
+    private static final class LoadSeat {
+        private static final int MAX_SAMPLES = 1 << 16;
+
+        final String name;
+        // Пишутся потоком места, читаются после завершения его исполнителя
+        BlackjackClient client;
+        long hands;
+        long[] latencies = new long[64];
+        int latencyCount;
+        IOException error;
+
+        LoadSeat(String name) {
+            this.name = name;
+        }
+
+        void run(String host, int port, long warmupEnd, long end) {
+            try {
+                client = new BlackjackClient(host, port, name);
+                long now;
+                while ((now = System.nanoTime()) < end) {
+                    boolean measured = now >= warmupEnd;
+                    client.playRound(StandardStrategy.BASIC, nanos -> {
+                        if (measured && latencyCount < MAX_SAMPLES) {
+                            if (latencyCount == latencies.length) {
+                                latencies = Arrays.copyOf(latencies, latencyCount * 2);
+                            }
+                            latencies[latencyCount++] = nanos;
+                        }
+                    });
+                    if (measured) {
+                        hands++;
+                    }
+                }
+            } catch (IOException e) {
+                error = e;
+            } finally {
+                // иначе стол будет ждать решения ушедшего места до таймаута
+                try {
+                    if (client != null) {
+                        client.close();
+                    }
+                } catch (IOException e) {
+                    // соединение уже не нужно
+                }
+            }
+        }
+    }
+}
+
 public class BlackjackGame {
-    private Deck deck;
+    private Shoe shoe;
     private List<Player> players;
     private Player dealer;
     private Scanner scanner;
     private Map<String, Integer> leaderboard;
+    private StrategyTable strategy;     // считается при подсказке для состава strategyShoe
+    private int[] strategyShoe;
     
     public BlackjackGame() {
-        deck = new Deck();
+        shoe = new Shoe(BlackjackRules.DECKS, BlackjackRules.cutCard(BlackjackRules.DECKS), new SplittableRandom());
         players = new ArrayList<>();
         dealer = new Player("Дилер");
         scanner = new Scanner(System.in);
@@ -204,9 +1558,7 @@ public class BlackjackGame {
             }
             
             // Перемешиваем колоду, если осталось мало карт
-            if (deck.size() < 20) {
-                deck = new Deck();
-                deck.shuffle();
+            if (shoe.endRound()) {
                 System.out.println("Колода перемешана!");
             }
         }
@@ -227,7 +1579,6 @@ public class BlackjackGame {
             leaderboard.put(name, 0);
         }
         
-        deck.shuffle();
         System.out.println("\nИгроки созданы! Колода перемешана.");
     }
     
@@ -241,13 +1592,13 @@ public class BlackjackGame {
         // Раздача первых двух карт
         System.out.println("\n=== РАЗДАЧА КАРТ ===");
         for (Player player : players) {
-            player.addCard(deck.drawCard());
-            player.addCard(deck.drawCard());
+            player.addCard(shoe.drawCard());
+            player.addCard(shoe.drawCard());
             System.out.println(player.showHand(true));
         }
         
-        dealer.addCard(deck.drawCard());
-        dealer.addCard(deck.drawCard());
+        dealer.addCard(shoe.drawCard());
+        dealer.addCard(shoe.drawCard());
         System.out.println(dealer.showHand(false));
         
         // Ходы игроков
@@ -278,12 +1629,14 @@ public class BlackjackGame {
                 break;
             }
             
-            System.out.print("1. Взять карту\n2. Остановиться\nВыберите действие: ");
+            System.out.print("1. Взять карту\n2. Остановиться\n3. Подсказка\nВыберите действие: ");
             int choice = scanner.nextInt();
             scanner.nextLine(); 
             
-            if (choice == 1) {
-                Card card = deck.drawCard();
+            if (choice == 3) {
+                showHint(player);
+            } else if (choice == 1) {
+                Card card = shoe.drawCard();
                 player.addCard(card);
                 System.out.println("Вы взяли: " + card);
                 
@@ -298,12 +1651,33 @@ public class BlackjackGame {
         }
     }
     
+    // Совет по оставшемуся шузу; пересчет - только когда состав изменился, то есть в новом раунде.
+    // Карты других игроков на столе расчет не учитывает
+    private void showHint(Player player) {
+        int[] composition = shoe.remainingByClass();
+        if (strategy == null || !Arrays.equals(composition, strategyShoe)) {
+            System.out.println("Расчет стратегии по оставшимся картам...");
+            try {
+                strategy = new StrategySolver(composition, Runtime.getRuntime().availableProcessors()).solve();
+                strategyShoe = composition;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        int hand = player.getHandState();
+        Rank up = dealer.getHand().get(1).getRank();
+        System.out.printf("Совет: %s (матожидание на ставку: взять %+.3f, остановиться %+.3f)%n",
+                strategy.hit(hand, up) ? "взять карту" : "остановиться",
+                strategy.evHit(hand, up), strategy.evStand(hand, up));
+    }
+    
     private void dealerTurn() {
         System.out.println("\n=== ХОД ДИЛЕРА ===");
         System.out.println(dealer.showHand(true));
         
-        while (dealer.getScore() < 17 && !dealer.isBusted()) {
-            Card card = deck.drawCard();
+        while (BlackjackRules.dealerHits(dealer)) {
+            Card card = shoe.drawCard();
             dealer.addCard(card);
             System.out.println("Дилер берет: " + card);
             System.out.println(dealer.showHand(true));
@@ -325,36 +1699,13 @@ public class BlackjackGame {
     private void determineWinners() {
         System.out.println("\n=== РЕЗУЛЬТАТЫ РАУНДА ===");
         
-        int dealerScore = dealer.getScore();
-        boolean dealerBusted = dealer.isBusted();
-        
         for (Player player : players) {
-            int playerScore = player.getScore();
-            boolean playerBusted = player.isBusted();
-            boolean playerBlackjack = player.hasBlackjack();
-            
-            System.out.print(player.getName() + ": " + playerScore + " очков - ");
-            
-            if (playerBusted) {
-                System.out.println("ПРОИГРАЛ (перебор)");
-            } else if (playerBlackjack && !dealer.hasBlackjack()) {
-                System.out.println("ВЫИГРАЛ (блэкджек)!");
-                player.addWin();
-                leaderboard.put(player.getName(), leaderboard.get(player.getName()) + 3);
-            } else if (dealerBusted) {
-                System.out.println("ВЫИГРАЛ (дилер перебрал)!");
-                player.addWin();
-                leaderboard.put(player.getName(), leaderboard.get(player.getName()) + 2);
-            } else if (playerScore > dealerScore) {
-                System.out.println("ВЫИГРАЛ!");
+            BlackjackRules.Outcome outcome = BlackjackRules.settle(player, dealer);
+            System.out.println(player.getName() + ": " + player.getScore() + " очков - " + outcome.getMessage());
+            if (outcome.isWin()) {
                 player.addWin();
-                leaderboard.put(player.getName(), leaderboard.get(player.getName()) + 2);
-            } else if (playerScore == dealerScore) {
-                System.out.println("НИЧЬЯ!");
-                leaderboard.put(player.getName(), leaderboard.get(player.getName()) + 1);
-            } else {
-                System.out.println("ПРОИГРАЛ");
             }
+            leaderboard.put(player.getName(), leaderboard.get(player.getName()) + outcome.getPoints());
         }
         
         showLeaderboard();
@@ -386,8 +1737,48 @@ public class BlackjackGame {
         System.out.println("\n🏆 ЧЕМПИОН: " + champion + " 🏆");
     }
     
-    public static void main(String[] args) {
-        BlackjackGame game = new BlackjackGame();
-        game.run();
+    // Аргументы: [раздач [стратегия [игроков за столом [потоков [зерно [колод [проникновение]]]]]]] -
+    // симуляция без консоли; без аргументов - интерактивная игра
+    public static void main(String[] args) throws InterruptedException {
+        if (args.length == 0) {
+            BlackjackGame game = new BlackjackGame();
+            game.run();
+            return;
+        }
+        
+        long hands = Long.parseLong(args[0]);
+        String strategyName = args.length > 1 ? args[1].toUpperCase(Locale.ROOT) : StandardStrategy.BASIC.name();
+        int seats = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+        int threads = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+        long seed = args.length > 4 ? Long.parseLong(args[4]) : System.nanoTime();
+        int decks = args.length > 5 ? Integer.parseInt(args[5]) : BlackjackRules.DECKS;
+        int cutCard = args.length > 6 ? Shoe.cutCard(decks, Double.parseDouble(args[6])) : BlackjackRules.cutCard(decks);
+        
+        // TABLE - таблица точного решателя для этого числа колод
+        PlayerStrategy strategy;
+        if (strategyName.equals("TABLE")) {
+            long start = System.nanoTime();
+            StrategyTable table = new StrategySolver(decks, threads).solve();
+            System.out.printf("Стратегия рассчитана за %d мс, матожидание раунда из полного шуза: %+.5f%n",
+                    (System.nanoTime() - start) / 1000000, table.getExpectedValue());
+            strategy = table;
+        } else {
+            strategy = StandardStrategy.valueOf(strategyName);
+        }
+        
+        System.out.println("Симуляция: " + hands + " раздач, стратегия " + strategyName + ", игроков за столом: "
+                + seats + ", колод: " + decks + ", отрезная карта: " + cutCard + ", потоков: " + threads
+                + ", зерно " + seed);
+        SimulationResult result = new BlackjackSimulator(strategy, seats, decks, cutCard, threads)
+                .simulate(hands, seed);
+        
+        System.out.printf("Раздач: %d за %.1f с (%.0f раздач/с)%n",
+                result.getHands(), result.getNanos() / 1e9, result.handsPerSecond());
+        for (BlackjackRules.Outcome outcome : BlackjackRules.Outcome.values()) {
+            System.out.printf("%-28s %6.2f%%%n", outcome.getMessage(), 100.0 * result.count(outcome) / result.getHands());
+        }
+        System.out.printf("Матожидание на ставку: %+.5f ± %.5f (95%%), ± %.5f (99%%)%n",
+                result.expectedValue(), result.confidence(1.96), result.confidence(2.576));
+        System.out.printf("Преимущество казино: %.3f%%%n", -100 * result.expectedValue());
     }
 }
@@ -1,11 +1,4013 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.StampedLock;
+import java.util.zip.CRC32;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+import java.util.function.IntUnaryOperator;
+import java.util.function.Supplier;
+
+class Contact {
+    private final String name;
+    private final List<String> phoneNumbers;
+    private int id = -1; // номер в ContactRegistry, -1 - контакт не в книге
+
+    public Contact(String name) {
+        this.name = name;
+        this.phoneNumbers = new ArrayList<>();
+    }
+
+    public String getName() { return name; }
+    public List<String> getPhoneNumbers() { return phoneNumbers; }
+
+    int getId() { return id; }
+    void setId(int id) { this.id = id; }
+
+    // Копия для изменения: опубликованный в хранилище контакт больше не меняется
+    Contact copy() {
+        Contact copy = new Contact(name);
+        copy.phoneNumbers.addAll(phoneNumbers);
+        return copy;
+    }
+
+    public void addPhoneNumber(String phone) {
+        if (!phoneNumbers.contains(phone)) {
+            phoneNumbers.add(phone);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return name + ": " + String.join(", ", phoneNumbers);
+    }
+}
+
+class PhoneNumbers {
+    // Номер из 1-15 цифр упаковывается в long: длина в битах 50-53, значение в младших 50 битах.
+    // Длина сохраняет ведущие нули ("007123" и "7123" дают разные ключи).
+    static final int MAX_DIGITS = 15;
+    static final int MIN_DIGITS = 6;    // нижняя граница только для normalize, pack принимает и короткие
+    static final long INVALID_CHAR = -1;
+    static final long TOO_SHORT = -2;
+    static final long TOO_LONG = -3;
+    private static final int LENGTH_SHIFT = 50;
+    private static final long VALUE_MASK = (1L << LENGTH_SHIFT) - 1;
+
+    private PhoneNumbers() {}
+
+    static long pack(String phone) {
+        int length = phone.length();
+        if (length == 0 || length > MAX_DIGITS) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = 0; i < length; i++) {
+            char c = phone.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return ((long) length << LENGTH_SHIFT) | value;
+    }
+
+    static String unpack(long packed) {
+        int length = (int) (packed >>> LENGTH_SHIFT);
+        long value = packed & VALUE_MASK;
+        char[] digits = new char[length];
+        for (int i = length - 1; i >= 0; i--) {
+            digits[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+        return new String(digits);
+    }
+
+    // Номер в свободной записи ("+7 (495) 123-45-67") разбирается одним проходом без выделения памяти:
+    // пробелы, '-', '(', ')' и '.' пропускаются, '+' допустим один раз перед первой цифрой.
+    // Результат - упакованный номер из MIN_DIGITS..MAX_DIGITS цифр или отрицательный код ошибки.
+    static long normalize(CharSequence phone) {
+        return normalize(phone, 0, phone.length());
+    }
+
+    static long normalize(CharSequence phone, int start, int end) {
+        int digits = 0;
+        long value = 0;
+        boolean plus = false;
+        for (int i = start; i < end; i++) {
+            char c = phone.charAt(i);
+            if (c >= '0' && c <= '9') {
+                if (++digits > MAX_DIGITS) {
+                    return TOO_LONG;
+                }
+                value = value * 10 + (c - '0');
+            } else if (c == '+' && !plus && digits == 0) {
+                plus = true;
+            } else if (!isSeparator(c)) {
+                return INVALID_CHAR;
+            }
+        }
+        return digits < MIN_DIGITS ? TOO_SHORT : ((long) digits << LENGTH_SHIFT) | value;
+    }
+
+    // То же для байтов UTF-8 прямо из буфера импорта; байты не-ASCII символов отрицательны и отвергаются
+    static long normalize(ByteBuffer bytes, int start, int end) {
+        int digits = 0;
+        long value = 0;
+        boolean plus = false;
+        for (int i = start; i < end; i++) {
+            byte b = bytes.get(i);
+            if (b >= '0' && b <= '9') {
+                if (++digits > MAX_DIGITS) {
+                    return TOO_LONG;
+                }
+                value = value * 10 + (b - '0');
+            } else if (b == '+' && !plus && digits == 0) {
+                plus = true;
+            } else if (!isSeparator((char) b)) {
+                return INVALID_CHAR;
+            }
+        }
+        return digits < MIN_DIGITS ? TOO_SHORT : ((long) digits << LENGTH_SHIFT) | value;
+    }
+
+    // Каноническая запись: только цифры, или null для неверного номера
+    static String canonical(String phone) {
+        long packed = normalize(phone);
+        return packed < 0 ? null : unpack(packed);
+    }
+
+    static String describe(long error) {
+        if (error == TOO_SHORT) {
+            return "меньше " + MIN_DIGITS + " цифр";
+        }
+        if (error == TOO_LONG) {
+            return "больше " + MAX_DIGITS + " цифр";
+        }
+        return "недопустимый символ";
+    }
+
+    private static boolean isSeparator(char c) {
+        return c == ' ' || c == '-' || c == '(' || c == ')' || c == '.';
+    }
+}
+
+// Итог импорта: сколько строк принято и какие отвергнуты. Причины хранятся только для первых
+// SAMPLE_LIMIT отказов, чтобы файл из миллионов плохих строк не занял всю память.
+class ImportReport {
+    static final int SAMPLE_LIMIT = 20;
+    static final String BAD_FORMAT = "ожидается имя|номер[,номер...]";
+
+    static final class Rejection {
+        final long line;        // номер строки в файле, с единицы
+        final String reason;
+
+        Rejection(long line, String reason) {
+            this.line = line;
+            this.reason = reason;
+        }
+
+        @Override
+        public String toString() {
+            return "строка " + line + ": " + reason;
+        }
+    }
+
+    private int imported;
+    private long rejected;
+    private long lines;
+    private final List<Rejection> sample = new ArrayList<>();
+
+    int getImported() {
+        return imported;
+    }
+
+    long getRejected() {
+        return rejected;
+    }
+
+    List<Rejection> getSample() {
+        return Collections.unmodifiableList(sample);
+    }
+
+    long nextLine() {
+        return ++lines;
+    }
+
+    void accept() {
+        imported++;
+    }
+
+    // Строить текст причины стоит только тогда, когда он попадет в образец
+    boolean wantsReason() {
+        return sample.size() < SAMPLE_LIMIT;
+    }
+
+    void reject(long line, String reason) {
+        rejected++;
+        if (reason != null && wantsReason()) {
+            sample.add(new Rejection(line, reason));
+        }
+    }
+
+    static String badPhone(String phone, long error) {
+        return "номер '" + phone + "': " + PhoneNumbers.describe(error);
+    }
+
+    // Присоединяет итог следующего по файлу куска: номера его строк сдвигаются на длину этого
+    void append(ImportReport next) {
+        imported += next.imported;
+        rejected += next.rejected;
+        for (Rejection rejection : next.sample) {
+            if (!wantsReason()) {
+                break;
+            }
+            sample.add(new Rejection(lines + rejection.line, rejection.reason));
+        }
+        lines += next.lines;
+    }
+}
+
+// Файл, отображенный в память кусками по 1 ГБ: MappedByteBuffer адресуется int-ом,
+// а снимок на десятки миллионов контактов может быть больше 2 ГБ.
+class MappedFile implements Closeable {
+    private static final int CHUNK_SHIFT = 30;
+    private static final long CHUNK_MASK = (1L << CHUNK_SHIFT) - 1;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer[] chunks;
+    private final long size;
+
+    MappedFile(Path path) throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.READ);
+        size = channel.size();
+        int count = (int) ((size + CHUNK_MASK) >>> CHUNK_SHIFT);
+        chunks = new MappedByteBuffer[count];
+        for (int i = 0; i < count; i++) {
+            long start = (long) i << CHUNK_SHIFT;
+            chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(CHUNK_MASK + 1, size - start));
+        }
+    }
+
+    long size() { return size; }
+
+    byte get(long pos) {
+        return chunks[(int) (pos >>> CHUNK_SHIFT)].get((int) (pos & CHUNK_MASK));
+    }
+
+    int getUnsignedShort(long pos) {
+        int offset = (int) (pos & CHUNK_MASK);
+        MappedByteBuffer chunk = chunks[(int) (pos >>> CHUNK_SHIFT)];
+        if (offset + 2 <= chunk.limit()) {
+            return chunk.getShort(offset) & 0xFFFF;
+        }
+        return (int) readSlow(pos, 2);
+    }
+
+    int getInt(long pos) {
+        int offset = (int) (pos & CHUNK_MASK);
+        MappedByteBuffer chunk = chunks[(int) (pos >>> CHUNK_SHIFT)];
+        if (offset + 4 <= chunk.limit()) {
+            return chunk.getInt(offset);
+        }
+        return (int) readSlow(pos, 4);
+    }
+
+    long getLong(long pos) {
+        int offset = (int) (pos & CHUNK_MASK);
+        MappedByteBuffer chunk = chunks[(int) (pos >>> CHUNK_SHIFT)];
+        if (offset + 8 <= chunk.limit()) {
+            return chunk.getLong(offset);
+        }
+        return readSlow(pos, 8);
+    }
+
+    void getBytes(long pos, byte[] dst, int length) {
+        for (int i = 0; i < length; ) {
+            long p = pos + i;
+            MappedByteBuffer chunk = chunks[(int) (p >>> CHUNK_SHIFT)];
+            int offset = (int) (p & CHUNK_MASK);
+            int n = Math.min(length - i, chunk.limit() - offset);
+            chunk.get(offset, dst, i, n);
+            i += n;
+        }
+    }
+
+    // Значение, разрезанное границей кусков, собирается побайтно (big-endian)
+    private long readSlow(long pos, int bytes) {
+        long value = 0;
+        for (int i = 0; i < bytes; i++) {
+            value = (value << 8) | (get(pos + i) & 0xFF);
+        }
+        return value;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
+
+/*
+ * Бинарный снимок телефонной книги (версия 1, big-endian):
+ *   заголовок  : magic "PBKS", int версия, int число контактов, int число номеров,
+ *                long смещение индекса имен, long смещение индекса номеров
+ *   записи     : ushort длина имени, имя в UTF-8, ushort число номеров, long[] упакованные номера
+ *   индекс имен: long[] смещения записей в порядке возрастания имен
+ *   индекс номеров: пары (long номер, int порядковый номер записи), отсортированные по номеру
+ * Записи пишутся в порядке имен, так что загрузка строит индексы хранилища за один проход:
+ * имена уже отсортированы, а индекс номеров готов и не требует разбора номеров записей.
+ */
+class PhoneBookSnapshot implements Closeable {
+    static final int MAGIC = 0x50424B53; // "PBKS"
+    static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+    private static final int PHONE_ENTRY_SIZE = 12;
+    private static final int MAX_FIELD = 0xFFFF;
+
+    private final MappedFile file;
+    private final int contactCount;
+    private final int phoneCount;
+    private final long nameIndexOffset;
+    private final long phoneIndexOffset;
+
+    private PhoneBookSnapshot(MappedFile file) throws IOException {
+        this.file = file;
+        if (file.size() < HEADER_SIZE || file.getInt(0) != MAGIC) {
+            throw new IOException("файл не является снимком телефонной книги");
+        }
+        int version = file.getInt(4);
+        if (version != VERSION) {
+            throw new IOException("неподдерживаемая версия снимка: " + version);
+        }
+        contactCount = file.getInt(8);
+        phoneCount = file.getInt(12);
+        nameIndexOffset = file.getLong(16);
+        phoneIndexOffset = file.getLong(24);
+        if (nameIndexOffset + 8L * contactCount != phoneIndexOffset
+                || phoneIndexOffset + (long) PHONE_ENTRY_SIZE * phoneCount != file.size()) {
+            throw new IOException("снимок поврежден");
+        }
+    }
+
+    static PhoneBookSnapshot open(Path path) throws IOException {
+        MappedFile file = new MappedFile(path);
+        try {
+            return new PhoneBookSnapshot(file);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    // contacts должны идти в порядке возрастания имен (как values() у TreeMap), owners - номер ->
+    // порядковый номер владельца в contacts. Обход один: контакты могут читаться с диска по ходу записи.
+    static void write(Path path, Collection<Contact> contacts, LongIntHashMap owners) throws IOException {
+        int count = contacts.size();
+        long[] recordOffsets = new long[count];
+        long[] phoneKeys = new long[Math.max(16, count)];
+        int[] phoneOwners = new int[phoneKeys.length];
+
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+            long position = HEADER_SIZE;
+            channel.position(HEADER_SIZE);
+
+            int ordinal = 0;
+            int phoneIndex = 0;
+            for (Contact contact : contacts) {
+                byte[] name = contact.getName().getBytes(StandardCharsets.UTF_8);
+                List<String> phones = contact.getPhoneNumbers();
+                if (name.length > MAX_FIELD || phones.size() > MAX_FIELD) {
+                    throw new IOException("контакт слишком велик для снимка: " + contact.getName());
+                }
+                int recordSize = 4 + name.length + 8 * phones.size();
+                ensureRoom(channel, buffer, recordSize);
+                if (phoneIndex + phones.size() > phoneKeys.length) {
+                    int capacity = Math.max(phoneIndex + phones.size(), phoneKeys.length * 2);
+                    phoneKeys = Arrays.copyOf(phoneKeys, capacity);
+                    phoneOwners = Arrays.copyOf(phoneOwners, capacity);
+                }
+                recordOffsets[ordinal] = position;
+                buffer.putShort((short) name.length).put(name).putShort((short) phones.size());
+                for (String phone : phones) {
+                    long packed = PhoneNumbers.pack(phone);
+                    if (packed < 0) {
+                        throw new IOException("номер нельзя упаковать: " + phone + " (" + contact.getName() + ")");
+                    }
+                    buffer.putLong(packed);
+                    // Общий номер в индексе остается за тем, за кем он в книге, а не за последним по имени
+                    if (owners.get(packed) == ordinal) {
+                        phoneKeys[phoneIndex] = packed;
+                        phoneOwners[phoneIndex++] = ordinal;
+                    }
+                }
+                position += recordSize;
+                ordinal++;
+            }
+
+            long nameIndexOffset = position;
+            for (long offset : recordOffsets) {
+                ensureRoom(channel, buffer, 8);
+                buffer.putLong(offset);
+            }
+            position += 8L * count;
+
+            int phoneTotal = phoneIndex;
+            sortByKey(phoneKeys, phoneOwners, 0, phoneTotal - 1);
+            int unique = 0;
+            for (int i = 0; i < phoneTotal; i++) {
+                if (i + 1 < phoneTotal && phoneKeys[i + 1] == phoneKeys[i]) {
+                    continue;
+                }
+                ensureRoom(channel, buffer, PHONE_ENTRY_SIZE);
+                buffer.putLong(phoneKeys[i]).putInt(phoneOwners[i]);
+                unique++;
+            }
+            long phoneIndexOffset = position;
+            drain(channel, buffer);
+
+            buffer.putInt(MAGIC).putInt(VERSION).putInt(count).putInt(unique)
+                    .putLong(nameIndexOffset).putLong(phoneIndexOffset);
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer, HEADER_SIZE - buffer.remaining());
+            }
+            channel.force(true);
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    int size() { return contactCount; }
+
+    int phoneCount() { return phoneCount; }
+
+    // Контакт с порядковым номером ordinal в порядке имен
+    Contact get(int ordinal) {
+        return readContact(recordOffset(ordinal));
+    }
+
+    void forEach(Consumer<Contact> action) {
+        for (int i = 0; i < contactCount; i++) {
+            action.accept(get(i));
+        }
+    }
+
+    interface PhoneEntryConsumer {
+        void accept(long key, int ordinal);
+    }
+
+    // Индекс номеров как есть: упакованные номера по возрастанию, у каждого - порядковый номер
+    // записи владельца. Повторов нет, общий номер отдан тому контакту, за которым он был в книге.
+    void forEachPhone(PhoneEntryConsumer action) {
+        for (int i = 0; i < phoneCount; i++) {
+            long entry = phoneIndexOffset + (long) i * PHONE_ENTRY_SIZE;
+            action.accept(file.getLong(entry), file.getInt(entry + 8));
+        }
+    }
+
+    private long recordOffset(int ordinal) {
+        return file.getLong(nameIndexOffset + 8L * ordinal);
+    }
+
+    private String readName(long offset) {
+        int length = file.getUnsignedShort(offset);
+        byte[] bytes = new byte[length];
+        file.getBytes(offset + 2, bytes, length);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private Contact readContact(long offset) {
+        String name = readName(offset);
+        long phonesOffset = offset + 2 + file.getUnsignedShort(offset);
+        int phones = file.getUnsignedShort(phonesOffset);
+        Contact contact = new Contact(name);
+        for (int i = 0; i < phones; i++) {
+            contact.addPhoneNumber(PhoneNumbers.unpack(file.getLong(phonesOffset + 2 + 8L * i)));
+        }
+        return contact;
+    }
+
+    private static void ensureRoom(FileChannel channel, ByteBuffer buffer, int bytes) throws IOException {
+        if (buffer.remaining() < bytes) {
+            drain(channel, buffer);
+        }
+    }
+
+    private static void drain(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    // Сортировка пар (ключ, значение) по ключу, при равных ключах - по значению
+    static void sortByKey(long[] keys, int[] values, int low, int high) {
+        while (high - low > 16) {
+            int mid = (low + high) >>> 1;
+            long pivotKey = keys[mid];
+            int pivotValue = values[mid];
+            int i = low, j = high;
+            while (i <= j) {
+                while (keys[i] < pivotKey || (keys[i] == pivotKey && values[i] < pivotValue)) i++;
+                while (keys[j] > pivotKey || (keys[j] == pivotKey && values[j] > pivotValue)) j--;
+                if (i <= j) {
+                    long k = keys[i]; keys[i] = keys[j]; keys[j] = k;
+                    int v = values[i]; values[i] = values[j]; values[j] = v;
+                    i++;
+                    j--;
+                }
+            }
+            // рекурсия в меньшую часть, цикл по большей - глубина стека O(log n)
+            if (j - low < high - i) {
+                sortByKey(keys, values, low, j);
+                low = i;
+            } else {
+                sortByKey(keys, values, i, high);
+                high = j;
+            }
+        }
+        for (int i = low + 1; i <= high; i++) {
+            long k = keys[i];
+            int v = values[i];
+            int j = i - 1;
+            while (j >= low && (keys[j] > k || (keys[j] == k && values[j] > v))) {
+                keys[j + 1] = keys[j];
+                values[j + 1] = values[j];
+                j--;
+            }
+            keys[j + 1] = k;
+            values[j + 1] = v;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+}
+
+// Отсортированные по имени массивы контактов: слияние и массовое построение TreeMap
+class SortedContacts {
+    static final Comparator<Contact> BY_NAME = Comparator.comparing(Contact::getName);
+
+    private SortedContacts() {}
+
+    // Устойчивая сортировка и удаление повторов имен: остается последний по порядку добавления
+    static Contact[] sortUnique(List<Contact> contacts) {
+        Contact[] sorted = contacts.toArray(new Contact[0]);
+        Arrays.sort(sorted, BY_NAME);
+        int size = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            if (i + 1 < sorted.length && sorted[i + 1].getName().equals(sorted[i].getName())) {
+                continue;
+            }
+            sorted[size++] = sorted[i];
+        }
+        return Arrays.copyOf(sorted, size);
+    }
+
+    // Слияние двух отсортированных массивов без повторов; при равных именах побеждает newer
+    static Contact[] merge(Contact[] older, Contact[] newer) {
+        Contact[] merged = new Contact[older.length + newer.length];
+        int i = 0, j = 0, size = 0;
+        while (i < older.length && j < newer.length) {
+            int cmp = older[i].getName().compareTo(newer[j].getName());
+            if (cmp < 0) {
+                merged[size++] = older[i++];
+            } else if (cmp > 0) {
+                merged[size++] = newer[j++];
+            } else {
+                merged[size++] = newer[j++];
+                i++;
+            }
+        }
+        while (i < older.length) merged[size++] = older[i++];
+        while (j < newer.length) merged[size++] = newer[j++];
+        return size == merged.length ? merged : Arrays.copyOf(merged, size);
+    }
+
+    // Слияние индекса имен (имя -> id) с отсортированными новыми контактами; при равных именах
+    // побеждает новый. TreeMap и ConcurrentSkipListMap строятся из результата за O(n).
+    static SortedMap<String, Integer> mergeIds(SortedMap<String, Integer> older, Contact[] newer) {
+        String[] names = new String[older.size() + newer.length];
+        Integer[] ids = new Integer[names.length];
+        int j = 0, size = 0;
+        for (Map.Entry<String, Integer> entry : older.entrySet()) {
+            String name = entry.getKey();
+            int cmp = -1;
+            while (j < newer.length && (cmp = newer[j].getName().compareTo(name)) < 0) {
+                names[size] = newer[j].getName();
+                ids[size++] = newer[j++].getId();
+            }
+            if (cmp == 0) {
+                names[size] = name;
+                ids[size++] = newer[j++].getId();
+            } else {
+                names[size] = name;
+                ids[size++] = entry.getValue();
+            }
+        }
+        while (j < newer.length) {
+            names[size] = newer[j].getName();
+            ids[size++] = newer[j++].getId();
+        }
+        return new SortedArrayView<>(names, ids, size);
+    }
+
+    // Отсортированные массивы как SortedMap только для чтения; поиск и поддиапазоны - двоичным поиском
+    private static final class SortedArrayView<V> extends AbstractMap<String, V>
+            implements SortedMap<String, V> {
+        private final String[] keys;
+        private final V[] values;
+        private final int from;
+        private final int to;
+        private final String low;   // границы поддиапазона: low включительно, high исключая; null - без границы
+        private final String high;
+
+        SortedArrayView(String[] keys, V[] values, int size) {
+            this(keys, values, 0, size, null, null);
+        }
+
+        private SortedArrayView(String[] keys, V[] values, int from, int to, String low, String high) {
+            this.keys = keys;
+            this.values = values;
+            this.from = from;
+            this.to = to;
+            this.low = low;
+            this.high = high;
+        }
+
+        @Override
+        public Set<Entry<String, V>> entrySet() {
+            return new AbstractSet<>() {
+                @Override
+                public Iterator<Entry<String, V>> iterator() {
+                    return new Iterator<>() {
+                        private int next = from;
+
+                        @Override
+                        public boolean hasNext() {
+                            return next < to;
+                        }
+
+                        @Override
+                        public Entry<String, V> next() {
+                            if (next >= to) {
+                                throw new NoSuchElementException();
+                            }
+                            int index = next++;
+                            return new SimpleImmutableEntry<>(keys[index], values[index]);
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return to - from;
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return to - from;
+        }
+
+        @Override
+        public V get(Object key) {
+            int index = indexOf(key);
+            return index >= 0 ? values[index] : null;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return indexOf(key) >= 0;
+        }
+
+        @Override
+        public Comparator<? super String> comparator() {
+            return null;
+        }
+
+        @Override
+        public String firstKey() {
+            if (from == to) {
+                throw new NoSuchElementException();
+            }
+            return keys[from];
+        }
+
+        @Override
+        public String lastKey() {
+            if (from == to) {
+                throw new NoSuchElementException();
+            }
+            return keys[to - 1];
+        }
+
+        @Override
+        public SortedMap<String, V> subMap(String fromKey, String toKey) {
+            if (fromKey.compareTo(toKey) > 0) {
+                throw new IllegalArgumentException("fromKey > toKey");
+            }
+            return range(fromKey, toKey);
+        }
+
+        @Override
+        public SortedMap<String, V> headMap(String toKey) {
+            return range(low, Objects.requireNonNull(toKey));
+        }
+
+        @Override
+        public SortedMap<String, V> tailMap(String fromKey) {
+            return range(Objects.requireNonNull(fromKey), high);
+        }
+
+        private SortedMap<String, V> range(String fromKey, String toKey) {
+            checkBound(fromKey);
+            checkBound(toKey);
+            int start = fromKey == null ? from : lowerBound(fromKey);
+            int end = toKey == null ? to : lowerBound(toKey);
+            return new SortedArrayView<>(keys, values, start, end, fromKey, toKey);
+        }
+
+        private void checkBound(String key) {
+            if (key != null && ((low != null && key.compareTo(low) < 0) || (high != null && key.compareTo(high) > 0))) {
+                throw new IllegalArgumentException("ключ вне диапазона: " + key);
+            }
+        }
+
+        private int indexOf(Object key) {
+            if (!(key instanceof String name)) {
+                return -1;
+            }
+            int index = lowerBound(name);
+            return index < to && keys[index].equals(name) ? index : -1;
+        }
+
+        // Первая позиция в [from, to) с ключом не меньше key
+        private int lowerBound(String key) {
+            int lo = from;
+            int hi = to;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (keys[mid].compareTo(key) < 0) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+    }
+}
+
+// Параллельный импорт текстового файла "имя|номер,номер": файл делится на диапазоны байт
+// по границам строк, каждый диапазон разбирается в ForkJoinPool в собственные частичные индексы,
+// которые затем сливаются. Результат совпадает с построчным импортом, включая
+// "последний выигрывает" для повторяющихся имен и номеров.
+class ParallelContactImporter {
+    private static final int LEAF_BYTES = 4 << 20;
+
+    private final ForkJoinPool pool;
+
+    ParallelContactImporter(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    static final class Result {
+        final Contact[] contacts;           // по имени, без повторов
+        final List<PhoneList> phoneLists;   // номера кусков в порядке файла
+        final ImportReport report;
+
+        Result(Contact[] contacts, List<PhoneList> phoneLists, ImportReport report) {
+            this.contacts = contacts;
+            this.phoneLists = phoneLists;
+            this.report = report;
+        }
+    }
+
+    // Упакованные номера в порядке файла и контакты, которые их взяли; повторы не схлопываются -
+    // при слиянии с книгой последний по файлу владелец и так побеждает
+    static final class PhoneList {
+        private long[] keys = new long[1024];
+        private Contact[] owners = new Contact[1024];
+        private int size;
+
+        int size() {
+            return size;
+        }
+
+        long key(int index) {
+            return keys[index];
+        }
+
+        Contact owner(int index) {
+            return owners[index];
+        }
+
+        private void add(long key) {
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, size * 2);
+                owners = Arrays.copyOf(owners, size * 2);
+            }
+            keys[size++] = key;
+        }
+    }
+
+    Result importFile(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return pool.invoke(new ChunkTask(channel, 0, channel.size()));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private static final class ChunkTask extends RecursiveTask<Result> {
+        private final FileChannel channel;
+        private final long start;
+        private final long end;
+
+        ChunkTask(FileChannel channel, long start, long end) {
+            this.channel = channel;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected Result compute() {
+            try {
+                if (end - start > LEAF_BYTES) {
+                    long mid = nextLineStart(channel, start + (end - start) / 2, end);
+                    if (mid < end) {
+                        ChunkTask left = new ChunkTask(channel, start, mid);
+                        left.fork();
+                        Result right = new ChunkTask(channel, mid, end).compute();
+                        return combine(left.join(), right);
+                    }
+                }
+                return parse(channel.map(FileChannel.MapMode.READ_ONLY, start, end - start));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    private static Result combine(Result left, Result right) {
+        List<PhoneList> phones = new ArrayList<>(left.phoneLists.size() + right.phoneLists.size());
+        phones.addAll(left.phoneLists);
+        phones.addAll(right.phoneLists);
+        left.report.append(right.report);
+        return new Result(SortedContacts.merge(left.contacts, right.contacts), phones, left.report);
+    }
+
+    // Позиция сразу после первого '\n' не раньше from (или end, если перевода строки нет)
+    private static long nextLineStart(FileChannel channel, long from, long end) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        long position = from;
+        while (position < end) {
+            buffer.clear();
+            int read = channel.read(buffer, position);
+            if (read <= 0) {
+                break;
+            }
+            for (int i = 0; i < read && position + i < end; i++) {
+                if (buffer.get(i) == '\n') {
+                    return position + i + 1;
+                }
+            }
+            position += read;
+        }
+        return end;
+    }
+
+    private static Result parse(ByteBuffer chunk) {
+        List<Contact> contacts = new ArrayList<>();
+        PhoneList phones = new PhoneList();
+        ImportReport report = new ImportReport();
+        int limit = chunk.limit();
+        int lineStart = 0;
+        while (lineStart < limit) {
+            int lineEnd = lineStart;
+            while (lineEnd < limit && chunk.get(lineEnd) != '\n' && chunk.get(lineEnd) != '\r') {
+                lineEnd++;
+            }
+            long line = report.nextLine();
+            if (lineEnd > lineStart) {
+                Contact contact = parseLine(chunk, lineStart, lineEnd, phones, line, report);
+                if (contact != null) {
+                    contacts.add(contact);
+                    report.accept();
+                }
+            }
+            // "\r\n" - один перевод строки, как в BufferedReader.readLine
+            if (lineEnd < limit && chunk.get(lineEnd) == '\r' && lineEnd + 1 < limit && chunk.get(lineEnd + 1) == '\n') {
+                lineEnd++;
+            }
+            lineStart = lineEnd + 1;
+        }
+        return new Result(SortedContacts.sortUnique(contacts), List.of(phones), report);
+    }
+
+    // Те же правила, что у line.split("\\|") с проверкой parts.length == 2:
+    // после отбрасывания пустых полей в конце строки должно остаться ровно два поля.
+    // Номера нормализуются прямо из буфера; строка с неверным номером отвергается целиком.
+    private static Contact parseLine(ByteBuffer chunk, int start, int end,
+                                     PhoneList phones, long line, ImportReport report) {
+        int firstBar = -1, secondBar = end;
+        for (int i = start; i < end; i++) {
+            if (chunk.get(i) == '|') {
+                if (firstBar < 0) {
+                    firstBar = i;
+                } else {
+                    secondBar = i;
+                    break;
+                }
+            }
+        }
+        if (firstBar < 0 || firstBar + 1 == secondBar) {
+            report.reject(line, ImportReport.BAD_FORMAT);
+            return null;
+        }
+        for (int i = secondBar; i < end; i++) {
+            if (chunk.get(i) != '|') {
+                report.reject(line, ImportReport.BAD_FORMAT);
+                return null;
+            }
+        }
+
+        int mark = phones.size;
+        int phoneStart = firstBar + 1;
+        for (int i = phoneStart; i <= secondBar; i++) {
+            if (i == secondBar || chunk.get(i) == ',') {
+                if (i > phoneStart) {
+                    long key = PhoneNumbers.normalize(chunk, phoneStart, i);
+                    if (key < 0) {
+                        phones.size = mark;
+                        report.reject(line, report.wantsReason()
+                                ? ImportReport.badPhone(decode(chunk, phoneStart, i), key) : null);
+                        return null;
+                    }
+                    phones.add(key);
+                }
+                phoneStart = i + 1;
+            }
+        }
+
+        Contact contact = new Contact(decode(chunk, start, firstBar));
+        for (int i = mark; i < phones.size; i++) {
+            contact.addPhoneNumber(PhoneNumbers.unpack(phones.keys[i]));
+            phones.owners[i] = contact;
+        }
+        return contact;
+    }
+
+    private static String decode(ByteBuffer chunk, int start, int end) {
+        byte[] bytes = new byte[end - start];
+        chunk.get(start, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
+
+// Сжатое префиксное дерево (radix tree) имен контактов для поиска по началу имени.
+// Стоимость запроса зависит от длины префикса и числа результатов, но не от размера книги.
+class NameTrie {
+    private static final class Node {
+        String label;                 // фрагмент имени на ребре, ведущем в узел
+        boolean terminal;             // здесь заканчивается имя
+        char[] keys = NO_KEYS;        // первые символы меток детей, по возрастанию
+        Node[] children = NO_CHILDREN;
+        int childCount;
+
+        Node(String label, boolean terminal) {
+            this.label = label;
+            this.terminal = terminal;
+        }
+
+        int find(char c) {
+            return Arrays.binarySearch(keys, 0, childCount, c);
+        }
+
+        void insertChild(int at, Node child) {
+            if (childCount == keys.length) {
+                int capacity = Math.max(2, childCount * 2);
+                keys = Arrays.copyOf(keys, capacity);
+                children = Arrays.copyOf(children, capacity);
+            }
+            System.arraycopy(keys, at, keys, at + 1, childCount - at);
+            System.arraycopy(children, at, children, at + 1, childCount - at);
+            keys[at] = child.label.charAt(0);
+            children[at] = child;
+            childCount++;
+        }
+
+        void removeChild(int at) {
+            System.arraycopy(keys, at + 1, keys, at, childCount - at - 1);
+            System.arraycopy(children, at + 1, children, at, childCount - at - 1);
+            children[--childCount] = null;
+        }
+    }
+
+    private static final char[] NO_KEYS = new char[0];
+    private static final Node[] NO_CHILDREN = new Node[0];
+
+    private final Node root = new Node("", false);
+    private int size;
+
+    int size() { return size; }
+
+    // true, если имени еще не было
+    boolean add(String name) {
+        Node node = root;
+        int i = 0;
+        while (true) {
+            if (i == name.length()) {
+                if (node.terminal) {
+                    return false;
+                }
+                node.terminal = true;
+                size++;
+                return true;
+            }
+            int at = node.find(name.charAt(i));
+            if (at < 0) {
+                node.insertChild(-at - 1, new Node(name.substring(i), true));
+                size++;
+                return true;
+            }
+            Node child = node.children[at];
+            int common = commonPrefix(child.label, name, i);
+            if (common == child.label.length()) {
+                node = child;
+                i += common;
+                continue;
+            }
+            // Разрезаем ребро: промежуточный узел получает общую часть метки
+            Node middle = new Node(child.label.substring(0, common), false);
+            child.label = child.label.substring(common);
+            middle.insertChild(0, child);
+            node.children[at] = middle;
+            if (i + common == name.length()) {
+                middle.terminal = true;
+            } else {
+                Node leaf = new Node(name.substring(i + common), true);
+                middle.insertChild(-middle.find(leaf.label.charAt(0)) - 1, leaf);
+            }
+            size++;
+            return true;
+        }
+    }
+
+    // true, если имя было в дереве
+    boolean remove(String name) {
+        Node parent = null, grandparent = null;
+        int parentAt = -1, grandparentAt = -1;
+        Node node = root;
+        int i = 0;
+        while (i < name.length()) {
+            int at = node.find(name.charAt(i));
+            if (at < 0) {
+                return false;
+            }
+            Node child = node.children[at];
+            if (!name.startsWith(child.label, i)) {
+                return false;
+            }
+            grandparent = parent;
+            grandparentAt = parentAt;
+            parent = node;
+            parentAt = at;
+            node = child;
+            i += child.label.length();
+        }
+        if (!node.terminal) {
+            return false;
+        }
+        node.terminal = false;
+        size--;
+
+        if (node == root) {
+            return true;
+        }
+        if (node.childCount == 0) {
+            parent.removeChild(parentAt);
+            // Родитель без имени с единственным ребенком сливается с ним
+            if (parent != root && !parent.terminal && parent.childCount == 1) {
+                grandparent.children[grandparentAt] = merge(parent);
+            }
+        } else if (node.childCount == 1) {
+            parent.children[parentAt] = merge(node);
+        }
+        return true;
+    }
+
+    // До limit имен с данным префиксом в порядке String.compareTo
+    List<String> prefixSearch(String prefix, int limit) {
+        List<String> result = new ArrayList<>(Math.min(limit, 64));
+        if (limit <= 0) {
+            return result;
+        }
+        Node node = root;
+        int i = 0;
+        StringBuilder path = new StringBuilder(prefix.length() + 16);
+        while (i < prefix.length()) {
+            int at = node.find(prefix.charAt(i));
+            if (at < 0) {
+                return result;
+            }
+            Node child = node.children[at];
+            int common = commonPrefix(child.label, prefix, i);
+            if (common < child.label.length() && i + common < prefix.length()) {
+                return result;
+            }
+            path.append(child.label);
+            node = child;
+            i += common;
+            if (common < child.label.length()) {
+                break; // префикс закончился внутри метки ребра
+            }
+        }
+        collect(node, path, result, limit);
+        return result;
+    }
+
+    private static void collect(Node node, StringBuilder path, List<String> result, int limit) {
+        if (node.terminal) {
+            result.add(path.toString());
+        }
+        for (int c = 0; c < node.childCount && result.size() < limit; c++) {
+            Node child = node.children[c];
+            int length = path.length();
+            path.append(child.label);
+            collect(child, path, result, limit);
+            path.setLength(length);
+        }
+    }
+
+    private static Node merge(Node node) {
+        Node child = node.children[0];
+        child.label = node.label + child.label;
+        return child;
+    }
+
+    private static int commonPrefix(String label, String name, int from) {
+        int max = Math.min(label.length(), name.length() - from);
+        int n = 0;
+        while (n < max && label.charAt(n) == name.charAt(from + n)) {
+            n++;
+        }
+        return n;
+    }
+}
+
+// Отображение long -> int с открытой адресацией и линейным пробированием.
+// Ключ 0 обозначает пустую ячейку (упакованный номер телефона никогда не равен 0),
+// удаление - обратным сдвигом, без надгробий. Поиск не создает объектов.
+// Изменения должны быть сериализованы снаружи; get допускает гонку с писателем
+// (оптимистичное чтение StampedLock): массивы ключей и значений публикуются одной ссылкой,
+// а в таблице всегда не меньше четверти пустых ячеек, так что поиск завершается.
+class LongIntHashMap {
+    static final int MISSING = -1;
+    private static final int MIN_CAPACITY = 16;
+
+    private static final class Table {
+        final long[] keys;
+        final int[] values;
+        final int mask;
+
+        Table(int capacity) {
+            keys = new long[capacity];
+            values = new int[capacity];
+            mask = capacity - 1;
+        }
+    }
+
+    private volatile Table table;
+    private int size;
+    private int resizeAt;
+
+    LongIntHashMap() {
+        this(MIN_CAPACITY);
+    }
+
+    LongIntHashMap(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity * 3L / 4 < expectedSize) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    int size() { return size; }
+
+    // Таблица сразу под expectedSize ключей: массовая загрузка обходится без промежуточных rehash
+    void ensureCapacity(int expectedSize) {
+        int capacity = table.keys.length;
+        while (capacity * 3L / 4 < expectedSize) {
+            capacity <<= 1;
+        }
+        if (capacity > table.keys.length) {
+            rehash(capacity);
+        }
+    }
+
+    // Независимая копия: ее можно читать и менять, пока меняется оригинал
+    LongIntHashMap copy() {
+        Table t = table;
+        LongIntHashMap copy = new LongIntHashMap();
+        copy.table = new Table(t.keys.length);
+        System.arraycopy(t.keys, 0, copy.table.keys, 0, t.keys.length);
+        System.arraycopy(t.values, 0, copy.table.values, 0, t.values.length);
+        copy.size = size;
+        copy.resizeAt = resizeAt;
+        return copy;
+    }
+
+    // Замена всех значений на mapping(value); ключи и их расположение не меняются
+    void replaceValues(IntUnaryOperator mapping) {
+        Table t = table;
+        for (int i = 0; i < t.keys.length; i++) {
+            if (t.keys[i] != 0) {
+                t.values[i] = mapping.applyAsInt(t.values[i]);
+            }
+        }
+    }
+
+    // Байт, занятых таблицей (без заголовков массивов)
+    long tableBytes() {
+        return table.keys.length * (8L + 4L);
+    }
+
+    int get(long key) {
+        // 0 - метка пустой ячейки: без проверки вернули бы значение, оставшееся в пустой ячейке
+        if (key == 0) {
+            return MISSING;
+        }
+        Table t = table;
+        long[] keys = t.keys;
+        int i = hash(key) & t.mask;
+        while (true) {
+            long k = keys[i];
+            if (k == key) {
+                return t.values[i];
+            }
+            if (k == 0) {
+                return MISSING;
+            }
+            i = (i + 1) & t.mask;
+        }
+    }
+
+    // Возвращает прежнее значение или MISSING
+    int put(long key, int value) {
+        if (key == 0) {
+            throw new IllegalArgumentException("ключ 0 зарезервирован");
+        }
+        Table t = table;
+        int i = hash(key) & t.mask;
+        while (true) {
+            long k = t.keys[i];
+            if (k == key) {
+                int previous = t.values[i];
+                t.values[i] = value;
+                return previous;
+            }
+            if (k == 0) {
+                t.values[i] = value;
+                t.keys[i] = key;
+                if (++size > resizeAt) {
+                    rehash(t.keys.length << 1);
+                }
+                return MISSING;
+            }
+            i = (i + 1) & t.mask;
+        }
+    }
+
+    int remove(long key) {
+        int i = indexOf(key);
+        if (i < 0) {
+            return MISSING;
+        }
+        int previous = table.values[i];
+        removeAt(i);
+        return previous;
+    }
+
+    // Удаляет ключ, только если он все еще указывает на value
+    boolean remove(long key, int value) {
+        int i = indexOf(key);
+        if (i < 0 || table.values[i] != value) {
+            return false;
+        }
+        removeAt(i);
+        return true;
+    }
+
+    private int indexOf(long key) {
+        Table t = table;
+        int i = hash(key) & t.mask;
+        while (true) {
+            long k = t.keys[i];
+            if (k == key && key != 0) {
+                return i;
+            }
+            if (k == 0) {
+                return -1;
+            }
+            i = (i + 1) & t.mask;
+        }
+    }
+
+    // Сдвигаем назад записи цепочки, которые могут занять освободившуюся ячейку
+    private void removeAt(int hole) {
+        Table t = table;
+        int i = hole;
+        while (true) {
+            i = (i + 1) & t.mask;
+            long k = t.keys[i];
+            if (k == 0) {
+                break;
+            }
+            int ideal = hash(k) & t.mask;
+            if (((i - ideal) & t.mask) >= ((i - hole) & t.mask)) {
+                t.keys[hole] = k;
+                t.values[hole] = t.values[i];
+                hole = i;
+            }
+        }
+        t.keys[hole] = 0;
+        size--;
+    }
+
+    private void rehash(int capacity) {
+        Table old = table;
+        Table t = new Table(capacity);
+        for (int j = 0; j < old.keys.length; j++) {
+            long k = old.keys[j];
+            if (k != 0) {
+                int i = hash(k) & t.mask;
+                while (t.keys[i] != 0) {
+                    i = (i + 1) & t.mask;
+                }
+                t.keys[i] = k;
+                t.values[i] = old.values[j];
+            }
+        }
+        table = t;
+        resizeAt = capacity / 4 * 3;
+    }
+
+    private void allocate(int capacity) {
+        table = new Table(capacity);
+        resizeAt = capacity / 4 * 3;
+    }
+
+    private static int hash(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+}
+
+// Контакты по целочисленным номерам (id). Индексы хранилища ссылаются на контакты только через id,
+// а сами контакты лежат здесь: в памяти (ContactRegistry) или в страничном файле (PagedContactTable).
+// Изменения сериализуются снаружи блокировкой записи.
+interface ContactTable extends Closeable {
+    int register(Contact contact);
+
+    Contact get(int id);
+
+    // Как get, но без заполнения кэша: для служебных чтений и полного обхода
+    Contact peek(int id);
+
+    String nameOf(int id);
+
+    // Новая версия контакта занимает номер прежней
+    void replace(Contact previous, Contact updated);
+
+    void release(Contact contact);
+
+    // Можно ли читать без блокировки, проверяя потом оптимистичную метку
+    boolean allowsOptimisticReads();
+
+    // Контакты ids на момент вызова (под блокировкой); обходить можно без блокировок до close()
+    Frozen freeze(int[] ids);
+
+    default ContactCache cache() {
+        return null;
+    }
+
+    @Override
+    default void close() throws IOException {}
+
+    abstract class Frozen extends AbstractList<Contact> implements Closeable {
+        @Override
+        public void close() {}
+    }
+}
+
+// Контакты в памяти; освободившиеся номера используются повторно.
+// get можно вызывать параллельно с изменениями.
+class ContactRegistry implements ContactTable {
+    private volatile Contact[] contacts = new Contact[1024];
+    private int[] freeIds = new int[64];
+    private int freeCount;
+    private int nextId;
+
+    @Override
+    public int register(Contact contact) {
+        int id;
+        if (freeCount > 0) {
+            id = freeIds[--freeCount];
+        } else {
+            if (nextId == contacts.length) {
+                contacts = Arrays.copyOf(contacts, contacts.length * 2);
+            }
+            id = nextId++;
+        }
+        contacts[id] = contact;
+        contact.setId(id);
+        return id;
+    }
+
+    @Override
+    public Contact get(int id) {
+        Contact[] contacts = this.contacts;
+        return id >= 0 && id < contacts.length ? contacts[id] : null;
+    }
+
+    @Override
+    public Contact peek(int id) {
+        return get(id);
+    }
+
+    @Override
+    public String nameOf(int id) {
+        Contact contact = get(id);
+        return contact == null ? null : contact.getName();
+    }
+
+    @Override
+    public void replace(Contact previous, Contact updated) {
+        int id = previous.getId();
+        contacts[id] = updated;
+        updated.setId(id);
+    }
+
+    @Override
+    public void release(Contact contact) {
+        int id = contact.getId();
+        if (id < 0 || contacts[id] != contact) {
+            return;
+        }
+        contacts[id] = null;
+        contact.setId(-1);
+        if (freeCount == freeIds.length) {
+            freeIds = Arrays.copyOf(freeIds, freeIds.length * 2);
+        }
+        freeIds[freeCount++] = id;
+    }
+
+    @Override
+    public boolean allowsOptimisticReads() {
+        return true;
+    }
+
+    // Опубликованные контакты не меняются, так что достаточно скопировать ссылки
+    @Override
+    public Frozen freeze(int[] ids) {
+        Contact[] frozen = new Contact[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            frozen[i] = contacts[ids[i]];
+        }
+        return new Frozen() {
+            @Override
+            public Contact get(int index) {
+                return frozen[index];
+            }
+
+            @Override
+            public int size() {
+                return frozen.length;
+            }
+        };
+    }
+}
+
+// Кэш декодированных контактов с вытеснением CLOCK. Попадание не берет блокировок: слот находится
+// по id, а id в самом контакте отсекает слот, который тем временем отдан другому контакту.
+// Вставка и вытеснение - под монитором кэша: стрелка идет по кругу, снимает отметки "использован"
+// и вытесняет первый неотмеченный слот. Новый контакт вставляется без отметки, поэтому
+// разовые чтения вытесняются раньше рабочего набора.
+class ContactCache {
+    private final int capacity;
+    private final LongIntHashMap slotsById = new LongIntHashMap();
+    private final AtomicReferenceArray<Contact> slots;
+    private final int[] slotIds;
+    private final byte[] referenced;
+    private int size;
+    private int hand;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    ContactCache(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("размер кэша должен быть положительным: " + capacity);
+        }
+        this.capacity = capacity;
+        slots = new AtomicReferenceArray<>(capacity);
+        slotIds = new int[capacity];
+        referenced = new byte[capacity];
+    }
+
+    Contact get(int id) {
+        int slot = slotsById.get(key(id));
+        Contact contact = slot == LongIntHashMap.MISSING ? null : slots.get(slot);
+        if (contact == null || contact.getId() != id) {
+            misses.increment();
+            return null;
+        }
+        referenced[slot] = 1;
+        hits.increment();
+        return contact;
+    }
+
+    // Без учета в статистике и без отметки об использовании
+    Contact peek(int id) {
+        int slot = slotsById.get(key(id));
+        Contact contact = slot == LongIntHashMap.MISSING ? null : slots.get(slot);
+        return contact != null && contact.getId() == id ? contact : null;
+    }
+
+    synchronized void put(Contact contact) {
+        int id = contact.getId();
+        int slot = slotsById.get(key(id));
+        if (slot != LongIntHashMap.MISSING) {
+            slots.set(slot, contact);
+            return;
+        }
+        slot = size < capacity ? size++ : evict();
+        slotIds[slot] = id;
+        referenced[slot] = 0;
+        slotsById.put(key(id), slot);
+        slots.set(slot, contact);
+    }
+
+    synchronized void remove(int id) {
+        int slot = slotsById.get(key(id));
+        if (slot != LongIntHashMap.MISSING) {
+            slotsById.remove(key(id));
+            slots.set(slot, null);
+            referenced[slot] = 0;
+        }
+    }
+
+    // Не больше двух оборотов стрелки: за первый снимаются все отметки
+    private int evict() {
+        while (true) {
+            int slot = hand;
+            hand = slot + 1 == capacity ? 0 : slot + 1;
+            if (referenced[slot] != 0) {
+                referenced[slot] = 0;
+                continue;
+            }
+            if (slots.get(slot) != null) {
+                slotsById.remove(key(slotIds[slot]), slot);
+                slots.set(slot, null);
+                evictions.increment();
+            }
+            return slot;
+        }
+    }
+
+    // Ключ 0 в LongIntHashMap зарезервирован, а id начинаются с нуля
+    private static long key(int id) {
+        return id + 1L;
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    synchronized int size() {
+        return slotsById.size();
+    }
+
+    long getHits() {
+        return hits.sum();
+    }
+
+    long getMisses() {
+        return misses.sum();
+    }
+
+    long getEvictions() {
+        return evictions.sum();
+    }
+
+    @Override
+    public String toString() {
+        long hits = getHits(), misses = getMisses();
+        return String.format("кэш %d/%d, попаданий %d, промахов %d (%.1f%%), вытеснено %d",
+                size(), capacity, hits, misses, 100.0 * hits / Math.max(1, hits + misses), getEvictions());
+    }
+}
+
+// Контакты в страничном файле. Запись контакта (int id, ushort длина имени, имя UTF-8,
+// ushort число номеров, номера упакованными long) не пересекает границу страницы; контакту
+// больше страницы отводятся целые страницы подряд. В памяти на контакт остаются только положение
+// записи и ссылка на имя (оно же ключ индекса имен); сами контакты читаются через ContactCache.
+// Файл - продолжение кучи, а не хранилище: он создается заново при открытии, за сохранность
+// отвечают снимок и журнал. Место освобожденных записей собирается уплотнением страниц при вставке;
+// пока открыт freeze(), место не переиспользуется, и снятые положения остаются верными.
+class PagedContactTable implements ContactTable {
+    static final int PAGE_SIZE = 8192;
+    private static final int LENGTH_BITS = 24;
+    private static final long LENGTH_MASK = (1L << LENGTH_BITS) - 1;
+    private static final int MAX_FIELD = 0xFFFF;
+
+    private final Path path;
+    private final FileChannel channel;
+    private final ContactCache cache;
+
+    // По id: положение записи (позиция << 24 | длина, 0 - записи нет) и имя
+    private volatile long[] locations = new long[1024];
+    private volatile String[] names = new String[1024];
+    private int[] freeIds = new int[64];
+    private int freeCount;
+    private int nextId;
+
+    // По страницам: сколько байт занято от начала страницы и сколько из них в живых записях
+    private int[] used = new int[64];
+    private int[] live = new int[64];
+    private boolean[] large = new boolean[64];   // страница под контакт больше страницы
+    private boolean[] queued = new boolean[64];  // в списке кандидатов на уплотнение
+    private int pageCount;
+    private int tail = -1;                       // страница, в конец которой идут новые записи
+    private int[] candidates = new int[64];
+    private int candidateCount;
+    private final AtomicInteger pins = new AtomicInteger();
+
+    PagedContactTable(Path path, int cacheSize) throws IOException {
+        this.path = path;
+        this.cache = new ContactCache(cacheSize);
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    @Override
+    public int register(Contact contact) {
+        ByteBuffer record = encode(contact);
+        int id;
+        if (freeCount > 0) {
+            id = freeIds[--freeCount];
+        } else {
+            if (nextId == locations.length) {
+                locations = Arrays.copyOf(locations, nextId * 2);
+                names = Arrays.copyOf(names, nextId * 2);
+            }
+            id = nextId++;
+        }
+        record.putInt(0, id);
+        locations[id] = write(record);
+        names[id] = contact.getName();
+        contact.setId(id);
+        return id;
+    }
+
+    @Override
+    public Contact get(int id) {
+        Contact contact = cache.get(id);
+        if (contact == null) {
+            contact = load(id);
+            if (contact != null) {
+                cache.put(contact);
+            }
+        }
+        return contact;
+    }
+
+    @Override
+    public Contact peek(int id) {
+        Contact contact = cache.peek(id);
+        return contact != null ? contact : load(id);
+    }
+
+    private Contact load(int id) {
+        long[] locations = this.locations;
+        if (id < 0 || id >= locations.length || locations[id] == 0) {
+            return null;
+        }
+        return read(locations[id]);
+    }
+
+    @Override
+    public String nameOf(int id) {
+        String[] names = this.names;
+        return id >= 0 && id < names.length ? names[id] : null;
+    }
+
+    @Override
+    public void replace(Contact previous, Contact updated) {
+        int id = previous.getId();
+        ByteBuffer record = encode(updated);
+        record.putInt(0, id);
+        long location = write(record);
+        free(locations[id]);
+        locations[id] = location;
+        updated.setId(id);
+        cache.put(updated);
+    }
+
+    @Override
+    public void release(Contact contact) {
+        int id = contact.getId();
+        if (id < 0 || id >= nextId || locations[id] == 0) {
+            return;
+        }
+        free(locations[id]);
+        locations[id] = 0;
+        names[id] = null;
+        cache.remove(id);
+        contact.setId(-1);
+        if (freeCount == freeIds.length) {
+            freeIds = Arrays.copyOf(freeIds, freeIds.length * 2);
+        }
+        freeIds[freeCount++] = id;
+    }
+
+    @Override
+    public boolean allowsOptimisticReads() {
+        return false;
+    }
+
+    // Положения снимаются сейчас, записи читаются при обходе мимо кэша
+    @Override
+    public Frozen freeze(int[] ids) {
+        long[] frozen = new long[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            frozen[i] = locations[ids[i]];
+        }
+        pins.incrementAndGet();
+        return new Frozen() {
+            private boolean closed;
+
+            @Override
+            public Contact get(int index) {
+                return read(frozen[index]);
+            }
+
+            @Override
+            public int size() {
+                return frozen.length;
+            }
+
+            @Override
+            public synchronized void close() {
+                if (!closed) {
+                    closed = true;
+                    pins.decrementAndGet();
+                }
+            }
+        };
+    }
+
+    @Override
+    public ContactCache cache() {
+        return cache;
+    }
+
+    long fileSize() {
+        return (long) pageCount * PAGE_SIZE;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+        Files.deleteIfExists(path);
+    }
+
+    private static ByteBuffer encode(Contact contact) {
+        byte[] name = contact.getName().getBytes(StandardCharsets.UTF_8);
+        List<String> phones = contact.getPhoneNumbers();
+        if (name.length > MAX_FIELD || phones.size() > MAX_FIELD) {
+            throw new IllegalArgumentException("контакт слишком велик: " + contact.getName());
+        }
+        ByteBuffer record = ByteBuffer.allocate(8 + name.length + 8 * phones.size());
+        record.putInt(-1).putShort((short) name.length).put(name).putShort((short) phones.size());
+        for (String phone : phones) {
+            long packed = PhoneNumbers.pack(phone);
+            if (packed < 0) {
+                throw new IllegalArgumentException("номер нельзя упаковать: " + phone + " (" + contact.getName() + ")");
+            }
+            record.putLong(packed);
+        }
+        return record.flip();
+    }
+
+    private static int recordLength(ByteBuffer page, int offset) {
+        int nameLength = page.getShort(offset + 4) & 0xFFFF;
+        int phones = page.getShort(offset + 6 + nameLength) & 0xFFFF;
+        return 8 + nameLength + 8 * phones;
+    }
+
+    private Contact read(long location) {
+        ByteBuffer record = ByteBuffer.allocate((int) (location & LENGTH_MASK));
+        readFully(record, location >>> LENGTH_BITS);
+        int id = record.getInt(0);
+        int nameLength = record.getShort(4) & 0xFFFF;
+        Contact contact = new Contact(new String(record.array(), 6, nameLength, StandardCharsets.UTF_8));
+        int phones = record.getShort(6 + nameLength) & 0xFFFF;
+        for (int i = 0, offset = 8 + nameLength; i < phones; i++, offset += 8) {
+            contact.addPhoneNumber(PhoneNumbers.unpack(record.getLong(offset)));
+        }
+        contact.setId(id);
+        return contact;
+    }
+
+    private long write(ByteBuffer record) {
+        int length = record.remaining();
+        long position = allocate(length);
+        try {
+            while (record.hasRemaining()) {
+                channel.write(record, position + record.position());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return position << LENGTH_BITS | length;
+    }
+
+    private void readFully(ByteBuffer buffer, long position) {
+        try {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0) {
+                    throw new EOFException("страничный файл обрезан: " + path);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private long allocate(int length) {
+        if (length > PAGE_SIZE) {
+            int first = pageCount;
+            int pages = (length + PAGE_SIZE - 1) / PAGE_SIZE;
+            ensurePages(first + pages);
+            for (int page = first; page < first + pages; page++) {
+                large[page] = true;
+                used[page] = PAGE_SIZE;
+                live[page] = Math.min(PAGE_SIZE, length - (page - first) * PAGE_SIZE);
+            }
+            pageCount += pages;
+            return (long) first * PAGE_SIZE;
+        }
+        if (tail < 0 || used[tail] + length > PAGE_SIZE) {
+            int previous = tail;
+            tail = takePage(length);
+            if (previous >= 0 && live[previous] <= PAGE_SIZE / 2) {
+                enqueue(previous);
+            }
+        }
+        long position = (long) tail * PAGE_SIZE + used[tail];
+        used[tail] += length;
+        live[tail] += length;
+        return position;
+    }
+
+    // Полупустая страница уплотняется и становится новым хвостом; новая страница - только если таких нет
+    private int takePage(int length) {
+        if (pins.get() == 0) {
+            while (candidateCount > 0) {
+                int page = candidates[--candidateCount];
+                queued[page] = false;
+                if (page == tail || live[page] > PAGE_SIZE / 2) {
+                    continue;
+                }
+                if (large[page]) {
+                    if (live[page] > 0) {
+                        continue;
+                    }
+                    large[page] = false;
+                    used[page] = 0;
+                } else {
+                    compact(page);
+                }
+                if (used[page] + length <= PAGE_SIZE) {
+                    return page;
+                }
+            }
+        }
+        ensurePages(pageCount + 1);
+        return pageCount++;
+    }
+
+    // Живые записи сдвигаются к началу страницы; запись жива, если ее id все еще указывает на нее
+    private void compact(int page) {
+        long start = (long) page * PAGE_SIZE;
+        ByteBuffer buffer = ByteBuffer.allocate(used[page]);
+        readFully(buffer, start);
+        int kept = 0;
+        for (int offset = 0; offset < used[page]; ) {
+            int length = recordLength(buffer, offset);
+            int id = buffer.getInt(offset);
+            if (id >= 0 && id < nextId && locations[id] == ((start + offset) << LENGTH_BITS | length)) {
+                if (kept != offset) {
+                    System.arraycopy(buffer.array(), offset, buffer.array(), kept, length);
+                    locations[id] = (start + kept) << LENGTH_BITS | length;
+                }
+                kept += length;
+            }
+            offset += length;
+        }
+        buffer.position(0).limit(kept);
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer, start + buffer.position());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        used[page] = kept;
+        live[page] = kept;
+    }
+
+    private void free(long location) {
+        long position = location >>> LENGTH_BITS;
+        int length = (int) (location & LENGTH_MASK);
+        int page = (int) (position / PAGE_SIZE);
+        if (length > PAGE_SIZE) {
+            for (int rest = length; rest > 0; rest -= PAGE_SIZE, page++) {
+                live[page] -= Math.min(PAGE_SIZE, rest);
+                enqueue(page);
+            }
+            return;
+        }
+        live[page] -= length;
+        if (page != tail && live[page] <= PAGE_SIZE / 2) {
+            enqueue(page);
+        }
+    }
+
+    private void enqueue(int page) {
+        if (queued[page]) {
+            return;
+        }
+        queued[page] = true;
+        if (candidateCount == candidates.length) {
+            candidates = Arrays.copyOf(candidates, candidateCount * 2);
+        }
+        candidates[candidateCount++] = page;
+    }
+
+    private void ensurePages(int count) {
+        if (count > used.length) {
+            int capacity = Math.max(count, used.length * 2);
+            used = Arrays.copyOf(used, capacity);
+            live = Arrays.copyOf(live, capacity);
+            large = Arrays.copyOf(large, capacity);
+            queued = Arrays.copyOf(queued, capacity);
+        }
+    }
+}
+
+// Журнал изменений телефонной книги: записи добавления и удаления дописываются в конец файла.
+// Групповая фиксация: фоновый поток собирает записи в течение окна и делает один fsync на группу.
+// enqueue* только ставит запись в очередь (порядок записей - порядок вызовов) и возвращает ее номер,
+// awaitDurable ждет, пока запись с этим номером надежно ляжет на диск.
+// Формат записи: int длина данных, int CRC32 данных, данные (byte тип, ushort+UTF-8 имя[, ushort+UTF-8 номер]).
+class PhoneBookJournal implements Closeable {
+    static final byte ADD = 1;
+    static final byte REMOVE = 2;
+    private static final int RECORD_HEADER = 8;
+    private static final int MAX_PAYLOAD = 1 + 2 * (2 + 0xFFFF);
+
+    interface Handler {
+        void add(String name, String phone);
+        void remove(String name);
+    }
+
+    private final FileChannel channel;
+    private final long windowNanos;
+    private final Thread flusher;
+    private ByteBuffer pending = ByteBuffer.allocate(64 << 10);
+    private ByteBuffer writing = ByteBuffer.allocate(64 << 10);
+    private long appended;
+    private long durable;
+    private volatile long bytes;    // длина файла вместе с записями, которые еще ждут записи; растет под монитором
+    private IOException failure;
+    private boolean closed;
+
+    PhoneBookJournal(Path path, long commitWindowMillis) throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        bytes = channel.size();
+        channel.position(bytes);
+        windowNanos = TimeUnit.MILLISECONDS.toNanos(commitWindowMillis);
+        flusher = new Thread(this::flushLoop, "phonebook-journal");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    // Считается при добавлении записей, к файлу не обращается
+    long size() {
+        return bytes;
+    }
+
+    long enqueueAdd(String name, String phone) throws IOException {
+        return enqueue(ADD, name, phone);
+    }
+
+    long enqueueRemove(String name) throws IOException {
+        return enqueue(REMOVE, name, null);
+    }
+
+    private synchronized long enqueue(byte type, String name, String phone) throws IOException {
+        if (failure != null) {
+            throw new IOException("ошибка записи журнала: " + failure.getMessage(), failure);
+        }
+        if (closed) {
+            throw new IOException("журнал закрыт");
+        }
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        byte[] phoneBytes = phone == null ? null : phone.getBytes(StandardCharsets.UTF_8);
+        if (nameBytes.length > 0xFFFF || (phoneBytes != null && phoneBytes.length > 0xFFFF)) {
+            throw new IOException("запись слишком велика для журнала");
+        }
+        int payload = 1 + 2 + nameBytes.length + (phoneBytes == null ? 0 : 2 + phoneBytes.length);
+        if (pending.remaining() < RECORD_HEADER + payload) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + RECORD_HEADER + payload));
+            pending.flip();
+            pending = grown.put(pending);
+        }
+        int start = pending.position();
+        pending.putInt(payload).putInt(0).put(type).putShort((short) nameBytes.length).put(nameBytes);
+        if (phoneBytes != null) {
+            pending.putShort((short) phoneBytes.length).put(phoneBytes);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(pending.array(), start + RECORD_HEADER, payload);
+        pending.putInt(start + 4, (int) crc.getValue());
+        bytes += RECORD_HEADER + payload;
+
+        notifyAll();
+        return ++appended;
+    }
+
+    synchronized void awaitDurable(long sequence) throws IOException {
+        try {
+            while (durable < sequence) {
+                if (failure != null) {
+                    throw new IOException("ошибка записи журнала: " + failure.getMessage(), failure);
+                }
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("ожидание фиксации журнала прервано");
+        }
+    }
+
+    private void flushLoop() {
+        while (true) {
+            ByteBuffer batch;
+            long target;
+            synchronized (this) {
+                try {
+                    while (pending.position() == 0 && !closed) {
+                        wait();
+                    }
+                    if (pending.position() == 0) {
+                        return;
+                    }
+                    // Окно группы: даем остальным писателям присоединиться к этому fsync
+                    long deadline = System.nanoTime() + windowNanos;
+                    long remaining;
+                    while (!closed && (remaining = deadline - System.nanoTime()) > 0) {
+                        TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                    }
+                } catch (InterruptedException e) {
+                    closed = true;
+                }
+                batch = pending;
+                pending = writing;
+                writing = batch;
+                target = appended;
+            }
+            try {
+                batch.flip();
+                while (batch.hasRemaining()) {
+                    channel.write(batch);
+                }
+                channel.force(false);
+            } catch (IOException e) {
+                synchronized (this) {
+                    failure = e;
+                    notifyAll();
+                }
+                return;
+            } finally {
+                batch.clear();
+            }
+            synchronized (this) {
+                durable = target;
+                notifyAll();
+            }
+        }
+    }
+
+    // Проигрывает записи журнала; оборванный или поврежденный хвост (сбой во время записи) отрезается
+    static int replay(Path path, Handler handler) throws IOException {
+        int count = 0;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+             DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), 1 << 16))) {
+            long size = channel.size();
+            long position = 0;
+            CRC32 crc = new CRC32();
+            while (size - position >= RECORD_HEADER) {
+                int payload = in.readInt();
+                int checksum = in.readInt();
+                if (payload < 3 || payload > MAX_PAYLOAD || size - position - RECORD_HEADER < payload) {
+                    break;
+                }
+                byte[] data = new byte[payload];
+                in.readFully(data);
+                crc.reset();
+                crc.update(data);
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                ByteBuffer record = ByteBuffer.wrap(data);
+                byte type = record.get();
+                String name = readString(record);
+                if (type == ADD) {
+                    handler.add(name, readString(record));
+                } else if (type == REMOVE) {
+                    handler.remove(name);
+                } else {
+                    break;
+                }
+                position += RECORD_HEADER + payload;
+                count++;
+            }
+            if (position < size) {
+                channel.truncate(position);
+            }
+        }
+        return count;
+    }
+
+    private static String readString(ByteBuffer record) {
+        int length = record.getShort() & 0xFFFF;
+        String value = new String(record.array(), record.position(), length, StandardCharsets.UTF_8);
+        record.position(record.position() + length);
+        return value;
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
+
+// Инвертированный индекс триграмм имен для нечеткого поиска. Имя приводится к нижнему регистру
+// и дополняется пробелом с обеих сторон ("иван" -> " ив", "ива", "ван", "ан "). Списки
+// id контактов (отсортированные int[]) заводятся на пару (триграмма, длина имени): имя, отличное
+// от запроса на k правок, отличается и длиной не больше чем на k, так что запрос читает только
+// 2k + 1 длин. Кандидаты отбираются по числу общих триграмм и проверяются расстоянием
+// Левенштейна с ранним отсечением. Изменения должны быть сериализованы снаружи; запросы могут
+// идти параллельно друг другу (под разделяемой блокировкой чтения).
+class TrigramIndex {
+    private static final int MAX_LENGTH_BUCKET = 63;
+
+    private final LongIntHashMap slots = new LongIntHashMap(); // (триграмма, длина) -> номер списка
+    private int[][] postings = new int[1024][];
+    private int[] sizes = new int[1024];
+    private int slotCount;
+
+    static final class Match {
+        final int id;
+        final int distance;
+
+        Match(int id, int distance) {
+            this.id = id;
+            this.distance = distance;
+        }
+    }
+
+    void add(int id, String name) {
+        int bucket = lengthBucket(name.length());
+        for (long gram : trigrams(name)) {
+            long key = gram | ((long) bucket << 50);
+            int slot = slots.get(key);
+            if (slot == LongIntHashMap.MISSING) {
+                slot = newSlot();
+                slots.put(key, slot);
+            }
+            int[] list = postings[slot];
+            int size = sizes[slot];
+            // при загрузке id растут, и вставка всегда в конец списка
+            int at = size == 0 || list[size - 1] < id ? -size - 1 : Arrays.binarySearch(list, 0, size, id);
+            if (at >= 0) {
+                continue;
+            }
+            at = -at - 1;
+            if (size == list.length) {
+                list = postings[slot] = Arrays.copyOf(list, size + (size >> 1) + 2);
+            }
+            System.arraycopy(list, at, list, at + 1, size - at);
+            list[at] = id;
+            sizes[slot] = size + 1;
+        }
+    }
+
+    void remove(int id, String name) {
+        int bucket = lengthBucket(name.length());
+        for (long gram : trigrams(name)) {
+            int slot = slots.get(gram | ((long) bucket << 50));
+            if (slot == LongIntHashMap.MISSING) {
+                continue;
+            }
+            int[] list = postings[slot];
+            int size = sizes[slot];
+            int at = Arrays.binarySearch(list, 0, size, id);
+            if (at >= 0) {
+                System.arraycopy(list, at + 1, list, at, size - at - 1);
+                sizes[slot] = size - 1;
+            }
+        }
+    }
+
+    // Допустимое число правок растет с длиной запроса: 0 для 1-2 символов, 1 до 7, дальше 2
+    static int maxDistance(String query) {
+        int length = query.length();
+        return length <= 2 ? 0 : length <= 7 ? 1 : 2;
+    }
+
+    // Id имен, отличающихся от запроса не больше чем на maxDistance правок, по возрастанию расстояния.
+    // names отдает имя по id (для проверки кандидата).
+    List<Match> search(String query, int maxDistance, IntFunction<String> names) {
+        long[] grams = trigrams(query);
+        List<Match> matches = new ArrayList<>();
+        if (grams.length == 0) {
+            return matches;
+        }
+        // Каждая правка портит не больше трех различных триграмм
+        int minShared = Math.max(1, grams.length - 3 * maxDistance);
+        char[] folded = new char[query.length()];
+        for (int i = 0; i < folded.length; i++) {
+            folded[i] = Character.toLowerCase(query.charAt(i));
+        }
+        int lowBucket = lengthBucket(Math.max(1, query.length() - maxDistance));
+        int highBucket = lengthBucket(query.length() + maxDistance);
+        for (int bucket = lowBucket; bucket <= highBucket; bucket++) {
+            for (int id : candidates(grams, bucket, minShared)) {
+                String name = names.apply(id);
+                if (name == null || Math.abs(name.length() - folded.length) > maxDistance) {
+                    continue;
+                }
+                int distance = boundedDistance(folded, name, maxDistance);
+                if (distance <= maxDistance) {
+                    matches.add(new Match(id, distance));
+                }
+            }
+        }
+        matches.sort(Comparator.comparingInt(match -> match.distance));
+        return matches;
+    }
+
+    // Кандидат с minShared общими триграммами обязан встретиться хотя бы в одном из
+    // (T - minShared + 1) самых коротких списков: их слияние дает кандидатов по возрастанию id
+    // с числом вхождений. Дальше длинные списки от коротких к длинным пересекаются с кандидатами
+    // галопирующим поиском, и после каждого отсеиваются те, кому оставшихся списков уже не хватит.
+    private int[] candidates(long[] grams, int bucket, int minShared) {
+        int[][] lists = new int[grams.length][];
+        int[] lengths = new int[grams.length];
+        int present = 0;
+        for (long gram : grams) {
+            int slot = slots.get(gram | ((long) bucket << 50));
+            if (slot != LongIntHashMap.MISSING && sizes[slot] > 0) {
+                lists[present] = postings[slot];
+                lengths[present++] = sizes[slot];
+            }
+        }
+        if (present < minShared) {
+            return new int[0];
+        }
+        // сортировка вставками по длине списка: триграмм в запросе немного
+        for (int i = 1; i < present; i++) {
+            int[] list = lists[i];
+            int length = lengths[i];
+            int j = i - 1;
+            while (j >= 0 && lengths[j] > length) {
+                lists[j + 1] = lists[j];
+                lengths[j + 1] = lengths[j];
+                j--;
+            }
+            lists[j + 1] = list;
+            lengths[j + 1] = length;
+        }
+        // каждая правка портит не больше трех триграмм, так что коротких списков не больше 3k + 1
+        int shortCount = present - minShared + 1;
+
+        int total = 0;
+        for (int k = 0; k < shortCount; k++) {
+            total += lengths[k];
+        }
+        int[] ids = new int[total];
+        int[] counts = new int[total];
+        int[] heads = new int[shortCount];
+        int n = 0;
+        while (true) {
+            int next = Integer.MAX_VALUE;
+            for (int k = 0; k < shortCount; k++) {
+                if (heads[k] < lengths[k]) {
+                    next = Math.min(next, lists[k][heads[k]]);
+                }
+            }
+            if (next == Integer.MAX_VALUE) {
+                break;
+            }
+            int count = 0;
+            for (int k = 0; k < shortCount; k++) {
+                if (heads[k] < lengths[k] && lists[k][heads[k]] == next) {
+                    heads[k]++;
+                    count++;
+                }
+            }
+            ids[n] = next;
+            counts[n++] = count;
+        }
+
+        for (int k = shortCount; k < present; k++) {
+            int remaining = present - k;
+            int[] list = lists[k];
+            int length = lengths[k];
+            int at = 0;
+            int kept = 0;
+            for (int c = 0; c < n; c++) {
+                int count = counts[c];
+                if (count + remaining < minShared) {
+                    continue;
+                }
+                if (count < minShared) {
+                    at = gallop(list, at, length, ids[c]);
+                    if (at < length && list[at] == ids[c]) {
+                        count++;
+                    }
+                }
+                ids[kept] = ids[c];
+                counts[kept++] = count;
+            }
+            n = kept;
+        }
+
+        int found = 0;
+        for (int c = 0; c < n; c++) {
+            if (counts[c] >= minShared) {
+                ids[found++] = ids[c];
+            }
+        }
+        return Arrays.copyOf(ids, found);
+    }
+
+    // Первая позиция не раньше from, где list[i] >= id: шаги удваиваются, затем бинарный поиск.
+    // Цена - логарифм расстояния до ответа, так что проход по возрастающим id почти линеен.
+    private static int gallop(int[] list, int from, int length, int id) {
+        int step = 1;
+        int low = from;
+        int high = from;
+        while (high < length && list[high] < id) {
+            low = high + 1;
+            high = from + step;
+            step <<= 1;
+        }
+        high = Math.min(high, length);
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (list[mid] < id) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    // Левенштейн по двум строкам без учета регистра; как только минимум строки таблицы
+    // превысил limit, возвращаем limit + 1
+    static int boundedDistance(char[] query, String name, int limit) {
+        int m = name.length();
+        int[] previous = new int[m + 1];
+        int[] current = new int[m + 1];
+        for (int j = 0; j <= m; j++) {
+            previous[j] = j;
+        }
+        for (int i = 1; i <= query.length; i++) {
+            current[0] = i;
+            int rowMin = i;
+            char q = query[i - 1];
+            for (int j = 1; j <= m; j++) {
+                int cost = Character.toLowerCase(name.charAt(j - 1)) == q ? 0 : 1;
+                int value = Math.min(Math.min(current[j - 1], previous[j]) + 1, previous[j - 1] + cost);
+                current[j] = value;
+                rowMin = Math.min(rowMin, value);
+            }
+            if (rowMin > limit) {
+                return limit + 1;
+            }
+            int[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+        return previous[m];
+    }
+
+    // Различные триграммы имени в нижнем регистре (48 бит)
+    static long[] trigrams(String name) {
+        int length = name.length();
+        if (length == 0) {
+            return new long[0];
+        }
+        long[] grams = new long[length];
+        for (int i = 0; i < length; i++) {
+            long c0 = paddedChar(name, i - 1);
+            long c1 = paddedChar(name, i);
+            long c2 = paddedChar(name, i + 1);
+            grams[i] = (1L << 48) | (c0 << 32) | (c1 << 16) | c2;
+        }
+        Arrays.sort(grams);
+        int unique = 0;
+        for (int i = 0; i < length; i++) {
+            if (unique == 0 || grams[unique - 1] != grams[i]) {
+                grams[unique++] = grams[i];
+            }
+        }
+        return unique == length ? grams : Arrays.copyOf(grams, unique);
+    }
+
+    private static int lengthBucket(int length) {
+        return Math.min(length, MAX_LENGTH_BUCKET);
+    }
+
+    private static char paddedChar(String name, int i) {
+        return i < 0 || i >= name.length() ? ' ' : Character.toLowerCase(name.charAt(i));
+    }
+
+    private int newSlot() {
+        if (slotCount == postings.length) {
+            postings = Arrays.copyOf(postings, slotCount * 2);
+            sizes = Arrays.copyOf(sizes, slotCount * 2);
+        }
+        postings[slotCount] = new int[4];
+        return slotCount++;
+    }
+}
+
+// Страница контактов в порядке имен. Метка продолжения непрозрачна для вызывающего:
+// внутри - последнее имя страницы, следующая страница начинается строго после него,
+// поэтому добавления и удаления между запросами не сдвигают и не повторяют уже выданное.
+class ContactPage {
+    private final List<Contact> contacts;
+    private final String nextToken;
+
+    ContactPage(List<Contact> contacts, String nextToken) {
+        this.contacts = contacts;
+        this.nextToken = nextToken;
+    }
+
+    List<Contact> getContacts() {
+        return contacts;
+    }
+
+    // null - страниц дальше нет
+    String getNextToken() {
+        return nextToken;
+    }
+
+    static String token(String lastName) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(lastName.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static String nameOf(String token) {
+        try {
+            return new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("неверная метка страницы: " + token);
+        }
+    }
+}
+
+// Потокобезопасное хранилище телефонной книги без консоли.
+// Чтение без блокировок: индекс имен - ConcurrentSkipListMap, поиск по номеру - оптимистичное
+// чтение StampedLock поверх примитивного индекса. Записи сериализуются блокировкой и меняют
+// оба индекса вместе; опубликованный Contact больше не изменяется (новый номер - новая копия).
+class PhoneBookStore implements Closeable {
+    private static final long COMPACT_JOURNAL_BYTES = 64L << 20;
+    private static final long COMPACT_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(10);
+    private static final long COMPACT_CHECK_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    private static final String SNAPSHOT_PREFIX = "snapshot-";
+    private static final String JOURNAL_PREFIX = "journal-";
+    private static final String PAGE_FILE = "contacts.pages";
+
+    private final StampedLock lock = new StampedLock();
+    private volatile ConcurrentSkipListMap<String, Integer> contactsByName = new ConcurrentSkipListMap<>(); // имя -> id
+    private final LongIntHashMap contactsByPhone = new LongIntHashMap(); // упакованный номер -> id контакта
+    private final ContactTable contactIds;
+    private final NameTrie namePrefixes = new NameTrie();
+    private final TrigramIndex nameTrigrams = new TrigramIndex();
+
+    // Имена, добавленные, измененные или удаленные после последнего экспорта (под блокировкой записи).
+    // После загрузки снимка удаления до него неизвестны - нужен полный экспорт.
+    private Set<String> changedNames = new HashSet<>();
+    private boolean changesComplete = true;
+
+    // Хранилище на диске: снимок поколения N + журнал изменений после него
+    private Path storageDir;
+    private PhoneBookJournal journal;
+    private long commitWindowMillis;
+    private long generation;
+    private volatile long lastCompaction;
+    private final ReentrantLock compaction = new ReentrantLock();
+    private final AtomicBoolean compactionRequested = new AtomicBoolean();
+    private ScheduledExecutorService compactor;
+
+    PhoneBookStore() {
+        this(new ContactRegistry());
+    }
+
+    private PhoneBookStore(ContactTable contactIds) {
+        this.contactIds = contactIds;
+    }
+
+    // Контакты лежат в страничном файле file, в памяти - индексы и не больше cacheSize контактов
+    static PhoneBookStore paged(Path file, int cacheSize) throws IOException {
+        return new PhoneBookStore(new PagedContactTable(file, cacheSize));
+    }
+
+    static PhoneBookStore open(Path dir, long commitWindowMillis) throws IOException {
+        return open(dir, commitWindowMillis, 0);
+    }
+
+    // Загружает последний полный снимок и проигрывает журналы начиная с его поколения.
+    // Журналы старше снимка остаются только после сбоя посреди уплотнения и пропускаются.
+    // cacheSize > 0 - контакты в страничном файле каталога с кэшем на cacheSize контактов.
+    static PhoneBookStore open(Path dir, long commitWindowMillis, int cacheSize) throws IOException {
+        Files.createDirectories(dir);
+        long snapshotGeneration = -1;
+        TreeSet<Long> journalGenerations = new TreeSet<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path file : files) {
+                snapshotGeneration = Math.max(snapshotGeneration, parseGeneration(file, SNAPSHOT_PREFIX, ".pbk"));
+                long journalFile = parseGeneration(file, JOURNAL_PREFIX, ".log");
+                if (journalFile >= 0) {
+                    journalGenerations.add(journalFile);
+                }
+            }
+        }
+
+        PhoneBookStore store = cacheSize > 0 ? paged(dir.resolve(PAGE_FILE), cacheSize) : new PhoneBookStore();
+        if (snapshotGeneration >= 0) {
+            store.importSnapshot(snapshotPath(dir, snapshotGeneration));
+        }
+        PhoneBookJournal.Handler replay = new PhoneBookJournal.Handler() {
+            @Override
+            public void add(String name, String phone) {
+                store.applyAdd(name, phone);
+            }
+
+            @Override
+            public void remove(String name) {
+                store.applyRemove(name);
+            }
+        };
+        for (long journalGeneration : journalGenerations.tailSet(Math.max(snapshotGeneration, 0L))) {
+            PhoneBookJournal.replay(journalPath(dir, journalGeneration), replay);
+        }
+        if (snapshotGeneration >= 0) {
+            store.changedNames.clear();
+            store.changesComplete = false;
+        }
+
+        store.storageDir = dir;
+        store.commitWindowMillis = commitWindowMillis;
+        store.generation = Math.max(Math.max(snapshotGeneration, 0L),
+                journalGenerations.isEmpty() ? 0L : journalGenerations.last());
+        store.journal = new PhoneBookJournal(journalPath(dir, store.generation), commitWindowMillis);
+        store.lastCompaction = System.currentTimeMillis();
+        store.compactor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "phonebook-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        store.compactor.scheduleWithFixedDelay(store::maybeCompact,
+                COMPACT_CHECK_MILLIS, COMPACT_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+        return store;
+    }
+
+    int size() {
+        return contactsByName.size();
+    }
+
+    Contact findByName(String name) {
+        return read(() -> contactOf(contactsByName.get(name)));
+    }
+
+    // Номер в любой записи: "+7 (495) 123-45-67" и "74951234567" - один и тот же ключ
+    Contact findByPhone(String phone) {
+        return findByPhone(PhoneNumbers.normalize(phone));
+    }
+
+    // По упакованному номеру; 0 и отрицательный ключ (неверный номер) не находятся
+    Contact findByPhone(long key) {
+        return key <= 0 ? null : read(() -> contactIds.get(contactsByPhone.get(key)));
+    }
+
+    // Пакет номеров под одним чтением: results[i] - владелец keys[i] или null.
+    // Если пакет пересекся с записью, он целиком перечитывается под блокировкой чтения.
+    void findByPhones(long[] keys, Contact[] results, int count) {
+        read(() -> {
+            lookupPhones(keys, results, count);
+            return null;
+        });
+    }
+
+    private void lookupPhones(long[] keys, Contact[] results, int count) {
+        for (int i = 0; i < count; i++) {
+            results[i] = keys[i] <= 0 ? null : contactIds.get(contactsByPhone.get(keys[i]));
+        }
+    }
+
+    // Префиксное дерево меняется на месте, поэтому запрос идет под разделяемой блокировкой чтения
+    List<Contact> findByPrefix(String prefix, int limit) {
+        long stamp = lock.readLock();
+        try {
+            List<String> names = namePrefixes.prefixSearch(prefix, limit);
+            List<Contact> contacts = new ArrayList<>(names.size());
+            for (String name : names) {
+                Contact contact = contactOf(contactsByName.get(name));
+                if (contact != null) {
+                    contacts.add(contact);
+                }
+            }
+            return contacts;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    // Нечеткий поиск по имени: до limit контактов, ближайшие по числу правок - первыми
+    List<Contact> findFuzzy(String query, int limit) {
+        List<Contact> contacts = new ArrayList<>();
+        long stamp = lock.readLock();
+        try {
+            for (TrigramIndex.Match match : nameTrigrams.search(query, TrigramIndex.maxDistance(query), contactIds::nameOf)) {
+                contacts.add(contactIds.get(match.id));
+                if (contacts.size() == limit) {
+                    break;
+                }
+            }
+        } finally {
+            lock.unlockRead(stamp);
+        }
+        return contacts;
+    }
+
+    // Статистика кэша контактов; null, если все контакты в памяти
+    ContactCache cache() {
+        return contactIds.cache();
+    }
+
+    // Слабо согласованный обход в порядке имен. Контакты читаются по одному (в страничном
+    // режиме - мимо кэша, чтобы обход не вытеснил рабочий набор); удаленные по ходу пропускаются.
+    Collection<Contact> contacts() {
+        ConcurrentSkipListMap<String, Integer> index = contactsByName;
+        return new AbstractCollection<>() {
+            @Override
+            public Iterator<Contact> iterator() {
+                Iterator<Map.Entry<String, Integer>> entries = index.entrySet().iterator();
+                return new Iterator<>() {
+                    private Contact next = advance();
+
+                    private Contact advance() {
+                        while (entries.hasNext()) {
+                            Map.Entry<String, Integer> entry = entries.next();
+                            Contact contact = read(() -> contactIds.peek(entry.getValue()));
+                            // номер мог достаться другому контакту
+                            if (contact != null && contact.getName().equals(entry.getKey())) {
+                                return contact;
+                            }
+                        }
+                        return null;
+                    }
+
+                    @Override
+                    public boolean hasNext() {
+                        return next != null;
+                    }
+
+                    @Override
+                    public Contact next() {
+                        if (next == null) {
+                            throw new NoSuchElementException();
+                        }
+                        Contact contact = next;
+                        next = advance();
+                        return contact;
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return index.size();
+            }
+        };
+    }
+
+    // Первые limit контактов, начиная с имени from (или следующего за ним по порядку)
+    ContactPage seek(String from, int limit) {
+        return page(contactsByName.tailMap(from, true), limit);
+    }
+
+    // Продолжение с метки getNextToken() предыдущей страницы
+    ContactPage page(String token, int limit) {
+        return page(contactsByName.tailMap(ContactPage.nameOf(token), false), limit);
+    }
+
+    // Как и contacts(): по одному контакту мимо кэша, удаленные по ходу пропускаются.
+    // Работа и память - на одну страницу, независимо от размера книги.
+    private ContactPage page(NavigableMap<String, Integer> tail, int limit) {
+        if (limit <= 0) {
+            throw new IllegalArgumentException("размер страницы должен быть положительным: " + limit);
+        }
+        List<Contact> contacts = new ArrayList<>(Math.min(limit, 1024));
+        String last = null;
+        for (Map.Entry<String, Integer> entry : tail.entrySet()) {
+            if (contacts.size() == limit) {
+                return new ContactPage(contacts, ContactPage.token(last));
+            }
+            Contact contact = read(() -> contactIds.peek(entry.getValue()));
+            if (contact != null && contact.getName().equals(entry.getKey())) {
+                contacts.add(contact);
+                last = entry.getKey();
+            }
+        }
+        return new ContactPage(contacts, null);
+    }
+
+    // В памяти индексы читаются оптимистично, без блокировки. Если метка устарела или контакты
+    // в страничном файле (чтение с диска и кэш должны видеть согласованные индексы) -
+    // под блокировкой чтения.
+    private <T> T read(Supplier<T> query) {
+        if (contactIds.allowsOptimisticReads()) {
+            long stamp = lock.tryOptimisticRead();
+            T result = query.get();
+            if (lock.validate(stamp)) {
+                return result;
+            }
+        }
+        long stamp = lock.readLock();
+        try {
+            return query.get();
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    private Contact contactOf(Integer id) {
+        return id == null ? null : contactIds.get(id);
+    }
+
+    // Номер нормализуется; в книгу и журнал попадает только каноническая запись из цифр
+    void add(String name, String phone) throws IOException {
+        long key = PhoneNumbers.normalize(phone);
+        if (key < 0) {
+            throw new IllegalArgumentException("неверный номер " + phone + ": " + PhoneNumbers.describe(key));
+        }
+        phone = PhoneNumbers.unpack(key);
+        PhoneBookJournal log;
+        long sequence = 0;
+        long stamp = lock.writeLock();
+        try {
+            log = journal;
+            if (log != null) {
+                sequence = log.enqueueAdd(name, phone);
+            }
+            applyAdd(name, phone);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        // fsync ждем вне блокировки: пока идет запись, другие писатели попадают в ту же группу
+        if (log != null) {
+            log.awaitDurable(sequence);
+            requestCompaction(log);
+        }
+    }
+
+    boolean remove(String name) throws IOException {
+        PhoneBookJournal log;
+        long sequence = 0;
+        long stamp = lock.writeLock();
+        try {
+            if (!contactsByName.containsKey(name)) {
+                return false;
+            }
+            log = journal;
+            if (log != null) {
+                sequence = log.enqueueRemove(name);
+            }
+            applyRemove(name);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        if (log != null) {
+            log.awaitDurable(sequence);
+            requestCompaction(log);
+        }
+        return true;
+    }
+
+    // Полный экспорт заодно начинает учет изменений заново
+    void exportText(Path path) throws IOException {
+        Set<String> changes;
+        boolean complete;
+        ContactTable.Frozen contacts;
+        long stamp = lock.writeLock();
+        try {
+            changes = changedNames;
+            complete = changesComplete;
+            changedNames = new HashSet<>();
+            changesComplete = true;
+            contacts = freezeContacts();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        boolean written = false;
+        try (contacts; PrintWriter writer = new PrintWriter(Files.newBufferedWriter(path))) {
+            for (Contact contact : contacts) {
+                writeLine(writer, contact);
+            }
+            if (writer.checkError()) {
+                throw new IOException("не удалось записать " + path);
+            }
+            written = true;
+        } finally {
+            if (!written) {
+                restoreChanges(changes, complete);
+            }
+        }
+    }
+
+    // Экспорт изменений после прошлого экспорта (полного или изменений): "+имя|номера" для
+    // добавленных и измененных контактов, "-имя" для удаленных, в порядке имен.
+    // Работа пропорциональна числу измененных имен, а не размеру книги. Возвращает число строк.
+    int exportChanges(Path path) throws IOException {
+        String[] names;
+        boolean[] present;
+        ContactTable.Frozen contacts;
+        Set<String> changes;
+        long stamp = lock.writeLock();
+        try {
+            if (!changesComplete) {
+                throw new IllegalStateException("изменения до загрузки снимка неизвестны, нужен полный экспорт");
+            }
+            changes = changedNames;
+            changedNames = new HashSet<>();
+            names = changes.toArray(new String[0]);
+            Arrays.sort(names);
+            present = new boolean[names.length];
+            int[] ids = new int[names.length];
+            int count = 0;
+            for (int i = 0; i < names.length; i++) {
+                Integer id = contactsByName.get(names[i]);
+                if (id != null) {
+                    present[i] = true;
+                    ids[count++] = id;
+                }
+            }
+            contacts = contactIds.freeze(Arrays.copyOf(ids, count));
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        boolean written = false;
+        try (contacts; PrintWriter writer = new PrintWriter(Files.newBufferedWriter(path))) {
+            int next = 0;
+            for (int i = 0; i < names.length; i++) {
+                if (present[i]) {
+                    writer.print('+');
+                    writeLine(writer, contacts.get(next++));
+                } else {
+                    writer.print('-');
+                    writer.println(names[i]);
+                }
+            }
+            if (writer.checkError()) {
+                throw new IOException("не удалось записать " + path);
+            }
+            written = true;
+        } finally {
+            if (!written) {
+                restoreChanges(changes, true);
+            }
+        }
+        return names.length;
+    }
+
+    // Применяет файл exportChanges: контакт из строки "+" заменяет одноименный, "-" удаляет
+    ImportReport importChanges(Path path) throws IOException {
+        ImportReport report = new ImportReport();
+        try (BufferedReader reader = Files.newBufferedReader(path)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                long lineNumber = report.nextLine();
+                if (line.isEmpty()) {
+                    continue;
+                }
+                char operation = line.charAt(0);
+                Contact contact = null;
+                if (operation == '+') {
+                    contact = parseLine(line.substring(1), lineNumber, report);
+                    if (contact == null) {
+                        continue;
+                    }
+                } else if (operation != '-' || line.length() == 1) {
+                    report.reject(lineNumber, ImportReport.BAD_FORMAT);
+                    continue;
+                }
+                long stamp = lock.writeLock();
+                try {
+                    if (contact != null) {
+                        putContact(contact);
+                    } else {
+                        applyRemove(line.substring(1));
+                    }
+                } finally {
+                    lock.unlockWrite(stamp);
+                }
+                report.accept();
+            }
+        }
+        compactAfterImport();
+        return report;
+    }
+
+    // Число имен, которые попадут в следующий экспорт изменений
+    int pendingChanges() {
+        long stamp = lock.readLock();
+        try {
+            return changedNames.size();
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    private void restoreChanges(Set<String> changes, boolean complete) {
+        long stamp = lock.writeLock();
+        try {
+            changedNames.addAll(changes);
+            changesComplete &= complete;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    private static void writeLine(PrintWriter writer, Contact contact) {
+        writer.print(contact.getName() + "|");
+        List<String> phones = contact.getPhoneNumbers();
+        for (int i = 0; i < phones.size(); i++) {
+            writer.print(phones.get(i));
+            if (i < phones.size() - 1) writer.print(",");
+        }
+        writer.println();
+    }
+
+    // Построчный импорт; каждая строка применяется под блокировкой записи отдельно.
+    // Отвергнутые строки попадают в отчет и импорт не прерывают.
+    ImportReport importText(Path path) throws IOException {
+        ImportReport report = new ImportReport();
+        try (BufferedReader reader = Files.newBufferedReader(path)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                long lineNumber = report.nextLine();
+                if (line.isEmpty()) {
+                    continue;
+                }
+                Contact contact = parseLine(line, lineNumber, report);
+                if (contact != null) {
+                    long stamp = lock.writeLock();
+                    try {
+                        putContact(contact);
+                    } finally {
+                        lock.unlockWrite(stamp);
+                    }
+                    report.accept();
+                }
+            }
+        }
+        compactAfterImport();
+        return report;
+    }
+
+    // Правила те же, что у ParallelContactImporter.parseLine, только над строкой
+    private static Contact parseLine(String line, long lineNumber, ImportReport report) {
+        int end = line.length();
+        int firstBar = line.indexOf('|');
+        int secondBar = firstBar < 0 ? -1 : line.indexOf('|', firstBar + 1);
+        if (secondBar < 0) {
+            secondBar = end;
+        }
+        if (firstBar < 0 || firstBar + 1 == secondBar) {
+            report.reject(lineNumber, ImportReport.BAD_FORMAT);
+            return null;
+        }
+        for (int i = secondBar; i < end; i++) {
+            if (line.charAt(i) != '|') {
+                report.reject(lineNumber, ImportReport.BAD_FORMAT);
+                return null;
+            }
+        }
+
+        Contact contact = new Contact(line.substring(0, firstBar));
+        int phoneStart = firstBar + 1;
+        for (int i = phoneStart; i <= secondBar; i++) {
+            if (i == secondBar || line.charAt(i) == ',') {
+                if (i > phoneStart) {
+                    long key = PhoneNumbers.normalize(line, phoneStart, i);
+                    if (key < 0) {
+                        report.reject(lineNumber, report.wantsReason()
+                                ? ImportReport.badPhone(line.substring(phoneStart, i), key) : null);
+                        return null;
+                    }
+                    contact.addPhoneNumber(PhoneNumbers.unpack(key));
+                }
+                phoneStart = i + 1;
+            }
+        }
+        return contact;
+    }
+
+    // Разбор файла идет параллельно и без блокировки; под блокировкой только слияние с книгой
+    ImportReport bulkImport(Path path, ForkJoinPool pool) throws IOException {
+        ParallelContactImporter.Result result = new ParallelContactImporter(pool).importFile(path);
+        long stamp = lock.writeLock();
+        try {
+            for (Contact contact : result.contacts) {
+                changedNames.add(contact.getName());
+                Integer previous = contactsByName.get(contact.getName());
+                if (previous != null) {
+                    dropContact(contactIds.peek(previous));
+                }
+                contactIds.register(contact);
+                namePrefixes.add(contact.getName());
+                nameTrigrams.add(contact.getId(), contact.getName());
+            }
+            contactsByName = new ConcurrentSkipListMap<>(SortedContacts.mergeIds(contactsByName, result.contacts));
+
+            // Номер, последним взятый контактом, который потом вытеснен по имени, из индекса уходит -
+            // как при построчном импорте
+            for (ParallelContactImporter.PhoneList phones : result.phoneLists) {
+                for (int i = 0; i < phones.size(); i++) {
+                    int id = phones.owner(i).getId();
+                    if (id >= 0) {
+                        contactsByPhone.put(phones.key(i), id);
+                    } else {
+                        contactsByPhone.remove(phones.key(i));
+                    }
+                }
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        compactAfterImport();
+        return result.report;
+    }
+
+    // Блокировка чтения не пускает писателей, пока снимаются id и владельцы номеров,
+    // а сами контакты читаются уже при записи
+    void exportSnapshot(Path path) throws IOException {
+        int[] ids;
+        ContactTable.Frozen contacts;
+        LongIntHashMap owners;
+        long stamp = lock.readLock();
+        try {
+            ids = liveIds();
+            contacts = contactIds.freeze(ids);
+            owners = contactsByPhone.copy();
+        } finally {
+            lock.unlockRead(stamp);
+        }
+        try (contacts) {
+            PhoneBookSnapshot.write(path, contacts, ownerOrdinals(owners, ids));
+        }
+    }
+
+    // Весь снимок - под одной блокировкой записи. В пустую книгу (загрузка при старте) индексы
+    // строятся сразу из разделов снимка; в непустую контакты добавляются по одному с вытеснением.
+    int importSnapshot(Path path) throws IOException {
+        try (PhoneBookSnapshot snapshot = PhoneBookSnapshot.open(path)) {
+            long stamp = lock.writeLock();
+            try {
+                if (contactsByName.isEmpty()) {
+                    loadSnapshot(snapshot);
+                } else {
+                    snapshot.forEach(this::putContact);
+                }
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+            compactAfterImport();
+            return snapshot.size();
+        }
+    }
+
+    // Имена в снимке уникальны и идут по возрастанию, номера уже распределены между контактами,
+    // поэтому вытеснять нечего и номера записей не разбираются
+    private void loadSnapshot(PhoneBookSnapshot snapshot) {
+        int[] ids = new int[snapshot.size()];
+        for (int i = 0; i < ids.length; i++) {
+            Contact contact = snapshot.get(i);
+            int id = contactIds.register(contact);
+            ids[i] = id;
+            contactsByName.put(contact.getName(), id);
+            namePrefixes.add(contact.getName());
+            nameTrigrams.add(id, contact.getName());
+            changedNames.add(contact.getName());
+        }
+        contactsByPhone.ensureCapacity(snapshot.phoneCount());
+        snapshot.forEachPhone((key, owner) -> contactsByPhone.put(key, ids[owner]));
+    }
+
+    private ContactTable.Frozen freezeContacts() {
+        return contactIds.freeze(liveIds());
+    }
+
+    private int[] liveIds() {
+        int[] ids = new int[contactsByName.size()];
+        int count = 0;
+        for (Integer id : contactsByName.values()) {
+            ids[count++] = id;
+        }
+        return ids;
+    }
+
+    // Копия индекса номеров снимается под блокировкой вместе с ids; id владельцев переводятся
+    // в позиции в ids уже без нее
+    private static LongIntHashMap ownerOrdinals(LongIntHashMap owners, int[] ids) {
+        int maxId = -1;
+        for (int id : ids) {
+            maxId = Math.max(maxId, id);
+        }
+        int[] ordinals = new int[maxId + 1];
+        Arrays.fill(ordinals, LongIntHashMap.MISSING);
+        for (int i = 0; i < ids.length; i++) {
+            ordinals[ids[i]] = i;
+        }
+        owners.replaceValues(id -> id >= 0 && id < ordinals.length ? ordinals[id] : LongIntHashMap.MISSING);
+        return owners;
+    }
+
+    // Все apply*/put*/drop* вызываются под блокировкой записи (или до публикации хранилища)
+    private void applyAdd(String name, String phone) {
+        Integer id = contactsByName.get(name);
+        if (id == null) {
+            Contact contact = new Contact(name);
+            contact.addPhoneNumber(phone);
+            putContact(contact);
+            return;
+        }
+        Contact current = contactIds.peek(id);
+        Contact updated = current.copy();
+        updated.addPhoneNumber(phone);
+        contactIds.replace(current, updated);
+        indexPhone(phone, updated);
+        changedNames.add(name);
+    }
+
+    private void applyRemove(String name) {
+        Integer id = contactsByName.remove(name);
+        if (id != null) {
+            changedNames.add(name);
+            namePrefixes.remove(name);
+            dropContact(contactIds.peek(id));
+        }
+    }
+
+    // Контакт занимает свое имя в книге; прежний контакт с тем же именем вытесняется
+    private void putContact(Contact contact) {
+        contactIds.register(contact);
+        for (String phone : contact.getPhoneNumbers()) {
+            indexPhone(phone, contact);
+        }
+        Integer previous = contactsByName.put(contact.getName(), contact.getId());
+        if (previous != null) {
+            dropContact(contactIds.peek(previous));
+        }
+        namePrefixes.add(contact.getName());
+        nameTrigrams.add(contact.getId(), contact.getName());
+        changedNames.add(contact.getName());
+    }
+
+    // Номера, которые нельзя упаковать (старые данные, импортированные без проверки формата),
+    // в обратный индекс не попадают
+    private void indexPhone(String phone, Contact contact) {
+        long key = PhoneNumbers.pack(phone);
+        if (key >= 0) {
+            contactsByPhone.put(key, contact.getId());
+        }
+    }
+
+    // Из обратного индекса уходят только номера, которые все еще указывают на этот контакт
+    private void dropContact(Contact contact) {
+        for (String phone : contact.getPhoneNumbers()) {
+            long key = PhoneNumbers.pack(phone);
+            if (key >= 0) {
+                contactsByPhone.remove(key, contact.getId());
+            }
+        }
+        nameTrigrams.remove(contact.getId(), contact.getName());
+        contactIds.release(contact);
+    }
+
+    // Уплотнение идет в потоке compactor, а не у писателя: тот только будит его, когда журнал
+    // перерос порог, не дожидаясь очередной плановой проверки
+    private void requestCompaction(PhoneBookJournal log) {
+        if (log.size() >= COMPACT_JOURNAL_BYTES && compactionRequested.compareAndSet(false, true)) {
+            try {
+                compactor.execute(this::maybeCompact);
+            } catch (RejectedExecutionException e) {
+                compactionRequested.set(false); // хранилище закрывается
+            }
+        }
+    }
+
+    private void maybeCompact() {
+        compactionRequested.set(false);
+        PhoneBookJournal log = journal;
+        if (log == null) {
+            return;
+        }
+        try {
+            long journalBytes = log.size();
+            boolean due = System.currentTimeMillis() - lastCompaction >= COMPACT_INTERVAL_MILLIS;
+            if (journalBytes >= COMPACT_JOURNAL_BYTES || (due && journalBytes > 0)) {
+                compact();
+            }
+        } catch (IOException e) {
+            System.err.println("Ошибка уплотнения журнала: " + e.getMessage());
+        }
+    }
+
+    // Импорт не пишется в журнал построчно: сразу после него книга сохраняется новым снимком.
+    // Уже идущее уплотнение могло скопировать контакты до конца импорта, поэтому ждем его
+    // и уплотняем еще раз, а не пропускаем.
+    private void compactAfterImport() throws IOException {
+        if (journal != null) {
+            compaction.lock();
+            try {
+                compactLocked();
+            } finally {
+                compaction.unlock();
+            }
+        }
+    }
+
+    // Плановое уплотнение пропускается, если уже идет другое: все, что после него, есть в журнале
+    void compact() throws IOException {
+        if (!compaction.tryLock()) {
+            return;
+        }
+        try {
+            compactLocked();
+        } finally {
+            compaction.unlock();
+        }
+    }
+
+    // Под блокировкой записи открывается новый журнал и копируется список контактов; снимок пишется
+    // уже без блокировки. При сбое во время записи восстановление возьмет прежний снимок и оба журнала.
+    private void compactLocked() throws IOException {
+        long next;
+        PhoneBookJournal previous;
+        int[] ids;
+        ContactTable.Frozen contacts;
+        LongIntHashMap owners;
+        long stamp = lock.writeLock();
+        try {
+            if (journal == null) {
+                return;
+            }
+            next = generation + 1;
+            previous = journal;
+            journal = new PhoneBookJournal(journalPath(storageDir, next), commitWindowMillis);
+            generation = next;
+            ids = liveIds();
+            contacts = contactIds.freeze(ids);
+            owners = contactsByPhone.copy();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        try (contacts) {
+            previous.close();
+            PhoneBookSnapshot.write(snapshotPath(storageDir, next), contacts, ownerOrdinals(owners, ids));
+        }
+        lastCompaction = System.currentTimeMillis();
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(storageDir)) {
+            for (Path file : files) {
+                long snapshotFile = parseGeneration(file, SNAPSHOT_PREFIX, ".pbk");
+                long journalFile = parseGeneration(file, JOURNAL_PREFIX, ".log");
+                if ((snapshotFile >= 0 && snapshotFile < next) || (journalFile >= 0 && journalFile < next)) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (compactor != null) {
+            compactor.shutdownNow();
+        }
+        PhoneBookJournal log;
+        long stamp = lock.writeLock();
+        try {
+            log = journal;
+            journal = null;
+            contactIds.close();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        if (log != null) {
+            log.close();
+        }
+    }
+
+    private static Path snapshotPath(Path dir, long generation) {
+        return dir.resolve(String.format("%s%06d.pbk", SNAPSHOT_PREFIX, generation));
+    }
+
+    private static Path journalPath(Path dir, long generation) {
+        return dir.resolve(String.format("%s%06d.log", JOURNAL_PREFIX, generation));
+    }
+
+    private static long parseGeneration(Path file, String prefix, String suffix) {
+        String name = file.getFileName().toString();
+        if (!name.startsWith(prefix) || !name.endsWith(suffix)) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
+
+// Проверки хранилища на диске: java PhoneBookStoreCheck. Каждая работает во временном каталоге
+// и бросает IllegalStateException при расхождении.
+class PhoneBookStoreCheck {
+    public static void main(String[] args) throws IOException {
+        sharedPhoneSurvivesReopen(0);
+        sharedPhoneSurvivesReopen(16);
+        System.out.println("Проверки хранилища пройдены");
+    }
+
+    // Общий номер после уплотнения и перезапуска остается за тем, кто взял его последним,
+    // хотя по имени тот идет в снимке первым
+    private static void sharedPhoneSurvivesReopen(int cacheSize) throws IOException {
+        Path dir = Files.createTempDirectory("phonebook-check");
+        try {
+            try (PhoneBookStore store = PhoneBookStore.open(dir, 0, cacheSize)) {
+                store.add("Zed", "5551234");
+                store.add("Abe", "5551234");
+                expectOwner(store, "5551234", "Abe", "до уплотнения");
+                store.compact();
+            }
+            try (PhoneBookStore store = PhoneBookStore.open(dir, 0, cacheSize)) {
+                expectOwner(store, "5551234", "Abe", "после перезапуска");
+                if (store.findByName("Zed") == null) {
+                    throw new IllegalStateException("после перезапуска пропал контакт Zed");
+                }
+            }
+        } finally {
+            deleteTree(dir);
+        }
+    }
+
+    private static void expectOwner(PhoneBookStore store, String phone, String name, String stage) {
+        Contact owner = store.findByPhone(phone);
+        if (owner == null || !owner.getName().equals(name)) {
+            throw new IllegalStateException(stage + ": номер " + phone + " у " + owner + ", ожидался " + name);
+        }
+    }
+
+    private static void deleteTree(Path dir) throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path file : files) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(dir);
+    }
+}
+
+// Замеры телефонной книги: java PhoneBookBenchmark [--large]
+// (замеры на 10 млн - с --large, им нужно около 4 ГБ кучи: java -Xmx4g PhoneBookBenchmark --large)
+class PhoneBookBenchmark {
+    public static void main(String[] args) {
+        testPhoneIndexFootprint(1000000);
+        testStoreReadScaling(1000000);
+        testFuzzySearchLatency(1000000);
+        testPhoneNormalization(2000000);
+
+        if (Arrays.asList(args).contains("--large")) {
+            testPhoneIndexFootprint(10000000);
+            testFuzzySearchLatency(10000000);
+        }
+    }
+
+    // Обратный индекс телефонной книги: HashMap<String, контакт> против LongIntHashMap
+    private static void testPhoneIndexFootprint(int phoneCount) {
+        System.out.println("=== ОБРАТНЫЙ ИНДЕКС НОМЕРОВ ===");
+        System.out.println("Количество номеров: " + phoneCount);
+        System.out.println("--------------------------------------------------");
+        System.out.printf("%-15s %-15s %-15s %-15s%n",
+                "Индекс", "Память (МБ)", "Байт/номер", "Поиск (мс)");
+        System.out.println("--------------------------------------------------");
+
+        Object contact = new Object(); // контакт общий с индексом имен, его размер не учитываем
+        long before = usedMemory();
+        Map<String, Object> hashMap = new HashMap<>();
+        for (int i = 0; i < phoneCount; i++) {
+            hashMap.put(phoneNumber(i), contact);
+        }
+        long hashMapBytes = usedMemory() - before;
+        long startTime = System.nanoTime();
+        int found = 0;
+        for (int i = 0; i < phoneCount; i += 10) {
+            if (hashMap.get(phoneNumber(i)) != null) found++;
+        }
+        long hashMapSearchTime = (System.nanoTime() - startTime) / 1000000;
+        hashMap = null;
+
+        before = usedMemory();
+        LongIntHashMap longMap = new LongIntHashMap();
+        for (int i = 0; i < phoneCount; i++) {
+            longMap.put(PhoneNumbers.pack(phoneNumber(i)), i);
+        }
+        long longMapBytes = usedMemory() - before;
+        long[] keys = new long[phoneCount / 10 + 1];
+        for (int i = 0; i < phoneCount; i += 10) {
+            keys[i / 10] = PhoneNumbers.pack(phoneNumber(i));
+        }
+        startTime = System.nanoTime();
+        for (long key : keys) {
+            if (longMap.get(key) != LongIntHashMap.MISSING) found++;
+        }
+        long longMapSearchTime = (System.nanoTime() - startTime) / 1000000;
+
+        System.out.printf("%-15s %-15d %-15d %-15d%n",
+                "HashMap", hashMapBytes >> 20, hashMapBytes / phoneCount, hashMapSearchTime);
+        System.out.printf("%-15s %-15d %-15d %-15d%n",
+                "LongIntHashMap", longMapBytes >> 20, longMapBytes / phoneCount, longMapSearchTime);
+        System.out.println("(найдено " + found + ", поиск в HashMap включает построение строки-ключа)");
+        System.out.println();
+    }
+
+    // Пропускная способность чтения PhoneBookStore в зависимости от числа потоков-читателей
+    private static void testStoreReadScaling(int contactCount) {
+        System.out.println("=== ЧТЕНИЕ PhoneBookStore ИЗ НЕСКОЛЬКИХ ПОТОКОВ ===");
+        System.out.println("Количество контактов: " + contactCount);
+        System.out.println("--------------------------------------------------");
+        System.out.printf("%-15s %-15s %-15s%n", "Потоков", "Поисков/с", "Ускорение");
+        System.out.println("--------------------------------------------------");
+
+        PhoneBookStore store = new PhoneBookStore();
+        try {
+            for (int i = 0; i < contactCount; i++) {
+                store.add("Контакт " + i, phoneNumber(i));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        long singleThread = 0;
+        int maxThreads = Runtime.getRuntime().availableProcessors();
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            long millis = 1000;
+            long perSecond = measureLookups(store, contactCount, threads, millis) * 1000 / millis;
+            if (threads == 1) singleThread = perSecond;
+            System.out.printf("%-15d %-15d %-15.2f%n", threads, perSecond, (double) perSecond / singleThread);
+        }
+        System.out.println();
+    }
+
+    // Проверка номеров: регулярное выражение против ручного разбора с нормализацией,
+    // плюс отсев повторов по упакованному номеру, как при импорте
+    private static void testPhoneNormalization(int phoneCount) {
+        System.out.println("=== НОРМАЛИЗАЦИЯ НОМЕРОВ ===");
+        System.out.println("Количество номеров: " + phoneCount);
+        System.out.println("--------------------------------------------------");
+        System.out.printf("%-30s %-15s %-15s%n", "Способ", "Время (мс)", "Номеров/с");
+        System.out.println("--------------------------------------------------");
+
+        String[] plain = new String[phoneCount];
+        String[] formatted = new String[phoneCount];
+        for (int i = 0; i < phoneCount; i++) {
+            // каждый пятый номер повторяется
+            String digits = phoneNumber(i % 5 == 4 ? i - 1 : i);
+            plain[i] = digits;
+            formatted[i] = "+" + digits.charAt(0) + " (" + digits.substring(1, 4) + ") "
+                    + digits.substring(4, 7) + "-" + digits.substring(7, 9) + "-" + digits.substring(9);
+        }
+
+        int valid = 0;
+        long startTime = System.nanoTime();
+        for (String phone : plain) {
+            if (phone.matches("\\d{6,15}")) valid++;
+        }
+        long regexTime = System.nanoTime() - startTime;
+
+        startTime = System.nanoTime();
+        for (String phone : formatted) {
+            if (PhoneNumbers.normalize(phone) >= 0) valid++;
+        }
+        long normalizeTime = System.nanoTime() - startTime;
+
+        LongIntHashMap unique = new LongIntHashMap();
+        startTime = System.nanoTime();
+        for (int i = 0; i < phoneCount; i++) {
+            long key = PhoneNumbers.normalize(formatted[i]);
+            if (key >= 0) unique.put(key, i);
+        }
+        long dedupTime = System.nanoTime() - startTime;
+
+        printRate("matches(\\d{6,15})", regexTime, phoneCount);
+        printRate("normalize", normalizeTime, phoneCount);
+        printRate("normalize + повторы", dedupTime, phoneCount);
+        System.out.println("(допустимых " + valid + ", различных " + unique.size() + ")");
+        System.out.println();
+    }
+
+    private static void printRate(String name, long nanos, int count) {
+        System.out.printf("%-30s %-15d %-15d%n", name, nanos / 1000000, count * 1000000000L / Math.max(1, nanos));
+    }
+
+    // Задержка нечеткого поиска (одна опечатка в существующем имени)
+    private static void testFuzzySearchLatency(int contactCount) {
+        System.out.println("=== НЕЧЕТКИЙ ПОИСК PhoneBookStore ===");
+        System.out.println("Количество контактов: " + contactCount);
+        System.out.println("--------------------------------------------------");
+
+        // Имена из слогов "согласная + гласная" и типичных окончаний фамилий
+        String consonants = "бвгдзклмнпрстфхцчшщ";
+        String vowels = "аеиоуыя";
+        String[] endings = {"ов", "ова", "ев", "ин", "ина", "ский", "ская", "енко", "ук"};
+        Random random = new Random(42);
+        String[] names = new String[contactCount];
+        PhoneBookStore store = new PhoneBookStore();
+        try {
+            for (int i = 0; i < contactCount; i++) {
+                StringBuilder name = new StringBuilder();
+                for (int part = 0; part < 2; part++) {
+                    if (part > 0) name.append(' ');
+                    int count = 2 + random.nextInt(2);
+                    for (int k = 0; k < count; k++) {
+                        name.append(consonants.charAt(random.nextInt(consonants.length())))
+                                .append(vowels.charAt(random.nextInt(vowels.length())));
+                    }
+                    if (part == 0) name.append(endings[random.nextInt(endings.length)]);
+                }
+                names[i] = name.toString();
+                store.add(names[i], phoneNumber(i));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        for (int q = 0; q < 1000; q++) { // прогрев JIT
+            store.findFuzzy(names[random.nextInt(contactCount)], 20);
+        }
+        int queries = 2000;
+        long[] latencies = new long[queries];
+        long found = 0;
+        for (int q = 0; q < queries; q++) {
+            StringBuilder query = new StringBuilder(names[random.nextInt(contactCount)]);
+            query.setCharAt(random.nextInt(query.length()), 'ы');
+            long startTime = System.nanoTime();
+            found += store.findFuzzy(query.toString(), 20).size();
+            latencies[q] = System.nanoTime() - startTime;
+        }
+        Arrays.sort(latencies);
+        System.out.printf("p50: %.2f мс, p99: %.2f мс, max: %.2f мс, в среднем найдено %.1f%n",
+                latencies[queries / 2] / 1e6, latencies[queries * 99 / 100] / 1e6,
+                latencies[queries - 1] / 1e6, (double) found / queries);
+        System.out.println();
+    }
+
+    private static long measureLookups(PhoneBookStore store, int contactCount, int threads, long millis) {
+        LongAdder lookups = new LongAdder();
+        long deadline = System.nanoTime() + millis * 1000000;
+        List<Thread> readers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int seed = t;
+            Thread reader = new Thread(() -> {
+                Random random = new Random(seed);
+                long count = 0;
+                while (System.nanoTime() < deadline) {
+                    int i = random.nextInt(contactCount);
+                    // половина поисков по номеру, половина по имени
+                    if ((count & 1) == 0) {
+                        store.findByPhone(phoneNumber(i));
+                    } else {
+                        store.findByName("Контакт " + i);
+                    }
+                    count++;
+                }
+                lookups.add(count);
+            });
+            readers.add(reader);
+            reader.start();
+        }
+        for (Thread reader : readers) {
+            try {
+                reader.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return lookups.sum();
+    }
+
+    private static String phoneNumber(int i) {
+        return Long.toString(79000000000L + i * 7L);
+    }
+
+    private static long usedMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
+
+// Двоичный протокол сервера телефонной книги.
+// Запрос: int id, byte операция, тело. Ответ: int id, byte статус, тело (при ERROR - UTF сообщение).
+// Ответы на одном соединении идут в порядке запросов, поэтому клиент может слать запросы,
+// не дожидаясь ответов (конвейер), и сопоставлять их по очереди.
+class PhoneBookProtocol {
+    static final byte LOOKUP_PHONES = 1;  // int n, n x long упакованный номер -> n x [контакт]
+    static final byte FIND_NAME = 2;      // UTF имя -> [контакт]
+    static final byte FIND_PREFIX = 3;    // UTF префикс, int предел -> int n, n x контакт
+    static final byte FIND_FUZZY = 4;     // UTF запрос, int предел -> int n, n x контакт
+    static final byte ADD = 5;            // UTF имя, long упакованный номер -> пусто
+    static final byte REMOVE = 6;         // UTF имя -> boolean удален
+
+    static final byte OK = 0;
+    static final byte ERROR = 1;
+
+    static final int MAX_BATCH = 1 << 16;
+    static final int MAX_RESULTS = 1000;
+    static final int BUFFER_SIZE = 64 << 10;
+
+    private PhoneBookProtocol() {}
+
+    // Контакт: UTF имя, ushort число номеров, номера упакованными long
+    static void writeContact(DataOutputStream out, Contact contact) throws IOException {
+        out.writeUTF(contact.getName());
+        List<String> phones = contact.getPhoneNumbers();
+        int packable = 0;
+        for (String phone : phones) {
+            if (PhoneNumbers.pack(phone) >= 0) {
+                packable++;
+            }
+        }
+        out.writeShort(packable);
+        for (String phone : phones) {
+            long packed = PhoneNumbers.pack(phone);
+            if (packed >= 0) {
+                out.writeLong(packed);
+            }
+        }
+    }
+
+    static Contact readContact(DataInputStream in) throws IOException {
+        Contact contact = new Contact(in.readUTF());
+        int phones = in.readUnsignedShort();
+        for (int i = 0; i < phones; i++) {
+            contact.addPhoneNumber(PhoneNumbers.unpack(in.readLong()));
+        }
+        return contact;
+    }
+
+    // [контакт]: boolean есть ли контакт, затем сам контакт
+    static void writeOptional(DataOutputStream out, Contact contact) throws IOException {
+        out.writeBoolean(contact != null);
+        if (contact != null) {
+            writeContact(out, contact);
+        }
+    }
+
+    static Contact readOptional(DataInputStream in) throws IOException {
+        return in.readBoolean() ? readContact(in) : null;
+    }
+
+    static void writeList(DataOutputStream out, List<Contact> contacts) throws IOException {
+        out.writeInt(contacts.size());
+        for (Contact contact : contacts) {
+            writeContact(out, contact);
+        }
+    }
+
+    static List<Contact> readList(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        List<Contact> contacts = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            contacts.add(readContact(in));
+        }
+        return contacts;
+    }
+}
+
+// Сервер телефонной книги: по виртуальному потоку на соединение поверх общего PhoneBookStore.
+// Чтение из хранилища без блокировок, поэтому соединения друг другу почти не мешают.
+// Ответы копятся в буфере и уходят одной записью, когда конвейер запросов клиента исчерпан.
+class PhoneBookServer implements Closeable {
+    private final PhoneBookStore store;
+    private final ServerSocket serverSocket;
+    private final ExecutorService connections = Executors.newVirtualThreadPerTaskExecutor();
+    private final Set<Socket> sockets = Collections.synchronizedSet(new HashSet<>());
+    private final Thread acceptor;
+    private volatile boolean closed;
+
+    public PhoneBookServer(PhoneBookStore store, InetSocketAddress address) throws IOException {
+        this.store = store;
+        serverSocket = new ServerSocket();
+        serverSocket.bind(address);
+        acceptor = Thread.ofPlatform().name("phonebook-acceptor").start(this::acceptLoop);
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    private void acceptLoop() {
+        while (!closed) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                sockets.add(socket);
+                // close() мог пройти между accept и add и этого сокета уже не увидеть
+                if (closed) {
+                    socket.close();
+                    break;
+                }
+                try {
+                    connections.execute(() -> serve(socket));
+                } catch (RejectedExecutionException e) {
+                    sockets.remove(socket);
+                    socket.close();
+                }
+            } catch (IOException e) {
+                if (!closed) {
+                    System.err.println("Ошибка приема соединения: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (socket) {
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(socket.getInputStream(), PhoneBookProtocol.BUFFER_SIZE));
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(socket.getOutputStream(), PhoneBookProtocol.BUFFER_SIZE));
+            Session session = new Session();
+            while (true) {
+                int requestId;
+                try {
+                    requestId = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                try {
+                    handle(requestId, in.readByte(), in, out, session);
+                } catch (RuntimeException e) {
+                    // тело запроса уже прочитано, а ответ еще не начат: хранилище падает до writeHeader
+                    writeError(out, requestId, "ошибка сервера: " + e);
+                }
+                if (in.available() == 0) {
+                    out.flush();
+                }
+            }
+            out.flush();
+        } catch (SocketException | EOFException e) {
+            // клиент закрыл соединение посреди запроса
+        } catch (IOException e) {
+            if (!closed) {
+                System.err.println("Ошибка соединения " + socket.getRemoteSocketAddress() + ": " + e.getMessage());
+            }
+        } finally {
+            sockets.remove(socket);
+        }
+    }
+
+    // Буферы пакетного поиска живут столько же, сколько соединение
+    private static final class Session {
+        long[] keys = new long[256];
+        Contact[] results = new Contact[256];
+
+        void ensureCapacity(int count) {
+            if (keys.length < count) {
+                keys = new long[count];
+                results = new Contact[count];
+            }
+        }
+    }
+
+    private void handle(int requestId, byte operation, DataInputStream in, DataOutputStream out,
+                        Session session) throws IOException {
+        switch (operation) {
+            case PhoneBookProtocol.LOOKUP_PHONES -> {
+                int count = in.readInt();
+                if (count < 0 || count > PhoneBookProtocol.MAX_BATCH) {
+                    throw new IOException("недопустимый размер пакета: " + count);
+                }
+                session.ensureCapacity(count);
+                // Ключи приходят от клиента как есть; 0 и отрицательные - не номера, их ответ null
+                for (int i = 0; i < count; i++) {
+                    long key = in.readLong();
+                    session.keys[i] = key > 0 ? key : PhoneNumbers.INVALID_CHAR;
+                }
+                store.findByPhones(session.keys, session.results, count);
+                writeHeader(out, requestId, PhoneBookProtocol.OK);
+                out.writeInt(count);
+                for (int i = 0; i < count; i++) {
+                    PhoneBookProtocol.writeOptional(out, session.results[i]);
+                    session.results[i] = null;
+                }
+            }
+            case PhoneBookProtocol.FIND_NAME -> {
+                Contact contact = store.findByName(in.readUTF());
+                writeHeader(out, requestId, PhoneBookProtocol.OK);
+                PhoneBookProtocol.writeOptional(out, contact);
+            }
+            case PhoneBookProtocol.FIND_PREFIX -> {
+                String prefix = in.readUTF();
+                List<Contact> contacts = store.findByPrefix(prefix, resultLimit(in.readInt()));
+                writeHeader(out, requestId, PhoneBookProtocol.OK);
+                PhoneBookProtocol.writeList(out, contacts);
+            }
+            case PhoneBookProtocol.FIND_FUZZY -> {
+                String query = in.readUTF();
+                List<Contact> contacts = store.findFuzzy(query, resultLimit(in.readInt()));
+                writeHeader(out, requestId, PhoneBookProtocol.OK);
+                PhoneBookProtocol.writeList(out, contacts);
+            }
+            case PhoneBookProtocol.ADD -> {
+                String name = in.readUTF();
+                long key = in.readLong();
+                try {
+                    if (key < 0) {
+                        throw new IllegalArgumentException("неверный номер");
+                    }
+                    store.add(name, PhoneNumbers.unpack(key));
+                    writeHeader(out, requestId, PhoneBookProtocol.OK);
+                } catch (IllegalArgumentException | IOException e) {
+                    writeError(out, requestId, e.getMessage());
+                }
+            }
+            case PhoneBookProtocol.REMOVE -> {
+                String name = in.readUTF();
+                try {
+                    boolean removed = store.remove(name);
+                    writeHeader(out, requestId, PhoneBookProtocol.OK);
+                    out.writeBoolean(removed);
+                } catch (IOException e) {
+                    writeError(out, requestId, e.getMessage());
+                }
+            }
+            // Тело неизвестной операции не пропустить: дальше поток не разобрать
+            default -> throw new IOException("неизвестная операция: " + operation);
+        }
+    }
+
+    private static int resultLimit(int requested) {
+        return Math.max(0, Math.min(requested, PhoneBookProtocol.MAX_RESULTS));
+    }
+
+    private static void writeHeader(DataOutputStream out, int requestId, byte status) throws IOException {
+        out.writeInt(requestId);
+        out.writeByte(status);
+    }
+
+    private static void writeError(DataOutputStream out, int requestId, String message) throws IOException {
+        writeHeader(out, requestId, PhoneBookProtocol.ERROR);
+        out.writeUTF(String.valueOf(message));
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        serverSocket.close();
+        synchronized (sockets) {
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+        }
+        connections.shutdown();
+        try {
+            acceptor.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Аргументы: [порт [каталог хранилища [окно групповой фиксации, мс [кэш контактов]]]]
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 7070;
+        PhoneBookStore store;
+        if (args.length > 1) {
+            long commitWindowMillis = args.length > 2 ? Long.parseLong(args[2]) : 5;
+            int cacheSize = args.length > 3 ? Integer.parseInt(args[3]) : 0;
+            store = PhoneBookStore.open(Path.of(args[1]), commitWindowMillis, cacheSize);
+        } else {
+            store = new PhoneBookStore();
+        }
+
+        PhoneBookServer server = new PhoneBookServer(store, new InetSocketAddress(port));
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                server.close();
+                store.close();
+            } catch (IOException e) {
+                System.err.println("Ошибка остановки: " + e.getMessage());
+            }
+        }));
+        System.out.println("Сервер телефонной книги слушает порт " + server.getPort()
+                + " (контактов: " + store.size() + ")");
+    }
+}
+
+public class PhoneBook
 {
-    private Map<String, Contact> contactsByName;
-    private Map<String, Contact> contactsByPhone;
+    private static final int PREFIX_RESULTS = 20;
+    private static final int LIST_PAGE_SIZE = 100;
+
+    private PhoneBookStore store;
     private Scanner scanner;
 
     public PhoneBook() {
-        contactsByName = new TreeMap<>();
-        contactsByPhone = new HashMap<>();
+        this(new PhoneBookStore());
+    }
+
+    public PhoneBook(PhoneBookStore store) {
+        this.store = store;
         scanner = new Scanner(System.in);
     }
 
@@ -19,7 +4021,15 @@
             System.out.println("5. Показать все контакты");
             System.out.println("6. Экспорт в файл");
             System.out.println("7. Импорт из файла");
-            System.out.println("8. Выйти");
+            System.out.println("8. Экспорт в бинарный снимок");
+            System.out.println("9. Импорт из бинарного снимка");
+            System.out.println("10. Массовый импорт из файла (параллельно)");
+            System.out.println("11. Найти контакты по началу имени");
+            System.out.println("12. Нечеткий поиск по имени");
+            System.out.println("13. Экспорт изменений в файл");
+            System.out.println("14. Импорт изменений из файла");
+            System.out.println("15. Статистика хранилища");
+            System.out.println("16. Выйти");
             System.out.print("Выберите действие: ");
 
             int choice = scanner.nextInt();
@@ -33,7 +4043,20 @@
                 case 5 -> showAllContacts();
                 case 6 -> exportToFile();
                 case 7 -> importFromFile();
-                case 8 -> {
+                case 8 -> exportSnapshot();
+                case 9 -> importSnapshot();
+                case 10 -> bulkImportFromFile();
+                case 11 -> findContactsByPrefix();
+                case 12 -> findContactsFuzzy();
+                case 13 -> exportChanges();
+                case 14 -> importChanges();
+                case 15 -> showStorageStats();
+                case 16 -> {
+                    try {
+                        store.close();
+                    } catch (IOException e) {
+                        System.out.println("Ошибка закрытия хранилища: " + e.getMessage());
+                    }
                     System.out.println("Выход из телефонной книги...");
                     return;
                 }
@@ -46,45 +4069,44 @@
         System.out.print("Введите имя контакта: ");
         String name = scanner.nextLine();
 
-        Contact contact = contactsByName.getOrDefault(name, new Contact(name));
-
         System.out.print("Введите номер телефона: ");
         String phone = scanner.nextLine();
 
-        // Проверка формата номера
-        if (!isValidPhoneNumber(phone)) {
-            System.out.println("Неверный формат номера!");
+        // Проверка формата номера; скобки, пробелы, дефисы и '+' допустимы
+        long key = PhoneNumbers.normalize(phone);
+        if (key < 0) {
+            System.out.println("Неверный формат номера: " + PhoneNumbers.describe(key) + "!");
             return;
         }
 
-        contact.addPhoneNumber(phone);
-        contactsByName.put(name, contact);
-        contactsByPhone.put(phone, contact);
-        System.out.println("Контакт добавлен/обновлен!");
+        try {
+            store.add(name, phone);
+            System.out.println("Контакт добавлен/обновлен!");
+        } catch (IOException e) {
+            System.out.println("Ошибка журнала: " + e.getMessage());
+        }
     }
 
     private void removeContact() {
         System.out.print("Введите имя контакта для удаления: ");
         String name = scanner.nextLine();
 
-        Contact contact = contactsByName.get(name);
-        if (contact == null) {
-            System.out.println("Контакт не найден!");
-            return;
-        }
-
-        for (String phone : contact.getPhoneNumbers()) {
-            contactsByPhone.remove(phone);
+        try {
+            if (store.remove(name)) {
+                System.out.println("Контакт удален!");
+            } else {
+                System.out.println("Контакт не найден!");
+            }
+        } catch (IOException e) {
+            System.out.println("Ошибка журнала: " + e.getMessage());
         }
-        contactsByName.remove(name);
-        System.out.println("Контакт удален!");
     }
 
     private void findContactByName() {
         System.out.print("Введите имя для поиска: ");
         String name = scanner.nextLine();
 
-        Contact contact = contactsByName.get(name);
+        Contact contact = store.findByName(name);
         if (contact == null) {
             System.out.println("Контакт не найден!");
             return;
@@ -98,7 +4120,7 @@
         System.out.print("Введите номер телефона: ");
         String phone = scanner.nextLine();
 
-        Contact contact = contactsByPhone.get(phone);
+        Contact contact = store.findByPhone(phone);
         if (contact == null) {
             System.out.println("Контакт не найден!");
             return;
@@ -108,15 +4130,78 @@
         System.out.println(contact);
     }
 
+    private void findContactsByPrefix() {
+        System.out.print("Введите начало имени: ");
+        String prefix = scanner.nextLine();
+
+        List<Contact> contacts = store.findByPrefix(prefix, PREFIX_RESULTS);
+        if (contacts.isEmpty()) {
+            System.out.println("Контакты не найдены!");
+            return;
+        }
+
+        System.out.println("\nНайденные контакты:");
+        for (Contact contact : contacts) {
+            System.out.println(contact);
+        }
+        if (contacts.size() == PREFIX_RESULTS) {
+            System.out.println("(показаны первые " + PREFIX_RESULTS + ", уточните запрос)");
+        }
+    }
+
+    private void findContactsFuzzy() {
+        System.out.print("Введите имя (можно с опечатками): ");
+        String query = scanner.nextLine();
+
+        List<Contact> contacts = store.findFuzzy(query, PREFIX_RESULTS);
+        if (contacts.isEmpty()) {
+            System.out.println("Контакты не найдены!");
+            return;
+        }
+
+        System.out.println("\nПохожие контакты:");
+        for (Contact contact : contacts) {
+            System.out.println(contact);
+        }
+    }
+
+    private void showStorageStats() {
+        System.out.println("\nКонтактов: " + store.size());
+        System.out.println("Изменений с прошлого экспорта: " + store.pendingChanges());
+        ContactCache cache = store.cache();
+        if (cache == null) {
+            System.out.println("Все контакты в памяти");
+        } else {
+            System.out.println("Контакты в страничном файле, " + cache);
+        }
+    }
+
     private void showAllContacts() {
-        if (contactsByName.isEmpty()) {
+        if (store.size() == 0) {
             System.out.println("Телефонная книга пуста!");
             return;
         }
 
-        System.out.println("\n=== Все контакты (" + contactsByName.size() + ") ===");
-        for (Contact contact : contactsByName.values()) {
-            System.out.println(contact);
+        System.out.print("С какого имени начать (Enter - с начала): ");
+        String from = scanner.nextLine();
+
+        System.out.println("\n=== Все контакты (" + store.size() + ") ===");
+        ContactPage page = store.seek(from, LIST_PAGE_SIZE);
+        while (true) {
+            // страница собирается целиком и выводится одной записью
+            StringBuilder text = new StringBuilder();
+            for (Contact contact : page.getContacts()) {
+                text.append(contact).append('\n');
+            }
+            System.out.print(text);
+            if (page.getNextToken() == null) {
+                return;
+            }
+            System.out.print("Enter - следующая страница, q - закончить: ");
+            if (scanner.nextLine().trim().equalsIgnoreCase("q")) {
+                return;
+            }
+            page = store.page(page.getNextToken(), LIST_PAGE_SIZE);
         }
     }
 
@@ -124,58 +4209,124 @@
         System.out.print("Введите имя файла для экспорта: ");
         String filename = scanner.nextLine();
 
-        try (PrintWriter writer = new PrintWriter(new FileWriter(filename))) {
-            for (Contact contact : contactsByName.values()) {
-                writer.print(contact.getName() + "|");
-                List<String> phones = contact.getPhoneNumbers();
-                for (int i = 0; i < phones.size(); i++) {
-                    writer.print(phones.get(i));
-                    if (i < phones.size() - 1) writer.print(",");
-                }
-                writer.println();
-            }
+        try {
+            store.exportText(Path.of(filename));
             System.out.println("Контакты экспортированы в файл: " + filename);
         } catch (IOException e) {
             System.out.println("Ошибка экспорта: " + e.getMessage());
         }
     }
 
+    private void exportChanges() {
+        System.out.print("Введите имя файла для экспорта изменений: ");
+        String filename = scanner.nextLine();
+
+        try {
+            int changes = store.exportChanges(Path.of(filename));
+            System.out.println("Изменений экспортировано: " + changes + " в файл: " + filename);
+        } catch (IllegalStateException e) {
+            System.out.println("Экспорт изменений невозможен: " + e.getMessage());
+        } catch (IOException e) {
+            System.out.println("Ошибка экспорта: " + e.getMessage());
+        }
+    }
+
+    private void importChanges() {
+        System.out.print("Введите имя файла изменений: ");
+        String filename = scanner.nextLine();
+
+        try {
+            ImportReport report = store.importChanges(Path.of(filename));
+            System.out.println("Применено " + report.getImported() + " изменений из файла: " + filename);
+            printRejected(report);
+        } catch (IOException e) {
+            System.out.println("Ошибка импорта: " + e.getMessage());
+        }
+    }
+
     private void importFromFile() {
         System.out.print("Введите имя файла для импорта: ");
         String filename = scanner.nextLine();
 
-        try (BufferedReader reader = new BufferedReader(new FileReader(filename))) {
-            String line;
-            int imported = 0;
-            while ((line = reader.readLine()) != null) {
-                String[] parts = line.split("\\|");
-                if (parts.length == 2) {
-                    String name = parts[0];
-                    String[] phones = parts[1].split(",");
-
-                    Contact contact = new Contact(name);
-                    for (String phone : phones) {
-                        if (!phone.isEmpty()) {
-                            contact.addPhoneNumber(phone);
-                            contactsByPhone.put(phone, contact);
-                        }
-                    }
-                    contactsByName.put(name, contact);
-                    imported++;
-                }
-            }
-            System.out.println("Импортировано " + imported + " контактов из файла: " + filename);
+        try {
+            ImportReport report = store.importText(Path.of(filename));
+            System.out.println("Импортировано " + report.getImported() + " контактов из файла: " + filename);
+            printRejected(report);
+        } catch (IOException e) {
+            System.out.println("Ошибка импорта: " + e.getMessage());
+        }
+    }
+
+    private void bulkImportFromFile() {
+        System.out.print("Введите имя файла для импорта: ");
+        String filename = scanner.nextLine();
+
+        try {
+            long start = System.nanoTime();
+            ImportReport report = store.bulkImport(Path.of(filename), ForkJoinPool.commonPool());
+            long millis = (System.nanoTime() - start) / 1000000;
+            System.out.println("Импортировано " + report.getImported() + " контактов из файла: " + filename
+                    + " за " + millis + " мс");
+            printRejected(report);
         } catch (IOException e) {
             System.out.println("Ошибка импорта: " + e.getMessage());
         }
     }
 
-    private boolean isValidPhoneNumber(String phone) {
-        return phone.matches("\\d{6,15}");
+    private void printRejected(ImportReport report) {
+        if (report.getRejected() == 0) {
+            return;
+        }
+        System.out.println("Отклонено строк: " + report.getRejected());
+        for (ImportReport.Rejection rejection : report.getSample()) {
+            System.out.println("  " + rejection);
+        }
+        if (report.getRejected() > report.getSample().size()) {
+            System.out.println("  ...");
+        }
+    }
+
+    private void exportSnapshot() {
+        System.out.print("Введите имя файла снимка: ");
+        String filename = scanner.nextLine();
+
+        try {
+            store.exportSnapshot(Path.of(filename));
+            System.out.println("Снимок записан: " + filename + " (" + store.size() + " контактов)");
+        } catch (IOException e) {
+            System.out.println("Ошибка экспорта: " + e.getMessage());
+        }
+    }
+
+    private void importSnapshot() {
+        System.out.print("Введите имя файла снимка: ");
+        String filename = scanner.nextLine();
+
+        try {
+            int imported = store.importSnapshot(Path.of(filename));
+            System.out.println("Импортировано " + imported + " контактов из снимка: " + filename);
+        } catch (IOException e) {
+            System.out.println("Ошибка импорта: " + e.getMessage());
+        }
     }
 
+    // Аргументы: [каталог хранилища [окно групповой фиксации, мс [кэш контактов]]]
+    // С размером кэша контакты хранятся в страничном файле каталога, а в памяти - только индексы и кэш.
     public static void main(String[] args) {
-        PhoneBook phoneBook = new PhoneBook();
+        PhoneBookStore store;
+        if (args.length > 0) {
+            long commitWindowMillis = args.length > 1 ? Long.parseLong(args[1]) : 5;
+            int cacheSize = args.length > 2 ? Integer.parseInt(args[2]) : 0;
+            try {
+                store = PhoneBookStore.open(Path.of(args[0]), commitWindowMillis, cacheSize);
+            } catch (IOException e) {
+                System.out.println("Ошибка открытия хранилища: " + e.getMessage());
+                return;
+            }
+        } else {
+            store = new PhoneBookStore();
+        }
+        PhoneBook phoneBook = new PhoneBook(store);
         phoneBook.run();
     }
 }
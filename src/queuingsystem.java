@@ -1,4 +1,22 @@
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.text.CollationKey;
+import java.text.Collator;
 import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.IntConsumer;
+import java.util.function.IntFunction;
+import java.util.function.IntPredicate;
 
 class Student implements Comparable<Student> {
     private int id;
@@ -25,9 +43,10 @@ class Student implements Comparable<Student> {
         return String.format("%-5d %-15s %-15s %.2f", id, lastName, firstName, grade);
     }
 
+    // По фамилии, имени и id по правилам русского алфавита
     @Override
     public int compareTo(Student other) {
-        return this.lastName.compareTo(other.lastName);
+        return StudentOrder.BY_NAME.compare(this, other);
     }
 
     @Override
@@ -44,12 +63,3198 @@ class Student implements Comparable<Student> {
     }
 }
 
+// Порядок студентов: ключи по старшинству, каждый по возрастанию или убыванию; равные по всем
+// ключам идут по id. Имена сравниваются по правилам русского алфавита. Равные порядки делят
+// один поддерживаемый индекс в StudentStore; сам порядок - еще и Comparator для готовых списков.
+final class StudentOrder implements Comparator<Student> {
+    enum Key {
+        LAST_NAME("фамилия"), FIRST_NAME("имя"), ID("id"), GRADE("оценка");
+
+        final String title;
+
+        Key(String title) {
+            this.title = title;
+        }
+    }
+
+    static final Collator COLLATOR = Collator.getInstance(Locale.forLanguageTag("ru-RU"));
+    static final StudentOrder BY_NAME = new StudentOrder(
+            new Key[]{Key.LAST_NAME, Key.FIRST_NAME}, new boolean[]{false, false});
+
+    private final Key[] keys;
+    private final boolean[] descending;
+
+    private StudentOrder(Key[] keys, boolean[] descending) {
+        this.keys = keys;
+        this.descending = descending;
+    }
+
+    // "фамилия, имя, -оценка": ключи через запятую, минус - по убыванию
+    static StudentOrder parse(String spec) {
+        String[] parts = spec.split(",");
+        Key[] keys = new Key[parts.length];
+        boolean[] descending = new boolean[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            String part = parts[i].trim().toLowerCase(Locale.ROOT);
+            descending[i] = part.startsWith("-");
+            String title = descending[i] ? part.substring(1).trim() : part;
+            for (Key key : Key.values()) {
+                if (key.title.equals(title)) {
+                    keys[i] = key;
+                }
+            }
+            if (keys[i] == null) {
+                throw new IllegalArgumentException("неизвестный ключ сортировки: " + parts[i].trim());
+            }
+        }
+        return new StudentOrder(keys, descending);
+    }
+
+    int keyCount() {
+        return keys.length;
+    }
+
+    Key key(int i) {
+        return keys[i];
+    }
+
+    boolean isDescending(int i) {
+        return descending[i];
+    }
+
+    boolean uses(Key key) {
+        for (Key k : keys) {
+            if (k == key) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public int compare(Student a, Student b) {
+        for (int i = 0; i < keys.length; i++) {
+            int c = switch (keys[i]) {
+                case LAST_NAME -> COLLATOR.compare(a.getLastName(), b.getLastName());
+                case FIRST_NAME -> COLLATOR.compare(a.getFirstName(), b.getFirstName());
+                case ID -> Integer.compare(a.getId(), b.getId());
+                case GRADE -> Double.compare(a.getGrade() + 0.0, b.getGrade() + 0.0);
+            };
+            if (c != 0) {
+                return descending[i] ? -c : c;
+            }
+        }
+        return Integer.compare(a.getId(), b.getId());
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof StudentOrder)) return false;
+        StudentOrder order = (StudentOrder) o;
+        return Arrays.equals(keys, order.keys) && Arrays.equals(descending, order.descending);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Arrays.hashCode(keys) + Arrays.hashCode(descending);
+    }
+
+    @Override
+    public String toString() {
+        StringJoiner joiner = new StringJoiner(", ");
+        for (int i = 0; i < keys.length; i++) {
+            joiner.add((descending[i] ? "-" : "") + keys[i].title);
+        }
+        return joiner.toString();
+    }
+}
+
+// Строки таблицы студентов в порядке comparator, на блоках отсортированных int[] как в GradeIndex:
+// вставка и удаление - двоичный поиск блока и сдвиг внутри него. Сравнение должно быть полным
+// порядком (различать любые две строки), иначе удаление не найдет свою строку.
+class RowOrder {
+    interface RowComparator {
+        int compare(int row, int otherRow);
+    }
+
+    private static final int BLOCK_CAPACITY = 1024;
+
+    private final RowComparator comparator;
+    private int[][] rows = new int[16][];
+    private int[] sizes = new int[16];
+    private int blockCount;
+    private int size;
+
+    RowOrder(RowComparator comparator) {
+        this.comparator = comparator;
+    }
+
+    // Начальное заполнение: одна сортировка слиянием, блоки заполняются на три четверти
+    void build(int[] initial, int count) {
+        int[] sorted = Arrays.copyOf(initial, count);
+        mergeSort(sorted, Arrays.copyOf(sorted, count), 0, count);
+        blockCount = 0;
+        int fill = BLOCK_CAPACITY * 3 / 4;
+        for (int from = 0; from < count; from += fill) {
+            int[] block = new int[BLOCK_CAPACITY];
+            int length = Math.min(fill, count - from);
+            System.arraycopy(sorted, from, block, 0, length);
+            insertBlock(blockCount, block, length);
+        }
+        size = count;
+    }
+
+    int size() {
+        return size;
+    }
+
+    void add(int row) {
+        if (blockCount == 0) {
+            insertBlock(0, new int[BLOCK_CAPACITY], 0);
+        }
+        int block = findBlock(row);
+        int at = position(block, row);
+        int blockSize = sizes[block];
+        System.arraycopy(rows[block], at, rows[block], at + 1, blockSize - at);
+        rows[block][at] = row;
+        sizes[block] = ++blockSize;
+        size++;
+        if (blockSize == BLOCK_CAPACITY) {
+            int keep = block == blockCount - 1 && at == blockSize - 1 ? blockSize - 1 : blockSize / 2;
+            int[] moved = new int[BLOCK_CAPACITY];
+            System.arraycopy(rows[block], keep, moved, 0, blockSize - keep);
+            sizes[block] = keep;
+            insertBlock(block + 1, moved, blockSize - keep);
+        }
+    }
+
+    // Ключи строки должны быть теми же, что при вставке
+    boolean remove(int row) {
+        if (blockCount == 0) {
+            return false;
+        }
+        int block = findBlock(row);
+        int at = position(block, row);
+        int blockSize = sizes[block];
+        if (at == blockSize || rows[block][at] != row) {
+            return false;
+        }
+        System.arraycopy(rows[block], at + 1, rows[block], at, blockSize - at - 1);
+        sizes[block] = --blockSize;
+        size--;
+        if (blockSize == 0) {
+            removeBlock(block);
+        } else if (block + 1 < blockCount && blockSize + sizes[block + 1] <= BLOCK_CAPACITY / 2) {
+            System.arraycopy(rows[block + 1], 0, rows[block], blockSize, sizes[block + 1]);
+            sizes[block] += sizes[block + 1];
+            removeBlock(block + 1);
+        }
+        return true;
+    }
+
+    // renumbered[row] - новый номер строки; удаленных строк в порядке уже нет
+    void renumber(int[] renumbered) {
+        for (int block = 0; block < blockCount; block++) {
+            int[] blockRows = rows[block];
+            for (int i = 0; i < sizes[block]; i++) {
+                blockRows[i] = renumbered[blockRows[i]];
+            }
+        }
+    }
+
+    PrimitiveIterator.OfInt iterator() {
+        return new PrimitiveIterator.OfInt() {
+            private int block;
+            private int at;
+
+            @Override
+            public boolean hasNext() {
+                while (block < blockCount && at == sizes[block]) {
+                    block++;
+                    at = 0;
+                }
+                return block < blockCount;
+            }
+
+            @Override
+            public int nextInt() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return rows[block][at++];
+            }
+        };
+    }
+
+    private int findBlock(int row) {
+        int low = 0;
+        int high = blockCount - 1;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (comparator.compare(rows[mid][sizes[mid] - 1], row) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private int position(int block, int row) {
+        int[] blockRows = rows[block];
+        int low = 0;
+        int high = sizes[block];
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (comparator.compare(blockRows[mid], row) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private void mergeSort(int[] values, int[] buffer, int from, int to) {
+        if (to - from < 2) {
+            return;
+        }
+        int middle = (from + to) >>> 1;
+        mergeSort(buffer, values, from, middle);
+        mergeSort(buffer, values, middle, to);
+        // половины отсортированы в buffer, сливаем в values
+        for (int i = from, left = from, right = middle; i < to; i++) {
+            if (right >= to || (left < middle && comparator.compare(buffer[left], buffer[right]) <= 0)) {
+                values[i] = buffer[left++];
+            } else {
+                values[i] = buffer[right++];
+            }
+        }
+    }
+
+    private void insertBlock(int block, int[] blockRows, int blockSize) {
+        if (blockCount == sizes.length) {
+            rows = Arrays.copyOf(rows, blockCount * 2);
+            sizes = Arrays.copyOf(sizes, blockCount * 2);
+        }
+        System.arraycopy(rows, block, rows, block + 1, blockCount - block);
+        System.arraycopy(sizes, block, sizes, block + 1, blockCount - block);
+        rows[block] = blockRows;
+        sizes[block] = blockSize;
+        blockCount++;
+    }
+
+    private void removeBlock(int block) {
+        System.arraycopy(rows, block + 1, rows, block, blockCount - block - 1);
+        System.arraycopy(sizes, block + 1, sizes, block, blockCount - block - 1);
+        blockCount--;
+        rows[blockCount] = null;
+    }
+}
+
+// Хеш-таблица long -> int с открытой адресацией, без упаковки ключей и значений.
+// Long.MIN_VALUE помечает пустую ячейку и ключом быть не может.
+class LongIntMap {
+    static final int MISSING = -1;
+    private static final long EMPTY = Long.MIN_VALUE;
+
+    private long[] keys;
+    private int[] values;
+    private int mask;
+    private int size;
+    private int resizeAt;
+
+    LongIntMap() {
+        allocate(16);
+    }
+
+    int size() {
+        return size;
+    }
+
+    int get(long key) {
+        int i = hash(key) & mask;
+        while (true) {
+            long k = keys[i];
+            if (k == key) {
+                return values[i];
+            }
+            if (k == EMPTY) {
+                return MISSING;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    // Возвращает прежнее значение или MISSING
+    int put(long key, int value) {
+        if (key == EMPTY) {
+            throw new IllegalArgumentException("ключ " + key + " зарезервирован");
+        }
+        int i = hash(key) & mask;
+        while (true) {
+            long k = keys[i];
+            if (k == key) {
+                int previous = values[i];
+                values[i] = value;
+                return previous;
+            }
+            if (k == EMPTY) {
+                keys[i] = key;
+                values[i] = value;
+                if (++size > resizeAt) {
+                    rehash(keys.length << 1);
+                }
+                return MISSING;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    int remove(long key) {
+        int i = hash(key) & mask;
+        while (true) {
+            long k = keys[i];
+            if (k == EMPTY) {
+                return MISSING;
+            }
+            if (k == key) {
+                break;
+            }
+            i = (i + 1) & mask;
+        }
+        int previous = values[i];
+        // сдвигаем назад записи цепочки, которые могут занять освободившуюся ячейку
+        int hole = i;
+        while (true) {
+            i = (i + 1) & mask;
+            long k = keys[i];
+            if (k == EMPTY) {
+                break;
+            }
+            int ideal = hash(k) & mask;
+            if (((i - ideal) & mask) >= ((i - hole) & mask)) {
+                keys[hole] = k;
+                values[hole] = values[i];
+                hole = i;
+            }
+        }
+        keys[hole] = EMPTY;
+        size--;
+        return previous;
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        allocate(capacity);
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldKeys[j] != EMPTY) {
+                int i = hash(oldKeys[j]) & mask;
+                while (keys[i] != EMPTY) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = oldKeys[j];
+                values[i] = oldValues[j];
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        Arrays.fill(keys, EMPTY);
+        values = new int[capacity];
+        mask = capacity - 1;
+        resizeAt = capacity / 4 * 3;
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
+
+// Словарь имен для столбцов StudentStore: каждое различное имя хранится один раз в общем массиве
+// символов, в строках таблицы - его код. Коды считают ссылки; код без ссылок освобождается,
+// а место в массиве символов собирается, когда освобожденного становится больше половины.
+class NameDictionary {
+    private static final int MIN_COMPACT = 1 << 16;
+
+    private char[] chars = new char[4096];
+    private int used;                       // занято в chars
+    private int garbage;                    // из них - символы освобожденных имен
+    private int[] starts = new int[256];    // по коду
+    private int[] lengths = new int[256];
+    private int[] hashes = new int[256];
+    private int[] uses = new int[256];
+    private CollationKey[] collationKeys = new CollationKey[256]; // считаются при первой сортировке
+    private int codeCount;
+    private int[] freeCodes = new int[16];
+    private int freeCount;
+    private int[] table = new int[512];     // код + 1, 0 - пусто
+    private int size;
+
+    int size() {
+        return size;
+    }
+
+    // Все коды меньше этого числа (освобожденные тоже)
+    int codeLimit() {
+        return codeCount;
+    }
+
+    int acquire(String name) {
+        int hash = name.hashCode();
+        int mask = table.length - 1;
+        int i = hash & mask;
+        while (table[i] != 0) {
+            int code = table[i] - 1;
+            if (hashes[code] == hash && equals(code, name)) {
+                uses[code]++;
+                return code;
+            }
+            i = (i + 1) & mask;
+        }
+        int code = newCode();
+        if (used + name.length() > chars.length) {
+            chars = Arrays.copyOf(chars, Math.max(used + name.length(), chars.length * 2));
+        }
+        name.getChars(0, name.length(), chars, used);
+        starts[code] = used;
+        lengths[code] = name.length();
+        hashes[code] = hash;
+        uses[code] = 1;
+        used += name.length();
+        table[i] = code + 1;
+        if (++size * 2 > table.length) {
+            rehash(table.length * 2);
+        }
+        return code;
+    }
+
+    // Еще одна ссылка на уже взятый код
+    void retain(int code) {
+        uses[code]++;
+    }
+
+    void release(int code) {
+        if (--uses[code] > 0) {
+            return;
+        }
+        int mask = table.length - 1;
+        int hole = hashes[code] & mask;
+        while (table[hole] != code + 1) {
+            hole = (hole + 1) & mask;
+        }
+        // сдвигаем назад записи цепочки, которые могут занять освободившуюся ячейку
+        int i = hole;
+        while (true) {
+            i = (i + 1) & mask;
+            int entry = table[i];
+            if (entry == 0) {
+                break;
+            }
+            int ideal = hashes[entry - 1] & mask;
+            if (((i - ideal) & mask) >= ((i - hole) & mask)) {
+                table[hole] = entry;
+                hole = i;
+            }
+        }
+        table[hole] = 0;
+        size--;
+        garbage += lengths[code];
+        collationKeys[code] = null;
+        if (freeCount == freeCodes.length) {
+            freeCodes = Arrays.copyOf(freeCodes, freeCount * 2);
+        }
+        freeCodes[freeCount++] = code;
+        if (garbage >= MIN_COMPACT && garbage * 2 > used) {
+            compact();
+        }
+    }
+
+    String name(int code) {
+        return new String(chars, starts[code], lengths[code]);
+    }
+
+    // Ключ сравнения по правилам русского алфавита, один на различное имя
+    CollationKey collationKey(int code) {
+        CollationKey key = collationKeys[code];
+        if (key == null) {
+            key = collationKeys[code] = StudentOrder.COLLATOR.getCollationKey(name(code));
+        }
+        return key;
+    }
+
+    // Содержит ли имя строку folded (уже приведенную StudentNameIndex.fold), без выделения памяти
+    boolean containsFolded(int code, char[] folded) {
+        int start = starts[code];
+        int last = start + lengths[code] - folded.length;
+        outer:
+        for (int i = start; i <= last; i++) {
+            for (int j = 0; j < folded.length; j++) {
+                if (StudentNameIndex.fold(chars[i + j]) != folded[j]) {
+                    continue outer;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private boolean equals(int code, String name) {
+        if (lengths[code] != name.length()) {
+            return false;
+        }
+        int start = starts[code];
+        for (int i = 0; i < name.length(); i++) {
+            if (chars[start + i] != name.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int newCode() {
+        if (freeCount > 0) {
+            return freeCodes[--freeCount];
+        }
+        if (codeCount == starts.length) {
+            int capacity = codeCount * 2;
+            starts = Arrays.copyOf(starts, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+            hashes = Arrays.copyOf(hashes, capacity);
+            uses = Arrays.copyOf(uses, capacity);
+            collationKeys = Arrays.copyOf(collationKeys, capacity);
+        }
+        return codeCount++;
+    }
+
+    private void rehash(int capacity) {
+        table = new int[capacity];
+        int mask = capacity - 1;
+        for (int code = 0; code < codeCount; code++) {
+            if (uses[code] > 0) {
+                int i = hashes[code] & mask;
+                while (table[i] != 0) {
+                    i = (i + 1) & mask;
+                }
+                table[i] = code + 1;
+            }
+        }
+    }
+
+    // Живые имена переписываются подряд в новый массив; коды не меняются
+    private void compact() {
+        char[] compacted = new char[Math.max(4096, (used - garbage) * 3 / 2)];
+        int position = 0;
+        for (int code = 0; code < codeCount; code++) {
+            if (uses[code] > 0) {
+                System.arraycopy(chars, starts[code], compacted, position, lengths[code]);
+                starts[code] = position;
+                position += lengths[code];
+            }
+        }
+        chars = compacted;
+        used = position;
+        garbage = 0;
+    }
+}
+
+// Упорядоченный набор пар (оценка, id) на блоках: блок - отсортированные параллельные массивы
+// ключей оценки и id длиной до BLOCK_CAPACITY. Вставка и удаление - двоичный поиск блока и сдвиг
+// внутри него; выборка диапазона по убыванию - O(log n + k). Ранг (countBelow, gradeAt) -
+// O(log n) по дереву Фенвика над размерами блоков. Около 12-16 байт на студента
+// вместо узла TreeSet со ссылкой на объект.
+class GradeIndex {
+    private static final int BLOCK_CAPACITY = 1024;
+
+    private long[][] keys = new long[16][];
+    private int[][] ids = new int[16][];
+    private int[] sizes = new int[16];
+    private int[] tree = new int[17];       // дерево Фенвика по sizes: tree[i] - сумма блоков (i - (i & -i), i]
+    private int blockCount;
+    private int size;
+
+    // Порядок ключей совпадает с порядком оценок; -0.0 и 0.0 дают один ключ
+    static long key(double grade) {
+        long bits = Double.doubleToLongBits(grade + 0.0);
+        return bits ^ ((bits >> 63) & Long.MAX_VALUE);
+    }
+
+    // Обратное к key
+    static double grade(long key) {
+        return Double.longBitsToDouble(key ^ ((key >> 63) & Long.MAX_VALUE));
+    }
+
+    int size() {
+        return size;
+    }
+
+    void add(double grade, int id) {
+        long key = key(grade);
+        if (blockCount == 0) {
+            insertBlock(0, new long[BLOCK_CAPACITY], new int[BLOCK_CAPACITY], 0);
+        }
+        int block = findBlock(key, id);
+        int at = position(block, key, id);
+        int blockSize = sizes[block];
+        System.arraycopy(keys[block], at, keys[block], at + 1, blockSize - at);
+        System.arraycopy(ids[block], at, ids[block], at + 1, blockSize - at);
+        keys[block][at] = key;
+        ids[block][at] = id;
+        sizes[block] = ++blockSize;
+        updateTree(block, 1);
+        size++;
+        if (blockSize == BLOCK_CAPACITY) {
+            // при дописывании в конец последнего блока он остается полным: так растет упорядоченная загрузка
+            int keep = block == blockCount - 1 && at == blockSize - 1 ? blockSize - 1 : blockSize / 2;
+            long[] movedKeys = new long[BLOCK_CAPACITY];
+            int[] movedIds = new int[BLOCK_CAPACITY];
+            System.arraycopy(keys[block], keep, movedKeys, 0, blockSize - keep);
+            System.arraycopy(ids[block], keep, movedIds, 0, blockSize - keep);
+            sizes[block] = keep;
+            updateTree(block, keep - blockSize);
+            insertBlock(block + 1, movedKeys, movedIds, blockSize - keep);
+        }
+    }
+
+    boolean remove(double grade, int id) {
+        if (blockCount == 0) {
+            return false;
+        }
+        long key = key(grade);
+        int block = findBlock(key, id);
+        int at = position(block, key, id);
+        int blockSize = sizes[block];
+        if (at == blockSize || keys[block][at] != key || ids[block][at] != id) {
+            return false;
+        }
+        System.arraycopy(keys[block], at + 1, keys[block], at, blockSize - at - 1);
+        System.arraycopy(ids[block], at + 1, ids[block], at, blockSize - at - 1);
+        sizes[block] = --blockSize;
+        updateTree(block, -1);
+        size--;
+        if (blockSize == 0) {
+            removeBlock(block);
+        } else if (block + 1 < blockCount && blockSize + sizes[block + 1] <= BLOCK_CAPACITY / 2) {
+            // соседние полупустые блоки сливаются, чтобы блоков не становилось больше нужного
+            System.arraycopy(keys[block + 1], 0, keys[block], blockSize, sizes[block + 1]);
+            System.arraycopy(ids[block + 1], 0, ids[block], blockSize, sizes[block + 1]);
+            sizes[block] += sizes[block + 1];
+            removeBlock(block + 1);
+        }
+        return true;
+    }
+
+    // Пакетная вставка: новые пары сортируются и сливаются с имеющимися за один проход,
+    // блоки собираются заново и заполняются на три четверти. Id не должны уже быть в индексе.
+    void addAll(double[] grades, int[] studentIds, int count) {
+        long[] newKeys = new long[count];
+        for (int i = 0; i < count; i++) {
+            newKeys[i] = key(grades[i]);
+        }
+        int[] newIds = Arrays.copyOf(studentIds, count);
+        mergeSort(newKeys, newIds, newKeys.clone(), newIds.clone(), 0, count);
+
+        long[][] oldKeys = keys;
+        int[][] oldIds = ids;
+        int[] oldSizes = sizes;
+        int oldBlocks = blockCount;
+        keys = new long[16][];
+        ids = new int[16][];
+        sizes = new int[16];
+        tree = new int[17];
+        blockCount = 0;
+        int fill = BLOCK_CAPACITY * 3 / 4;
+        long[] blockKeys = null;
+        int[] blockIds = null;
+        int blockSize = fill;
+        int block = 0, at = 0, next = 0;
+        for (int n = size + count; n > 0; n--) {
+            long key;
+            int id;
+            if (block < oldBlocks && (next == count
+                    || compare(oldKeys[block][at], oldIds[block][at], newKeys[next], newIds[next]) < 0)) {
+                key = oldKeys[block][at];
+                id = oldIds[block][at];
+                if (++at == oldSizes[block]) {
+                    block++;
+                    at = 0;
+                }
+            } else {
+                key = newKeys[next];
+                id = newIds[next++];
+            }
+            if (blockSize == fill) {
+                if (blockKeys != null) {
+                    insertBlock(blockCount, blockKeys, blockIds, blockSize);
+                }
+                blockKeys = new long[BLOCK_CAPACITY];
+                blockIds = new int[BLOCK_CAPACITY];
+                blockSize = 0;
+            }
+            blockKeys[blockSize] = key;
+            blockIds[blockSize++] = id;
+        }
+        if (blockKeys != null) {
+            insertBlock(blockCount, blockKeys, blockIds, blockSize);
+        }
+        size += count;
+    }
+
+    // Id студентов с оценкой между from и to по убыванию оценки (при равных - по убыванию id),
+    // пока action возвращает true
+    void descending(double from, boolean fromInclusive, double to, boolean toInclusive, IntPredicate action) {
+        long low = fromInclusive ? key(from) : key(from) + 1;
+        long high = toInclusive ? key(to) : key(to) - 1;
+        if (low > high || blockCount == 0) {
+            return;
+        }
+        // первая пара с ключом больше high, от нее шаг назад
+        int block = findBlock(high + 1, Integer.MIN_VALUE);
+        int at = position(block, high + 1, Integer.MIN_VALUE) - 1;
+        for (; block >= 0; block--, at = block >= 0 ? sizes[block] - 1 : 0) {
+            long[] blockKeys = keys[block];
+            int[] blockIds = ids[block];
+            for (; at >= 0; at--) {
+                if (blockKeys[at] < low || !action.test(blockIds[at])) {
+                    return;
+                }
+            }
+        }
+    }
+
+    // То же по возрастанию оценки (при равных - по возрастанию id)
+    void ascending(double from, boolean fromInclusive, double to, boolean toInclusive, IntPredicate action) {
+        long low = fromInclusive ? key(from) : key(from) + 1;
+        long high = toInclusive ? key(to) : key(to) - 1;
+        if (low > high || blockCount == 0) {
+            return;
+        }
+        int block = findBlock(low, Integer.MIN_VALUE);
+        int at = position(block, low, Integer.MIN_VALUE);
+        for (; block < blockCount; block++, at = 0) {
+            long[] blockKeys = keys[block];
+            int[] blockIds = ids[block];
+            for (; at < sizes[block]; at++) {
+                if (blockKeys[at] > high || !action.test(blockIds[at])) {
+                    return;
+                }
+            }
+        }
+    }
+
+    // Число студентов с оценкой меньше grade (или не больше, если inclusive): двоичный поиск
+    // и сумма размеров предыдущих блоков по дереву
+    int countBelow(double grade, boolean inclusive) {
+        if (blockCount == 0) {
+            return 0;
+        }
+        long key = inclusive ? key(grade) + 1 : key(grade);
+        int block = findBlock(key, Integer.MIN_VALUE);
+        return sizeBefore(block) + position(block, key, Integer.MIN_VALUE);
+    }
+
+    // NaN, если индекс пуст
+    double min() {
+        return blockCount == 0 ? Double.NaN : grade(keys[0][0]);
+    }
+
+    double max() {
+        return blockCount == 0 ? Double.NaN : grade(keys[blockCount - 1][sizes[blockCount - 1] - 1]);
+    }
+
+    // Оценка на месте rank (с нуля) по возрастанию
+    double gradeAt(int rank) {
+        if (rank < 0 || rank >= size) {
+            throw new IndexOutOfBoundsException("ранг " + rank + " при " + size + " студентах");
+        }
+        // спуск по дереву: самый длинный префикс блоков с суммой не больше rank
+        int block = 0;
+        for (int step = Integer.highestOneBit(blockCount); step > 0; step >>= 1) {
+            int next = block + step;
+            if (next <= blockCount && tree[next] <= rank) {
+                block = next;
+                rank -= tree[next];
+            }
+        }
+        return grade(keys[block][rank]);
+    }
+
+    // Сумма размеров блоков до block
+    private int sizeBefore(int block) {
+        int sum = 0;
+        for (int i = block; i > 0; i -= i & -i) {
+            sum += tree[i];
+        }
+        return sum;
+    }
+
+    private void updateTree(int block, int delta) {
+        for (int i = block + 1; i <= blockCount; i += i & -i) {
+            tree[i] += delta;
+        }
+    }
+
+    // Блоки сдвинулись: дерево заново за O(число блоков), как и сам сдвиг массивов блоков
+    private void rebuildTree() {
+        for (int i = 1; i <= blockCount; i++) {
+            tree[i] = sizes[i - 1];
+        }
+        for (int i = 1; i <= blockCount; i++) {
+            int parent = i + (i & -i);
+            if (parent <= blockCount) {
+                tree[parent] += tree[i];
+            }
+        }
+    }
+
+    // Первый блок, последняя пара которого не меньше (key, id), иначе последний блок
+    private int findBlock(long key, int id) {
+        int low = 0;
+        int high = blockCount - 1;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            int last = sizes[mid] - 1;
+            if (compare(keys[mid][last], ids[mid][last], key, id) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    // Первая пара блока, не меньшая (key, id)
+    private int position(int block, long key, int id) {
+        long[] blockKeys = keys[block];
+        int[] blockIds = ids[block];
+        int low = 0;
+        int high = sizes[block];
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (compare(blockKeys[mid], blockIds[mid], key, id) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private static int compare(long key, int id, long otherKey, int otherId) {
+        int byKey = Long.compare(key, otherKey);
+        return byKey != 0 ? byKey : Integer.compare(id, otherId);
+    }
+
+    private static void mergeSort(long[] keys, int[] ids, long[] keyBuffer, int[] idBuffer, int from, int to) {
+        if (to - from < 2) {
+            return;
+        }
+        int middle = (from + to) >>> 1;
+        mergeSort(keyBuffer, idBuffer, keys, ids, from, middle);
+        mergeSort(keyBuffer, idBuffer, keys, ids, middle, to);
+        // половины отсортированы в буферах, сливаем в keys и ids
+        for (int i = from, left = from, right = middle; i < to; i++) {
+            if (right >= to || (left < middle
+                    && compare(keyBuffer[left], idBuffer[left], keyBuffer[right], idBuffer[right]) <= 0)) {
+                keys[i] = keyBuffer[left];
+                ids[i] = idBuffer[left++];
+            } else {
+                keys[i] = keyBuffer[right];
+                ids[i] = idBuffer[right++];
+            }
+        }
+    }
+
+    private void insertBlock(int block, long[] blockKeys, int[] blockIds, int blockSize) {
+        if (blockCount == sizes.length) {
+            keys = Arrays.copyOf(keys, blockCount * 2);
+            ids = Arrays.copyOf(ids, blockCount * 2);
+            sizes = Arrays.copyOf(sizes, blockCount * 2);
+            tree = Arrays.copyOf(tree, blockCount * 2 + 1);
+        }
+        System.arraycopy(keys, block, keys, block + 1, blockCount - block);
+        System.arraycopy(ids, block, ids, block + 1, blockCount - block);
+        System.arraycopy(sizes, block, sizes, block + 1, blockCount - block);
+        keys[block] = blockKeys;
+        ids[block] = blockIds;
+        sizes[block] = blockSize;
+        blockCount++;
+        if (block == blockCount - 1) {
+            // новый последний блок: его узел - он сам плюс узлы, которые он покрывает
+            int node = blockCount;
+            tree[node] = blockSize;
+            for (int child = node - 1; child > node - (node & -node); child -= child & -child) {
+                tree[node] += tree[child];
+            }
+        } else {
+            rebuildTree();
+        }
+    }
+
+    private void removeBlock(int block) {
+        System.arraycopy(keys, block + 1, keys, block, blockCount - block - 1);
+        System.arraycopy(ids, block + 1, ids, block, blockCount - block - 1);
+        System.arraycopy(sizes, block + 1, sizes, block, blockCount - block - 1);
+        blockCount--;
+        keys[blockCount] = null;
+        ids[blockCount] = null;
+        rebuildTree();
+    }
+}
+
+// Подстрочный индекс имен: триграмма имени или фамилии в нижнем регистре -> номера строк таблицы
+// студентов, у которых она есть. Имя дополняется справа двумя END, поэтому с каждой его позиции
+// начинается триграмма и любые один-два символа имени - начало какой-то из них. Строки добавляются
+// по возрастанию, поэтому списки только дописываются и остаются отсортированными. Удаленная строка
+// остается в списках, пока таблица не уплотнится; тогда renumber переписывает списки за один проход.
+class StudentNameIndex {
+    private static final char END = '\uFFFF';
+
+    // Строки таблицы для проверки кандидатов
+    interface Rows {
+        int rowCount();
+
+        // Содержит ли имя или фамилия строки folded; false для удаленной строки
+        boolean matches(int row, char[] folded);
+    }
+
+    private final Rows rows;
+    private final LongIntMap slots = new LongIntMap();    // триграмма -> номер списка
+    private int[][] postings = new int[256][];
+    private int[] sizes = new int[256];
+    private int slotCount;
+    // Первый символ или первые два символа триграммы -> номера ее списков
+    private final LongIntMap groups = new LongIntMap();
+    private int[][] groupSlots = new int[256][];
+    private int[] groupSizes = new int[256];
+    private int groupCount;
+
+    StudentNameIndex(Rows rows) {
+        this.rows = rows;
+    }
+
+    // row больше всех строк, добавленных раньше
+    void add(int row, String firstName, String lastName) {
+        addTrigrams(firstName, row);
+        addTrigrams(lastName, row);
+    }
+
+    // Строки, у которых имя или фамилия содержит query без учета регистра, по возрастанию.
+    // Запрос от трех символов пересекает списки своих триграмм, начиная с самого короткого;
+    // каждый кандидат проверяется по словарю имен без выделения памяти. Запрос из одного-двух
+    // символов объединяет списки триграмм, которые с него начинаются. Пустой запрос - перебор.
+    int[] search(String query, int limit) {
+        char[] folded = new char[query.length()];
+        for (int i = 0; i < folded.length; i++) {
+            folded[i] = fold(query.charAt(i));
+        }
+        if (folded.length == 1 || folded.length == 2) {
+            return searchShort(folded, limit);
+        }
+        int[] found = new int[Math.min(limit, 64)];
+        int foundCount = 0;
+        if (folded.length == 0) {
+            for (int row = 0, n = rows.rowCount(); row < n && foundCount < limit; row++) {
+                if (rows.matches(row, folded)) {
+                    if (foundCount == found.length) {
+                        found = Arrays.copyOf(found, Math.min(limit, foundCount * 2));
+                    }
+                    found[foundCount++] = row;
+                }
+            }
+            return Arrays.copyOf(found, foundCount);
+        }
+
+        int gramCount = folded.length - 2;
+        int[][] lists = new int[gramCount][];
+        int[] lengths = new int[gramCount];
+        int present = 0;
+        for (int i = 0; i < gramCount; i++) {
+            int slot = slots.get(trigram(folded[i], folded[i + 1], folded[i + 2]));
+            if (slot == LongIntMap.MISSING || sizes[slot] == 0) {
+                return new int[0];
+            }
+            int[] list = postings[slot];
+            boolean duplicate = false;
+            for (int k = 0; k < present; k++) {
+                duplicate |= lists[k] == list;
+            }
+            if (!duplicate) {
+                lists[present] = list;
+                lengths[present++] = sizes[slot];
+            }
+        }
+        // сортировка вставками по длине списка: триграмм в запросе немного
+        for (int i = 1; i < present; i++) {
+            int[] list = lists[i];
+            int length = lengths[i];
+            int j = i - 1;
+            while (j >= 0 && lengths[j] > length) {
+                lists[j + 1] = lists[j];
+                lengths[j + 1] = lengths[j];
+                j--;
+            }
+            lists[j + 1] = list;
+            lengths[j + 1] = length;
+        }
+
+        // Номера кандидатов растут, поэтому в длинных списках ищем только правее прошлой находки
+        int[] positions = new int[present];
+        int[] shortest = lists[0];
+        candidates:
+        for (int i = 0; i < lengths[0] && foundCount < limit; i++) {
+            int row = shortest[i];
+            for (int k = 1; k < present; k++) {
+                int at = Arrays.binarySearch(lists[k], positions[k], lengths[k], row);
+                if (at < 0) {
+                    positions[k] = -at - 1;
+                    if (positions[k] == lengths[k]) {
+                        break candidates;
+                    }
+                    continue candidates;
+                }
+                positions[k] = at + 1;
+            }
+            if (rows.matches(row, folded)) {
+                if (foundCount == found.length) {
+                    found = Arrays.copyOf(found, Math.min(limit, foundCount * 2));
+                }
+                found[foundCount++] = row;
+            }
+        }
+        return Arrays.copyOf(found, foundCount);
+    }
+
+    // Слияние списков через кучу номеров списков, упорядоченную по текущей строке каждого;
+    // строка из нескольких списков берется один раз
+    private int[] searchShort(char[] folded, int limit) {
+        int group = groups.get(prefix(folded[0], folded.length == 2 ? folded[1] : END));
+        if (group == LongIntMap.MISSING) {
+            return new int[0];
+        }
+        int[][] lists = new int[groupSizes[group]][];
+        int[] lengths = new int[lists.length];
+        int present = 0;
+        for (int i = 0; i < groupSizes[group]; i++) {
+            int slot = groupSlots[group][i];
+            if (sizes[slot] > 0) {
+                lists[present] = postings[slot];
+                lengths[present++] = sizes[slot];
+            }
+        }
+        int[] positions = new int[present];
+        int[] heap = new int[present];
+        for (int i = 0; i < present; i++) {
+            heap[i] = i;
+        }
+        for (int i = present / 2 - 1; i >= 0; i--) {
+            siftDown(heap, present, i, lists, positions);
+        }
+
+        int[] found = new int[Math.min(limit, 64)];
+        int foundCount = 0;
+        int heapSize = present;
+        int last = -1;
+        while (heapSize > 0 && foundCount < limit) {
+            int top = heap[0];
+            int row = lists[top][positions[top]];
+            if (row != last) {
+                last = row;
+                if (rows.matches(row, folded)) {
+                    if (foundCount == found.length) {
+                        found = Arrays.copyOf(found, Math.min(limit, foundCount * 2));
+                    }
+                    found[foundCount++] = row;
+                }
+            }
+            if (++positions[top] == lengths[top]) {
+                heap[0] = heap[--heapSize];
+            }
+            if (heapSize > 0) {
+                siftDown(heap, heapSize, 0, lists, positions);
+            }
+        }
+        return Arrays.copyOf(found, foundCount);
+    }
+
+    private static void siftDown(int[] heap, int size, int at, int[][] lists, int[] positions) {
+        int list = heap[at];
+        int row = lists[list][positions[list]];
+        while (true) {
+            int child = 2 * at + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && head(heap[child + 1], lists, positions) < head(heap[child], lists, positions)) {
+                child++;
+            }
+            if (head(heap[child], lists, positions) >= row) {
+                break;
+            }
+            heap[at] = heap[child];
+            at = child;
+        }
+        heap[at] = list;
+    }
+
+    private static int head(int list, int[][] lists, int[] positions) {
+        return lists[list][positions[list]];
+    }
+
+    // renumbered[row] - новый номер строки или -1, если строка удалена; порядок строк сохраняется
+    void renumber(int[] renumbered) {
+        for (int slot = 0; slot < slotCount; slot++) {
+            int[] list = postings[slot];
+            int size = 0;
+            for (int i = 0; i < sizes[slot]; i++) {
+                int row = renumbered[list[i]];
+                if (row >= 0) {
+                    list[size++] = row;
+                }
+            }
+            sizes[slot] = size;
+        }
+    }
+
+    // Как add, но триграммы имен уже разложены по спискам (slots): при пакетной загрузке
+    // одно имя встречается у многих строк, и его триграммы считаются один раз
+    void add(int row, int[] firstNameSlots, int[] lastNameSlots) {
+        for (int slot : firstNameSlots) {
+            append(slot, row);
+        }
+        for (int slot : lastNameSlots) {
+            append(slot, row);
+        }
+    }
+
+    // Номера списков триграмм имени, каждый один раз
+    int[] slots(String name) {
+        int[] found = new int[name.length()];
+        int count = 0;
+        outer:
+        for (int i = 0; i < name.length(); i++) {
+            int slot = slot(gramAt(name, i));
+            for (int j = 0; j < count; j++) {
+                if (found[j] == slot) {
+                    continue outer;
+                }
+            }
+            found[count++] = slot;
+        }
+        return Arrays.copyOf(found, count);
+    }
+
+    private void addTrigrams(String name, int row) {
+        for (int i = 0; i < name.length(); i++) {
+            append(slot(gramAt(name, i)), row);
+        }
+    }
+
+    // Триграмма с позиции i; за концом имени - END
+    private static long gramAt(String name, int i) {
+        char c1 = i + 1 < name.length() ? fold(name.charAt(i + 1)) : END;
+        char c2 = i + 2 < name.length() ? fold(name.charAt(i + 2)) : END;
+        return trigram(fold(name.charAt(i)), c1, c2);
+    }
+
+    private int slot(long gram) {
+        int slot = slots.get(gram);
+        if (slot == LongIntMap.MISSING) {
+            slot = newSlot();
+            slots.put(gram, slot);
+            char c0 = (char) (gram >>> 32);
+            char c1 = (char) (gram >>> 16);
+            addToGroup(prefix(c0, END), slot);
+            if (c1 != END) {
+                addToGroup(prefix(c0, c1), slot);
+            }
+        }
+        return slot;
+    }
+
+    private void addToGroup(long key, int slot) {
+        int group = groups.get(key);
+        if (group == LongIntMap.MISSING) {
+            if (groupCount == groupSlots.length) {
+                groupSlots = Arrays.copyOf(groupSlots, groupCount * 2);
+                groupSizes = Arrays.copyOf(groupSizes, groupCount * 2);
+            }
+            group = groupCount++;
+            groupSlots[group] = new int[4];
+            groups.put(key, group);
+        }
+        if (groupSizes[group] == groupSlots[group].length) {
+            groupSlots[group] = Arrays.copyOf(groupSlots[group], groupSizes[group] * 2);
+        }
+        groupSlots[group][groupSizes[group]++] = slot;
+    }
+
+    private void append(int slot, int row) {
+        int[] list = postings[slot];
+        int size = sizes[slot];
+        if (size > 0 && list[size - 1] == row) {
+            return; // триграмма уже встречалась в этом имени или фамилии
+        }
+        if (size == list.length) {
+            list = postings[slot] = Arrays.copyOf(list, size + (size >> 1) + 4);
+        }
+        list[size] = row;
+        sizes[slot] = size + 1;
+    }
+
+    private int newSlot() {
+        if (slotCount == postings.length) {
+            postings = Arrays.copyOf(postings, slotCount * 2);
+            sizes = Arrays.copyOf(sizes, slotCount * 2);
+        }
+        postings[slotCount] = new int[4];
+        return slotCount++;
+    }
+
+    private static long trigram(char c0, char c1, char c2) {
+        return ((long) c0 << 32) | ((long) c1 << 16) | c2;
+    }
+
+    // Один символ - (c0, END)
+    private static long prefix(char c0, char c1) {
+        return ((long) c0 << 16) | c1;
+    }
+
+    // Регистр сравнивается как в String.equalsIgnoreCase
+    static char fold(char c) {
+        return Character.toLowerCase(Character.toUpperCase(c));
+    }
+}
+
+// Сводка оценок: число, сумма, среднее и дисперсия по Уэлфорду, минимум и максимум.
+// add и remove - O(1) без накопления суммы квадратов; сводки частей сливаются по формуле Чана,
+// поэтому полный пересчет делится между потоками. remove не трогает минимум и максимум:
+// крайнее значение без всего набора не восстановить, StudentStore берет их из индекса оценок.
+final class GradeStatistics {
+    private long count;
+    private double sum;
+    private double mean;
+    private double m2;                      // сумма квадратов отклонений от среднего
+    private double min = Double.NaN;
+    private double max = Double.NaN;
+
+    GradeStatistics() {
+    }
+
+    GradeStatistics(GradeStatistics other) {
+        count = other.count;
+        sum = other.sum;
+        mean = other.mean;
+        m2 = other.m2;
+        min = other.min;
+        max = other.max;
+    }
+
+    void add(double grade) {
+        grade += 0.0;
+        count++;
+        sum += grade;
+        double delta = grade - mean;
+        mean += delta / count;
+        m2 += delta * (grade - mean);
+        if (count == 1) {
+            min = max = grade;
+        } else {
+            min = Math.min(min, grade);
+            max = Math.max(max, grade);
+        }
+    }
+
+    // grade должна быть среди добавленных
+    void remove(double grade) {
+        if (count <= 1) {
+            count = 0;
+            sum = mean = m2 = 0;
+            min = max = Double.NaN;
+            return;
+        }
+        grade += 0.0;
+        double delta = grade - mean;
+        mean -= delta / (count - 1);
+        m2 = Math.max(0, m2 - delta * (grade - mean));   // округление не должно увести ниже нуля
+        sum -= grade;
+        count--;
+    }
+
+    void merge(GradeStatistics other) {
+        if (other.count == 0) {
+            return;
+        }
+        if (count == 0) {
+            count = other.count;
+            sum = other.sum;
+            mean = other.mean;
+            m2 = other.m2;
+            min = other.min;
+            max = other.max;
+            return;
+        }
+        long total = count + other.count;
+        double delta = other.mean - mean;
+        mean += delta * other.count / total;
+        m2 += other.m2 + delta * delta * ((double) count * other.count / total);
+        sum += other.sum;
+        count = total;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+
+    void setRange(double min, double max) {
+        this.min = min;
+        this.max = max;
+    }
+
+    long getCount() {
+        return count;
+    }
+
+    double getSum() {
+        return sum;
+    }
+
+    // NaN, если оценок нет
+    double getMean() {
+        return count == 0 ? Double.NaN : mean;
+    }
+
+    // Дисперсия совокупности (деление на n): группа - это все ее студенты, а не выборка
+    double getVariance() {
+        return count == 0 ? Double.NaN : m2 / count;
+    }
+
+    double getStandardDeviation() {
+        return Math.sqrt(getVariance());
+    }
+
+    double getMin() {
+        return min;
+    }
+
+    double getMax() {
+        return max;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("студентов %d, сумма %.2f, среднее %.3f, ст. отклонение %.3f, минимум %.2f, максимум %.2f",
+                count, sum, getMean(), getStandardDeviation(), min, max);
+    }
+}
+
+// Студенты для пакетной загрузки в StudentStore: те же столбцы, но имена - номера в собственной
+// таблице пачки, где каждое различное имя записано один раз. Хранилище берет код словаря
+// и считает триграммы один раз на имя таблицы, а не на строку.
+class StudentBatch {
+    int[] ids;
+    double[] grades;
+    int[] firstNames;           // номера в names
+    int[] lastNames;
+    String[] names;
+    int nameCount;
+    int size;
+    private Map<String, Integer> nameIndexes;
+
+    StudentBatch(int capacity) {
+        this(new String[64], 0, capacity);
+    }
+
+    // Пачка над готовой таблицей различных имен
+    StudentBatch(String[] names, int nameCount, int capacity) {
+        capacity = Math.max(capacity, 16);
+        ids = new int[capacity];
+        grades = new double[capacity];
+        firstNames = new int[capacity];
+        lastNames = new int[capacity];
+        this.names = names;
+        this.nameCount = nameCount;
+    }
+
+    // Номер имени в таблице; новое имя дописывается
+    int name(String name) {
+        if (nameIndexes == null) {
+            nameIndexes = new HashMap<>();
+            for (int i = 0; i < nameCount; i++) {
+                nameIndexes.put(names[i], i);
+            }
+        }
+        Integer index = nameIndexes.get(name);
+        if (index != null) {
+            return index;
+        }
+        if (nameCount == names.length) {
+            names = Arrays.copyOf(names, nameCount * 2);
+        }
+        names[nameCount] = name;
+        nameIndexes.put(name, nameCount);
+        return nameCount++;
+    }
+
+    void add(int id, String firstName, String lastName, double grade) {
+        add(id, name(firstName), name(lastName), grade);
+    }
+
+    void add(int id, int firstName, int lastName, double grade) {
+        if (size == ids.length) {
+            int capacity = size * 2;
+            ids = Arrays.copyOf(ids, capacity);
+            grades = Arrays.copyOf(grades, capacity);
+            firstNames = Arrays.copyOf(firstNames, capacity);
+            lastNames = Arrays.copyOf(lastNames, capacity);
+        }
+        ids[size] = id;
+        grades[size] = grade;
+        firstNames[size] = firstName;
+        lastNames[size] = lastName;
+        size++;
+    }
+}
+
+/*
+ * Студенты в файлах каталога, отображенных в память. Открытие ничего не читает и не разбирает:
+ * строка читается и студент собирается, только когда к нему обращаются. Изменения пишутся на место
+ * в отображение, на диск их сбрасывает flush.
+ *   students.rows : заголовок, затем строки по ROW_SIZE байт: int id, int состояние (LIVE или
+ *                   REMOVED), double оценка, int смещение и int длина имени в куче, то же для фамилии
+ *   students.names: куча имен в UTF-8; удаленные строки оставляют свои имена в куче
+ *   students.ids  : int емкость, int занято, затем ячейки int (строка + 1, 0 - пусто) -
+ *                   открытая адресация по хешу id, удаление со сдвигом назад
+ * Заголовок строк: magic "STDR", int версия, int флаг несброшенных изменений, int число строк,
+ * int из них удаленных, int занято в куче. Флаг уходит на диск до первого изменения после сброса
+ * и снимается после сброса. Если файл открыт с флагом (сбой между сбросами), таблица id строится
+ * заново по строкам, а строки, дописанные не до конца, считаются удаленными: теряются только
+ * изменения после последнего сброса. Каждое отображение - до 2 ГБ.
+ */
+class StudentFile implements Closeable {
+    static final int MAGIC = 0x53544452; // "STDR"
+    static final int VERSION = 1;
+    static final String ROWS_FILE = "students.rows";
+    static final String NAMES_FILE = "students.names";
+    static final String IDS_FILE = "students.ids";
+    private static final int HEADER_SIZE = 32;
+    private static final int DIRTY = 8, ROW_COUNT = 12, REMOVED_COUNT = 16, NAMES_USED = 20;
+    private static final int ROW_SIZE = 32;
+    private static final int LIVE = 1, REMOVED = 2;
+    private static final int IDS_HEADER = 8;
+    private static final int NAME_CACHE = 4096;
+
+    private final FileChannel rowsChannel;
+    private final FileChannel namesChannel;
+    private final FileChannel idsChannel;
+    private MappedByteBuffer rows;
+    private MappedByteBuffer names;
+    private MappedByteBuffer ids;
+    private int rowCount;
+    private int removedCount;
+    private int namesUsed;
+    private int idCapacity;
+    private int idSize;
+    private boolean dirty;
+    // Недавно записанные имена: куча только дописывается, так что одинаковое имя
+    // можно не писать второй раз
+    private final Map<String, Long> recentNames = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > NAME_CACHE;
+        }
+    };
+
+    private StudentFile(Path dir) throws IOException {
+        rowsChannel = FileChannel.open(dir.resolve(ROWS_FILE), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        namesChannel = FileChannel.open(dir.resolve(NAMES_FILE), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        idsChannel = FileChannel.open(dir.resolve(IDS_FILE), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    static StudentFile open(Path dir) throws IOException {
+        Files.createDirectories(dir);
+        StudentFile file = new StudentFile(dir);
+        try {
+            file.map();
+            return file;
+        } catch (IOException | RuntimeException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    private void map() throws IOException {
+        if (rowsChannel.size() == 0) {
+            rows = rowsChannel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + 1024 * ROW_SIZE);
+            names = namesChannel.map(FileChannel.MapMode.READ_WRITE, 0, 64 << 10);
+            rows.putInt(0, MAGIC).putInt(4, VERSION);
+            rebuildIds(1024);
+            return;
+        }
+        if (rowsChannel.size() < HEADER_SIZE || rowsChannel.size() > Integer.MAX_VALUE
+                || namesChannel.size() > Integer.MAX_VALUE || idsChannel.size() > Integer.MAX_VALUE) {
+            throw new IOException("файл строк студентов поврежден");
+        }
+        rows = rowsChannel.map(FileChannel.MapMode.READ_WRITE, 0, rowsChannel.size());
+        names = namesChannel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(namesChannel.size(), 64 << 10));
+        if (rows.getInt(0) != MAGIC) {
+            throw new IOException("каталог не содержит студентов");
+        }
+        int version = rows.getInt(4);
+        if (version != VERSION) {
+            throw new IOException("неподдерживаемая версия файла студентов: " + version);
+        }
+        rowCount = rows.getInt(ROW_COUNT);
+        removedCount = rows.getInt(REMOVED_COUNT);
+        namesUsed = rows.getInt(NAMES_USED);
+        if (rowCount < 0 || HEADER_SIZE + (long) rowCount * ROW_SIZE > rows.capacity()
+                || namesUsed < 0 || namesUsed > names.capacity()) {
+            throw new IOException("файл строк студентов поврежден");
+        }
+        boolean recovered = rows.getInt(DIRTY) != 0;
+        if (!recovered && idsChannel.size() >= IDS_HEADER) {
+            ids = idsChannel.map(FileChannel.MapMode.READ_WRITE, 0, idsChannel.size());
+            idCapacity = ids.getInt(0);
+            idSize = ids.getInt(4);
+            recovered = idCapacity <= 0 || Integer.bitCount(idCapacity) != 1
+                    || IDS_HEADER + 4L * idCapacity != idsChannel.size() || idSize != rowCount - removedCount;
+        }
+        if (recovered || ids == null) {
+            recover();
+        }
+    }
+
+    // После сбоя: недописанные строки - удаленные, таблица id - заново по живым строкам
+    private void recover() throws IOException {
+        removedCount = 0;
+        for (int row = 0; row < rowCount; row++) {
+            int at = rowOffset(row);
+            int state = rows.getInt(at + 4);
+            if (state == LIVE && !(validName(rows.getInt(at + 16), rows.getInt(at + 20))
+                    && validName(rows.getInt(at + 24), rows.getInt(at + 28)))) {
+                state = REMOVED;
+            }
+            if (state != LIVE) {
+                rows.putInt(at + 4, REMOVED);
+                removedCount++;
+            }
+        }
+        rows.putInt(REMOVED_COUNT, removedCount);
+        rebuildIds(Math.max(1024, Integer.highestOneBit(Math.max(1, rowCount - removedCount)) * 4));
+        // id, повторившийся после сбоя, остается у первой строки
+        removedCount = rowCount - idSize;
+        rows.putInt(REMOVED_COUNT, removedCount);
+        flushAll();
+        rows.putInt(DIRTY, 0);
+        rows.force();
+    }
+
+    private boolean validName(int offset, int length) {
+        return offset >= 0 && length >= 0 && (long) offset + length <= namesUsed;
+    }
+
+    synchronized int size() {
+        return rowCount - removedCount;
+    }
+
+    // Все строки, включая удаленные: номера строк для student(row) меньше этого числа
+    synchronized int rowLimit() {
+        return rowCount;
+    }
+
+    // null для удаленной строки
+    synchronized Student student(int row) {
+        int at = rowOffset(row);
+        if (rows.getInt(at + 4) != LIVE) {
+            return null;
+        }
+        return new Student(rows.getInt(at), name(rows.getInt(at + 16), rows.getInt(at + 20)),
+                name(rows.getInt(at + 24), rows.getInt(at + 28)), rows.getDouble(at + 8));
+    }
+
+    synchronized Student get(int id) {
+        int row = find(id);
+        return row < 0 ? null : student(row);
+    }
+
+    // false, если студент с таким id уже есть
+    synchronized boolean add(int id, String firstName, String lastName, double grade) throws IOException {
+        if (find(id) >= 0) {
+            return false;
+        }
+        ensureRows(rowCount + 1);
+        if ((idSize + 1) * 2 > idCapacity) {
+            markDirty();
+            rebuildIds(idCapacity * 2);
+        }
+        markDirty();
+        long first = putName(firstName);
+        long last = putName(lastName);
+        int row = rowCount;
+        int at = rowOffset(row);
+        rows.putInt(at, id).putDouble(at + 8, grade)
+                .putInt(at + 16, (int) (first >>> 32)).putInt(at + 20, (int) first)
+                .putInt(at + 24, (int) (last >>> 32)).putInt(at + 28, (int) last)
+                .putInt(at + 4, LIVE);
+        rowCount++;
+        rows.putInt(ROW_COUNT, rowCount).putInt(NAMES_USED, namesUsed);
+        insertId(id, row);
+        return true;
+    }
+
+    synchronized boolean remove(int id) {
+        int row = find(id);
+        if (row < 0) {
+            return false;
+        }
+        markDirty();
+        deleteId(id);
+        rows.putInt(rowOffset(row) + 4, REMOVED);
+        removedCount++;
+        rows.putInt(REMOVED_COUNT, removedCount);
+        return true;
+    }
+
+    synchronized boolean setGrade(int id, double grade) {
+        int row = find(id);
+        if (row < 0) {
+            return false;
+        }
+        markDirty();
+        rows.putDouble(rowOffset(row) + 8, grade);
+        return true;
+    }
+
+    // Живые студенты в пачку для StudentStore.addAll. Повторные имена в куче обычно лежат
+    // по одному смещению, и такое имя декодируется один раз
+    synchronized StudentBatch readAll() {
+        StudentBatch batch = new StudentBatch(size());
+        LongIntMap nameIndexes = new LongIntMap();
+        for (int row = 0; row < rowCount; row++) {
+            int at = rowOffset(row);
+            if (rows.getInt(at + 4) == LIVE) {
+                batch.add(rows.getInt(at), batchName(batch, nameIndexes, rows.getInt(at + 16), rows.getInt(at + 20)),
+                        batchName(batch, nameIndexes, rows.getInt(at + 24), rows.getInt(at + 28)),
+                        rows.getDouble(at + 8));
+            }
+        }
+        return batch;
+    }
+
+    private int batchName(StudentBatch batch, LongIntMap nameIndexes, int offset, int length) {
+        long ref = (long) offset << 32 | length;
+        int index = nameIndexes.get(ref);
+        if (index == LongIntMap.MISSING) {
+            index = batch.name(name(offset, length));
+            nameIndexes.put(ref, index);
+        }
+        return index;
+    }
+
+    // Сначала данные, затем снятие флага: иначе после сбоя файл мог бы считаться сброшенным
+    synchronized void flush() {
+        if (!dirty) {
+            return;
+        }
+        flushAll();
+        rows.putInt(DIRTY, 0);
+        rows.force(0, HEADER_SIZE);
+        dirty = false;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            if (rows != null) {
+                flush();
+            }
+        } finally {
+            rowsChannel.close();
+            namesChannel.close();
+            idsChannel.close();
+        }
+    }
+
+    private void markDirty() {
+        if (!dirty) {
+            rows.putInt(DIRTY, 1);
+            rows.force(0, HEADER_SIZE);
+            dirty = true;
+        }
+    }
+
+    private void flushAll() {
+        rows.force();
+        names.force();
+        ids.force();
+    }
+
+    private static int rowOffset(int row) {
+        return HEADER_SIZE + row * ROW_SIZE;
+    }
+
+    private String name(int offset, int length) {
+        byte[] bytes = new byte[length];
+        names.get(offset, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Смещение имени в куче в старших 32 битах, длина в байтах - в младших
+    private long putName(String name) throws IOException {
+        Long known = recentNames.get(name);
+        if (known != null) {
+            return known;
+        }
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        if (namesUsed + (long) bytes.length > names.capacity()) {
+            names = remap(namesChannel, names, namesUsed + (long) bytes.length);
+        }
+        names.put(namesUsed, bytes);
+        long ref = (long) namesUsed << 32 | bytes.length;
+        namesUsed += bytes.length;
+        recentNames.put(name, ref);
+        return ref;
+    }
+
+    private void ensureRows(int count) throws IOException {
+        long needed = HEADER_SIZE + (long) count * ROW_SIZE;
+        if (needed > rows.capacity()) {
+            rows = remap(rowsChannel, rows, needed);
+        }
+    }
+
+    // Отображение не меньше needed байт, с запасом вдвое
+    private static MappedByteBuffer remap(FileChannel channel, MappedByteBuffer buffer, long needed) throws IOException {
+        long size = Math.min(Integer.MAX_VALUE, Math.max(needed, buffer.capacity() * 2L));
+        if (needed > size) {
+            throw new IOException("файл студентов больше 2 ГБ");
+        }
+        buffer.force();
+        return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+
+    // Строка студента с этим id или -1
+    private int find(int id) {
+        int mask = idCapacity - 1;
+        for (int i = hash(id) & mask; ; i = (i + 1) & mask) {
+            int entry = ids.getInt(IDS_HEADER + 4 * i);
+            if (entry == 0) {
+                return -1;
+            }
+            if (rows.getInt(rowOffset(entry - 1)) == id) {
+                return entry - 1;
+            }
+        }
+    }
+
+    private void insertId(int id, int row) {
+        int mask = idCapacity - 1;
+        int i = hash(id) & mask;
+        while (ids.getInt(IDS_HEADER + 4 * i) != 0) {
+            i = (i + 1) & mask;
+        }
+        ids.putInt(IDS_HEADER + 4 * i, row + 1);
+        ids.putInt(4, ++idSize);
+    }
+
+    private void deleteId(int id) {
+        int mask = idCapacity - 1;
+        int hole = hash(id) & mask;
+        while (rows.getInt(rowOffset(ids.getInt(IDS_HEADER + 4 * hole) - 1)) != id) {
+            hole = (hole + 1) & mask;
+        }
+        // сдвигаем назад записи цепочки, которые могут занять освободившуюся ячейку
+        int i = hole;
+        while (true) {
+            i = (i + 1) & mask;
+            int entry = ids.getInt(IDS_HEADER + 4 * i);
+            if (entry == 0) {
+                break;
+            }
+            int ideal = hash(rows.getInt(rowOffset(entry - 1))) & mask;
+            if (((i - ideal) & mask) >= ((i - hole) & mask)) {
+                ids.putInt(IDS_HEADER + 4 * hole, entry);
+                hole = i;
+            }
+        }
+        ids.putInt(IDS_HEADER + 4 * hole, 0);
+        ids.putInt(4, --idSize);
+    }
+
+    // Таблица id заново по живым строкам
+    private void rebuildIds(int capacity) throws IOException {
+        long size = IDS_HEADER + 4L * capacity;
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("таблица id больше 2 ГБ");
+        }
+        if (ids != null) {
+            ids.force();
+        }
+        // после восстановления таблица может стать меньше файла - хвост отрезаем,
+        // иначе проверка размера при открытии каждый раз запускала бы восстановление
+        if (idsChannel.size() > size) {
+            idsChannel.truncate(size);
+        }
+        ids = idsChannel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        for (int i = IDS_HEADER; i < size; i += 4) {
+            ids.putInt(i, 0);
+        }
+        idCapacity = capacity;
+        idSize = 0;
+        ids.putInt(0, capacity).putInt(4, 0);
+        for (int row = 0; row < rowCount; row++) {
+            int at = rowOffset(row);
+            if (rows.getInt(at + 4) == LIVE) {
+                int id = rows.getInt(at);
+                if (find(id) >= 0) {
+                    rows.putInt(at + 4, REMOVED);
+                } else {
+                    insertId(id, row);
+                }
+            }
+        }
+    }
+
+    private static int hash(int id) {
+        int h = id * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
+
+// Студенты без консоли, по столбцам: id, оценка и коды имени и фамилии в параллельных массивах,
+// строка таблицы - студент в порядке добавления. Объект Student собирается только при чтении.
+// Поиск по id - примитивная хеш-таблица id -> строка. Удаление помечает строку; когда удаленных
+// строк больше живых, таблица уплотняется вместе с индексом имен. Индекс оценок ключуется по id
+// и уплотнения не замечает.
+// Хранилище, открытое над каталогом (open), держит студентов в StudentFile: add, remove, setGrade,
+// get, size и обход students идут прямо в файл, а столбцы и индексы строятся из него при первом
+// запросе, которому они нужны (сортировка, поиск, сводки), и дальше меняются вместе с файлом.
+class StudentStore implements Closeable {
+    private static final int MIN_COMPACT = 1024;
+    private static final int MAX_ORDERS = 4;
+    private static final int STATISTICS_ROWS_PER_TASK = 1 << 16;
+
+    private StudentFile file;           // null - только в памяти
+    private boolean loaded = true;      // столбцы и индексы построены
+    private long flushMillis;
+    private ScheduledExecutorService flusher;
+
+    private int[] ids = new int[1024];
+    private double[] grades = new double[1024];
+    private int[] firstNames = new int[1024];     // коды NameDictionary
+    private int[] lastNames = new int[1024];
+    private final BitSet removedRows = new BitSet();
+    private int rowCount;
+    private int removedCount;
+
+    private final LongIntMap rowsById = new LongIntMap();
+    private final NameDictionary names = new NameDictionary();
+    private final GradeIndex studentsByGrade = new GradeIndex();
+    private GradeStatistics gradeStatistics = new GradeStatistics();
+    // Запрошенные порядки поддерживаются при каждом изменении; давно не запрошенные выбрасываются
+    private final Map<StudentOrder, RowOrder> orders = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<StudentOrder, RowOrder> eldest) {
+            return size() > MAX_ORDERS;
+        }
+    };
+    private final StudentNameIndex studentsByName = new StudentNameIndex(new StudentNameIndex.Rows() {
+        @Override
+        public int rowCount() {
+            return rowCount;
+        }
+
+        @Override
+        public boolean matches(int row, char[] folded) {
+            return !removedRows.get(row)
+                    && (names.containsFolded(firstNames[row], folded) || names.containsFolded(lastNames[row], folded));
+        }
+    });
+
+    // Студенты каталога dir; пустой каталог - пустое хранилище. Изменения пишутся в файл сразу,
+    // на диск сбрасываются раз в flushMillis мс, при 0 - после каждого изменения
+    static StudentStore open(Path dir, long flushMillis) throws IOException {
+        if (flushMillis < 0) {
+            throw new IllegalArgumentException("интервал сброса не может быть отрицательным");
+        }
+        StudentStore store = new StudentStore();
+        store.file = StudentFile.open(dir);
+        store.loaded = false;
+        store.flushMillis = flushMillis;
+        if (flushMillis > 0) {
+            store.flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "student-flush");
+                thread.setDaemon(true);
+                return thread;
+            });
+            store.flusher.scheduleWithFixedDelay(store.file::flush, flushMillis, flushMillis, TimeUnit.MILLISECONDS);
+        }
+        return store;
+    }
+
+    // false, если студент с таким id уже есть
+    boolean add(Student student) {
+        checkGrade(student.getGrade());
+        int id = student.getId();
+        if (file != null) {
+            try {
+                if (!file.add(id, student.getFirstName(), student.getLastName(), student.getGrade())) {
+                    return false;
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            changed();
+            if (!loaded) {
+                return true;
+            }
+        }
+        if (rowsById.get(id) != LongIntMap.MISSING) {
+            return false;
+        }
+        if (rowCount == ids.length) {
+            int capacity = rowCount * 2;
+            ids = Arrays.copyOf(ids, capacity);
+            grades = Arrays.copyOf(grades, capacity);
+            firstNames = Arrays.copyOf(firstNames, capacity);
+            lastNames = Arrays.copyOf(lastNames, capacity);
+        }
+        int row = rowCount++;
+        ids[row] = id;
+        grades[row] = student.getGrade();
+        firstNames[row] = names.acquire(student.getFirstName());
+        lastNames[row] = names.acquire(student.getLastName());
+        rowsById.put(id, row);
+        studentsByGrade.add(student.getGrade(), id);
+        gradeStatistics.add(student.getGrade());
+        studentsByName.add(row, student.getFirstName(), student.getLastName());
+        for (RowOrder order : orders.values()) {
+            order.add(row);
+        }
+        return true;
+    }
+
+    // Как add для каждого студента пачки по порядку, но индекс оценок сливается с новыми строками
+    // один раз, а поддерживаемые порядки сбрасываются: одна сортировка при следующем запросе
+    // дешевле миллионов вставок. duplicate получает номера студентов пачки с уже занятым id
+    // (в том числе занятым раньше в этой же пачке). Возвращает число добавленных.
+    int addAll(StudentBatch batch, IntConsumer duplicate) {
+        for (int i = 0; i < batch.size; i++) {
+            checkGrade(batch.grades[i]);
+        }
+        if (file == null) {
+            return addRows(batch, duplicate);
+        }
+        // занятые id отсеивает файл; в столбцы уходят только добавленные в него
+        StudentBatch added = new StudentBatch(batch.names, batch.nameCount, batch.size);
+        try {
+            for (int i = 0; i < batch.size; i++) {
+                if (file.add(batch.ids[i], batch.names[batch.firstNames[i]], batch.names[batch.lastNames[i]],
+                        batch.grades[i])) {
+                    added.add(batch.ids[i], batch.firstNames[i], batch.lastNames[i], batch.grades[i]);
+                } else {
+                    duplicate.accept(i);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            changed();
+            if (loaded) {
+                addRows(added, i -> { });
+            }
+        }
+        return added.size;
+    }
+
+    private int addRows(StudentBatch batch, IntConsumer duplicate) {
+        if (rowCount + batch.size > ids.length) {
+            int capacity = Math.max(rowCount + batch.size, ids.length * 2);
+            ids = Arrays.copyOf(ids, capacity);
+            grades = Arrays.copyOf(grades, capacity);
+            firstNames = Arrays.copyOf(firstNames, capacity);
+            lastNames = Arrays.copyOf(lastNames, capacity);
+        }
+        int[] codes = new int[batch.nameCount];      // по номеру имени пачки, -1 - еще не взят
+        Arrays.fill(codes, -1);
+        int[][] trigramSlots = new int[batch.nameCount][];
+        int first = rowCount;
+        for (int i = 0; i < batch.size; i++) {
+            int id = batch.ids[i];
+            if (rowsById.get(id) != LongIntMap.MISSING) {
+                duplicate.accept(i);
+                continue;
+            }
+            int row = rowCount++;
+            ids[row] = id;
+            grades[row] = batch.grades[i];
+            firstNames[row] = code(batch, batch.firstNames[i], codes, trigramSlots);
+            lastNames[row] = code(batch, batch.lastNames[i], codes, trigramSlots);
+            rowsById.put(id, row);
+            studentsByName.add(row, trigramSlots[batch.firstNames[i]], trigramSlots[batch.lastNames[i]]);
+        }
+        int added = rowCount - first;
+        if (added > 0) {
+            studentsByGrade.addAll(Arrays.copyOfRange(grades, first, rowCount),
+                    Arrays.copyOfRange(ids, first, rowCount), added);
+            orders.clear();
+            GradeStatistics batchStatistics = new GradeStatistics();
+            for (int row = first; row < rowCount; row++) {
+                batchStatistics.add(grades[row]);
+            }
+            gradeStatistics.merge(batchStatistics);
+        }
+        return added;
+    }
+
+    private int code(StudentBatch batch, int name, int[] codes, int[][] trigramSlots) {
+        if (codes[name] < 0) {
+            codes[name] = names.acquire(batch.names[name]);
+            trigramSlots[name] = studentsByName.slots(batch.names[name]);
+        } else {
+            names.retain(codes[name]);
+        }
+        return codes[name];
+    }
+
+    boolean remove(int id) {
+        if (file != null) {
+            if (!file.remove(id)) {
+                return false;
+            }
+            changed();
+            if (!loaded) {
+                return true;
+            }
+        }
+        int row = rowsById.remove(id);
+        if (row == LongIntMap.MISSING) {
+            return false;
+        }
+        studentsByGrade.remove(grades[row], id);
+        gradeStatistics.remove(grades[row]);
+        for (RowOrder order : orders.values()) {
+            order.remove(row);
+        }
+        names.release(firstNames[row]);
+        names.release(lastNames[row]);
+        removedRows.set(row);
+        removedCount++;
+        if (removedCount >= MIN_COMPACT && removedCount * 2 > rowCount) {
+            compact();
+        }
+        return true;
+    }
+
+    boolean setGrade(int id, double grade) {
+        checkGrade(grade);
+        if (file != null) {
+            if (!file.setGrade(id, grade)) {
+                return false;
+            }
+            changed();
+            if (!loaded) {
+                return true;
+            }
+        }
+        int row = rowsById.get(id);
+        if (row == LongIntMap.MISSING) {
+            return false;
+        }
+        studentsByGrade.remove(grades[row], id);
+        List<RowOrder> byGrade = new ArrayList<>();
+        for (Map.Entry<StudentOrder, RowOrder> order : orders.entrySet()) {
+            if (order.getKey().uses(StudentOrder.Key.GRADE)) {
+                order.getValue().remove(row);
+                byGrade.add(order.getValue());
+            }
+        }
+        gradeStatistics.remove(grades[row]);
+        gradeStatistics.add(grade);
+        grades[row] = grade;
+        studentsByGrade.add(grade, id);
+        for (RowOrder order : byGrade) {
+            order.add(row);
+        }
+        return true;
+    }
+
+    Student get(int id) {
+        if (!loaded) {
+            return file.get(id);
+        }
+        int row = rowsById.get(id);
+        return row == LongIntMap.MISSING ? null : student(row);
+    }
+
+    int size() {
+        return loaded ? rowCount - removedCount : file.size();
+    }
+
+    boolean isEmpty() {
+        return size() == 0;
+    }
+
+    // В порядке добавления; студенты собираются по мере обхода
+    Collection<Student> students() {
+        if (!loaded) {
+            return fileStudents();
+        }
+        return new AbstractCollection<>() {
+            @Override
+            public Iterator<Student> iterator() {
+                return new Iterator<>() {
+                    private int row = removedRows.nextClearBit(0);
+
+                    @Override
+                    public boolean hasNext() {
+                        return row < rowCount;
+                    }
+
+                    @Override
+                    public Student next() {
+                        if (row >= rowCount) {
+                            throw new NoSuchElementException();
+                        }
+                        Student student = student(row);
+                        row = removedRows.nextClearBit(row + 1);
+                        return student;
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return StudentStore.this.size();
+            }
+        };
+    }
+
+    // Обход строк файла: до построения столбцов студенты читаются прямо из отображения
+    private Collection<Student> fileStudents() {
+        return new AbstractCollection<>() {
+            @Override
+            public Iterator<Student> iterator() {
+                return new Iterator<>() {
+                    private int row = -1;
+                    private Student next = advance();
+
+                    private Student advance() {
+                        Student student = null;
+                        while (student == null && ++row < file.rowLimit()) {
+                            student = file.student(row);
+                        }
+                        return student;
+                    }
+
+                    @Override
+                    public boolean hasNext() {
+                        return next != null;
+                    }
+
+                    @Override
+                    public Student next() {
+                        if (next == null) {
+                            throw new NoSuchElementException();
+                        }
+                        Student student = next;
+                        next = advance();
+                        return student;
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return file.size();
+            }
+        };
+    }
+
+    // Сбрасывает изменения файла на диск
+    void flush() {
+        if (file != null) {
+            file.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (flusher != null) {
+            flusher.shutdownNow();
+        }
+        if (file != null) {
+            file.close();
+        }
+    }
+
+    private void changed() {
+        if (flushMillis == 0) {
+            flush();
+        }
+    }
+
+    // Столбцы и индексы одним addAll по живым строкам файла
+    private void ensureLoaded() {
+        if (!loaded) {
+            loaded = true;
+            addRows(file.readAll(), i -> { });
+        }
+    }
+
+    // Все студенты в порядке order. Первый запрос порядка строит его индекс одной сортировкой,
+    // дальше индекс поддерживается при изменениях, и повторный запрос не сортирует ничего.
+    // Студенты собираются по мере обхода.
+    Collection<Student> sorted(StudentOrder order) {
+        ensureLoaded();
+        RowOrder rows = orders.get(order);
+        if (rows == null) {
+            rows = new RowOrder((a, b) -> compareRows(order, a, b));
+            int[] live = new int[size()];
+            int count = 0;
+            for (int row = removedRows.nextClearBit(0); row < rowCount; row = removedRows.nextClearBit(row + 1)) {
+                live[count++] = row;
+            }
+            rows.build(live, count);
+            orders.put(order, rows);
+        }
+        RowOrder view = rows;
+        return new AbstractCollection<>() {
+            @Override
+            public Iterator<Student> iterator() {
+                PrimitiveIterator.OfInt iterator = view.iterator();
+                return new Iterator<>() {
+                    @Override
+                    public boolean hasNext() {
+                        return iterator.hasNext();
+                    }
+
+                    @Override
+                    public Student next() {
+                        return student(iterator.nextInt());
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return view.size();
+            }
+        };
+    }
+
+    // Как StudentOrder.compare, но по столбцам: имена - по ключам сравнения из словаря
+    private int compareRows(StudentOrder order, int a, int b) {
+        for (int i = 0; i < order.keyCount(); i++) {
+            int c = switch (order.key(i)) {
+                case LAST_NAME -> compareNames(lastNames[a], lastNames[b]);
+                case FIRST_NAME -> compareNames(firstNames[a], firstNames[b]);
+                case ID -> Integer.compare(ids[a], ids[b]);
+                case GRADE -> Double.compare(grades[a] + 0.0, grades[b] + 0.0);
+            };
+            if (c != 0) {
+                return order.isDescending(i) ? -c : c;
+            }
+        }
+        return Integer.compare(ids[a], ids[b]);
+    }
+
+    private int compareNames(int code, int otherCode) {
+        return code == otherCode ? 0 : names.collationKey(code).compareTo(names.collationKey(otherCode));
+    }
+
+    // До limit студентов, у которых имя или фамилия содержит query без учета регистра
+    List<Student> findByName(String query, int limit) {
+        ensureLoaded();
+        int[] rows = studentsByName.search(query, limit);
+        List<Student> found = new ArrayList<>(rows.length);
+        for (int row : rows) {
+            found.add(student(row));
+        }
+        return found;
+    }
+
+    // Оценка строго выше minGrade, по убыванию оценки
+    List<Student> findByGradeAbove(double minGrade) {
+        return findByGrade(minGrade, false, Double.POSITIVE_INFINITY, true);
+    }
+
+    // Оценки между from и to, по убыванию оценки (при равных - по убыванию id).
+    // O(log n + k): двоичный поиск начала диапазона в индексе оценок и k строк по id.
+    List<Student> findByGrade(double from, boolean fromInclusive, double to, boolean toInclusive) {
+        checkGrade(from);
+        checkGrade(to);
+        ensureLoaded();
+        List<Student> found = new ArrayList<>();
+        studentsByGrade.descending(from, fromInclusive, to, toInclusive, id -> {
+            found.add(student(rowsById.get(id)));
+            return true;
+        });
+        return found;
+    }
+
+    // Сводка по всем студентам за O(1): моменты поддерживаются при каждом изменении,
+    // минимум и максимум - края индекса оценок
+    GradeStatistics statistics() {
+        ensureLoaded();
+        GradeStatistics statistics = new GradeStatistics(gradeStatistics);
+        statistics.setRange(studentsByGrade.min(), studentsByGrade.max());
+        return statistics;
+    }
+
+    // Сводка, пересчитанная заново по столбцам в pool. Поддерживаемая сводка заменяется ею:
+    // после миллионов удалений и изменений в ней копится ошибка округления
+    GradeStatistics recomputeStatistics(ForkJoinPool pool) {
+        ensureLoaded();
+        Object all = new Object();
+        GradeStatistics statistics = pool.invoke(new StatisticsTask<>(row -> all, 0, rowCount))
+                .getOrDefault(all, new GradeStatistics());
+        gradeStatistics = new GradeStatistics(statistics);
+        return statistics;
+    }
+
+    // Сводки по группам студентов с одинаковым key, считаются параллельно в pool
+    <K> Map<K, GradeStatistics> statisticsBy(Function<Student, ? extends K> key, ForkJoinPool pool) {
+        ensureLoaded();
+        return pool.invoke(new StatisticsTask<K>(row -> key.apply(student(row)), 0, rowCount));
+    }
+
+    // Строки [from, to) делятся пополам, пока их больше STATISTICS_ROWS_PER_TASK;
+    // сводки половин сливаются по группам. Хранилище не должно меняться, пока задача идет
+    @SuppressWarnings("serial")
+    private final class StatisticsTask<K> extends RecursiveTask<Map<K, GradeStatistics>> {
+        private final IntFunction<? extends K> rowKey;
+        private final int from;
+        private final int to;
+
+        StatisticsTask(IntFunction<? extends K> rowKey, int from, int to) {
+            this.rowKey = rowKey;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Map<K, GradeStatistics> compute() {
+            if (to - from > STATISTICS_ROWS_PER_TASK) {
+                int middle = (from + to) >>> 1;
+                StatisticsTask<K> left = new StatisticsTask<K>(rowKey, from, middle);
+                left.fork();
+                Map<K, GradeStatistics> right = new StatisticsTask<K>(rowKey, middle, to).compute();
+                Map<K, GradeStatistics> merged = left.join();
+                right.forEach((group, statistics) -> merged.merge(group, statistics, (a, b) -> {
+                    a.merge(b);
+                    return a;
+                }));
+                return merged;
+            }
+            Map<K, GradeStatistics> groups = new HashMap<>();
+            K lastKey = null;
+            GradeStatistics last = null;
+            for (int row = removedRows.nextClearBit(from); row < to; row = removedRows.nextClearBit(row + 1)) {
+                K key = rowKey.apply(row);
+                // соседние строки часто в одной группе - без поиска в таблице
+                if (last == null || !Objects.equals(key, lastKey)) {
+                    lastKey = key;
+                    last = groups.computeIfAbsent(key, group -> new GradeStatistics());
+                }
+                last.add(grades[row]);
+            }
+            return groups;
+        }
+    }
+
+    // k студентов с наивысшими оценками, по убыванию оценки (при равных - по убыванию id).
+    // O(log n + k): обход индекса оценок с конца, без выборки и сортировки всех
+    List<Student> top(int k) {
+        checkCount(k);
+        ensureLoaded();
+        List<Student> found = new ArrayList<>(Math.min(k, size()));
+        studentsByGrade.descending(Double.NEGATIVE_INFINITY, true, Double.POSITIVE_INFINITY, true, id -> {
+            if (found.size() == k) {
+                return false;
+            }
+            found.add(student(rowsById.get(id)));
+            return true;
+        });
+        return found;
+    }
+
+    // k студентов с наименьшими оценками, по возрастанию оценки (при равных - по возрастанию id)
+    List<Student> bottom(int k) {
+        checkCount(k);
+        ensureLoaded();
+        List<Student> found = new ArrayList<>(Math.min(k, size()));
+        studentsByGrade.ascending(Double.NEGATIVE_INFINITY, true, Double.POSITIVE_INFINITY, true, id -> {
+            if (found.size() == k) {
+                return false;
+            }
+            found.add(student(rowsById.get(id)));
+            return true;
+        });
+        return found;
+    }
+
+    // Перцентиль оценок (0..100) с линейной интерполяцией между соседними по рангу оценками,
+    // как PERCENTILE в Excel; 50 - медиана. Точное значение по индексу оценок, без сортировки.
+    // NaN, если студентов нет
+    double percentile(double percent) {
+        if (!(percent >= 0 && percent <= 100)) {
+            throw new IllegalArgumentException("перцентиль должен быть от 0 до 100");
+        }
+        ensureLoaded();
+        int count = studentsByGrade.size();
+        if (count == 0) {
+            return Double.NaN;
+        }
+        double position = percent / 100 * (count - 1);
+        int lower = (int) position;
+        double grade = studentsByGrade.gradeAt(lower);
+        if (lower + 1 < count && position > lower) {
+            grade += (studentsByGrade.gradeAt(lower + 1) - grade) * (position - lower);
+        }
+        return grade;
+    }
+
+    // Число студентов в каждом из buckets равных интервалов между from и to: интервал включает
+    // левую границу, последний - еще и правую. Два подсчета ранга на интервал
+    int[] histogram(double from, double to, int buckets) {
+        if (buckets <= 0 || !Double.isFinite(from) || !Double.isFinite(to) || from >= to) {
+            throw new IllegalArgumentException("нужны конечные границы (начало меньше конца) и хотя бы один интервал");
+        }
+        ensureLoaded();
+        int[] counts = new int[buckets];
+        int below = studentsByGrade.countBelow(from, false);
+        for (int i = 0; i < buckets; i++) {
+            int upTo = i == buckets - 1
+                    ? studentsByGrade.countBelow(to, true)
+                    : studentsByGrade.countBelow(from + (to - from) * (i + 1) / buckets, false);
+            counts[i] = upTo - below;
+            below = upTo;
+        }
+        return counts;
+    }
+
+    private Student student(int row) {
+        return new Student(ids[row], names.name(firstNames[row]), names.name(lastNames[row]), grades[row]);
+    }
+
+    // Живые строки сдвигаются к началу с сохранением порядка
+    private void compact() {
+        int[] renumbered = new int[rowCount];
+        int live = 0;
+        for (int row = 0; row < rowCount; row++) {
+            if (removedRows.get(row)) {
+                renumbered[row] = -1;
+                continue;
+            }
+            renumbered[row] = live;
+            if (live != row) {
+                ids[live] = ids[row];
+                grades[live] = grades[row];
+                firstNames[live] = firstNames[row];
+                lastNames[live] = lastNames[row];
+                rowsById.put(ids[live], live);
+            }
+            live++;
+        }
+        studentsByName.renumber(renumbered);
+        for (RowOrder order : orders.values()) {
+            order.renumber(renumbered);
+        }
+        removedRows.clear();
+        rowCount = live;
+        removedCount = 0;
+    }
+
+    private static void checkCount(int k) {
+        if (k < 0) {
+            throw new IllegalArgumentException("число студентов не может быть отрицательным");
+        }
+    }
+
+    private static void checkGrade(double grade) {
+        if (Double.isNaN(grade)) {
+            throw new IllegalArgumentException("оценка должна быть числом");
+        }
+    }
+
+    /*
+     * Бинарный снимок студентов (версия 1, big-endian):
+     *   заголовок: magic "STDS", int версия, int число имен, int число студентов
+     *   имена    : int длина в байтах, имя в UTF-8 - каждое различное имя и фамилия один раз
+     *   столбцы  : int[] id, double[] оценки, int[] номера имен, int[] номера фамилий
+     * Около 20 байт на студента; столбцы читаются целиком, без разбора строк.
+     */
+    static final int SNAPSHOT_MAGIC = 0x53544453; // "STDS"
+    static final int SNAPSHOT_VERSION = 1;
+    private static final int SNAPSHOT_HEADER = 16;
+
+    void exportSnapshot(Path path) throws IOException {
+        ensureLoaded();
+        int count = size();
+        int[] nameIndexes = new int[names.codeLimit()];
+        Arrays.fill(nameIndexes, -1);
+        List<String> snapshotNames = new ArrayList<>();
+        int[] firstIndexes = new int[count];
+        int[] lastIndexes = new int[count];
+        int[] liveIds = new int[count];
+        double[] liveGrades = new double[count];
+        int n = 0;
+        for (int row = removedRows.nextClearBit(0); row < rowCount; row = removedRows.nextClearBit(row + 1)) {
+            firstIndexes[n] = snapshotName(firstNames[row], nameIndexes, snapshotNames);
+            lastIndexes[n] = snapshotName(lastNames[row], nameIndexes, snapshotNames);
+            liveIds[n] = ids[row];
+            liveGrades[n++] = grades[row];
+        }
+
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+            buffer.putInt(SNAPSHOT_MAGIC).putInt(SNAPSHOT_VERSION).putInt(snapshotNames.size()).putInt(count);
+            for (String name : snapshotNames) {
+                byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+                ensureRoom(channel, buffer, 4);
+                buffer.putInt(bytes.length);
+                for (int offset = 0; offset < bytes.length; ) {
+                    ensureRoom(channel, buffer, 1);
+                    int length = Math.min(bytes.length - offset, buffer.remaining());
+                    buffer.put(bytes, offset, length);
+                    offset += length;
+                }
+            }
+            writeColumn(channel, buffer, liveIds);
+            for (int i = 0; i < count; ) {
+                ensureRoom(channel, buffer, 8);
+                int length = Math.min(count - i, buffer.remaining() / 8);
+                buffer.asDoubleBuffer().put(liveGrades, i, length);
+                buffer.position(buffer.position() + length * 8);
+                i += length;
+            }
+            writeColumn(channel, buffer, firstIndexes);
+            writeColumn(channel, buffer, lastIndexes);
+            drain(channel, buffer);
+            channel.force(true);
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Номер имени в снимке; имя получает номер при первой встрече
+    private int snapshotName(int code, int[] nameIndexes, List<String> snapshotNames) {
+        if (nameIndexes[code] < 0) {
+            nameIndexes[code] = snapshotNames.size();
+            snapshotNames.add(names.name(code));
+        }
+        return nameIndexes[code];
+    }
+
+    // Студенты снимка добавляются как addAll; уже занятые id пропускаются.
+    // Возвращает число добавленных
+    int importSnapshot(Path path) throws IOException {
+        ByteBuffer file;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("снимок больше 2 ГБ");
+            }
+            file = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (file.limit() < SNAPSHOT_HEADER || file.getInt() != SNAPSHOT_MAGIC) {
+            throw new IOException("файл не является снимком студентов");
+        }
+        int version = file.getInt();
+        if (version != SNAPSHOT_VERSION) {
+            throw new IOException("неподдерживаемая версия снимка: " + version);
+        }
+        int nameCount = file.getInt();
+        int count = file.getInt();
+        try {
+            String[] snapshotNames = new String[nameCount];
+            for (int i = 0; i < nameCount; i++) {
+                byte[] bytes = new byte[file.getInt()];
+                file.get(bytes);
+                snapshotNames[i] = new String(bytes, StandardCharsets.UTF_8);
+            }
+            if (file.remaining() != count * 20L) {
+                throw new IOException("снимок поврежден");
+            }
+            StudentBatch batch = new StudentBatch(snapshotNames, nameCount, count);
+            file.asIntBuffer().get(batch.ids, 0, count);
+            file.position(file.position() + count * 4);
+            file.asDoubleBuffer().get(batch.grades, 0, count);
+            file.position(file.position() + count * 8);
+            file.asIntBuffer().get(batch.firstNames, 0, count);
+            file.position(file.position() + count * 4);
+            file.asIntBuffer().get(batch.lastNames, 0, count);
+            for (int i = 0; i < count; i++) {
+                if (batch.firstNames[i] < 0 || batch.firstNames[i] >= nameCount
+                        || batch.lastNames[i] < 0 || batch.lastNames[i] >= nameCount) {
+                    throw new IOException("снимок поврежден");
+                }
+            }
+            batch.size = count;
+            return addAll(batch, i -> { });
+        } catch (BufferUnderflowException | NegativeArraySizeException | IllegalArgumentException e) {
+            throw new IOException("снимок поврежден", e);
+        }
+    }
+
+    private static void writeColumn(FileChannel channel, ByteBuffer buffer, int[] column) throws IOException {
+        for (int i = 0; i < column.length; ) {
+            ensureRoom(channel, buffer, 4);
+            int length = Math.min(column.length - i, buffer.remaining() / 4);
+            buffer.asIntBuffer().put(column, i, length);
+            buffer.position(buffer.position() + length * 4);
+            i += length;
+        }
+    }
+
+    private static void ensureRoom(FileChannel channel, ByteBuffer buffer, int bytes) throws IOException {
+        if (buffer.remaining() < bytes) {
+            drain(channel, buffer);
+        }
+    }
+
+    private static void drain(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}
+
+// Итог пакетной загрузки студентов: сколько добавлено, сколько строк отвергнуто
+// и первые SAMPLE_LIMIT отказов по порядку строк файла
+class StudentLoadReport {
+    static final int SAMPLE_LIMIT = 20;
+
+    static final class Rejection {
+        final long line;        // номер строки в файле, с единицы
+        final String reason;
+
+        Rejection(long line, String reason) {
+            this.line = line;
+            this.reason = reason;
+        }
+
+        @Override
+        public String toString() {
+            return "строка " + line + ": " + reason;
+        }
+    }
+
+    private int loaded;
+    private long rejected;
+    private long lines;
+    private final List<Rejection> sample = new ArrayList<>();
+
+    int getLoaded() {
+        return loaded;
+    }
+
+    long getRejected() {
+        return rejected;
+    }
+
+    List<Rejection> getSample() {
+        return Collections.unmodifiableList(sample);
+    }
+
+    long lineCount() {
+        return lines;
+    }
+
+    long nextLine() {
+        return ++lines;
+    }
+
+    void accept(int count) {
+        loaded += count;
+    }
+
+    // Строить текст причины стоит только тогда, когда он попадет в образец
+    boolean wantsReason() {
+        return sample.size() < SAMPLE_LIMIT;
+    }
+
+    void reject(long line, String reason) {
+        rejected++;
+        if (reason != null && wantsReason()) {
+            sample.add(new Rejection(line, reason));
+        }
+    }
+
+    // Присоединяет итог следующего по файлу куска: номера его строк сдвигаются на длину этого
+    void append(StudentLoadReport next) {
+        loaded += next.loaded;
+        rejected += next.rejected;
+        for (Rejection rejection : next.sample) {
+            if (!wantsReason()) {
+                break;
+            }
+            sample.add(new Rejection(lines + rejection.line, rejection.reason));
+        }
+        lines += next.lines;
+    }
+
+    // Добавляет отказы по другим строкам того же файла, найденные позже (повторы id при добавлении
+    // в хранилище); в образце остаются первые по номеру строки
+    void merge(StudentLoadReport other) {
+        loaded += other.loaded;
+        rejected += other.rejected;
+        sample.addAll(other.sample);
+        sample.sort(Comparator.comparingLong(rejection -> rejection.line));
+        while (sample.size() > SAMPLE_LIMIT) {
+            sample.remove(sample.size() - 1);
+        }
+    }
+}
+
+// Параллельная загрузка выгрузки деканата в CSV: строка "id;имя;фамилия;оценка". Разделитель -
+// ';', табуляция или ',' - определяется по первой строке; поле можно взять в кавычки ("" внутри -
+// кавычка), но перевода строки в поле быть не должно. Первая строка без цифр в поле id -
+// заголовок. Файл делится на диапазоны байт по границам строк, диапазоны разбираются
+// в ForkJoinPool в пачки столбцов, и пачки по порядку файла добавляются в хранилище одним addAll.
+// Строка с ошибкой отвергается целиком; из повторов id остается первый по файлу
+// (или студент, который уже был в хранилище).
+class StudentCsvLoader {
+    static final double MIN_GRADE = 0;
+    static final double MAX_GRADE = 100;    // шкалы от пятибалльной до стобалльной
+    static final String BAD_FORMAT = "ожидается id, имя, фамилия, оценка";
+    private static final int LEAF_BYTES = 4 << 20;
+    private static final double[] POWERS_OF_TEN = {1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8,
+            1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15};
+
+    private final ForkJoinPool pool;
+
+    StudentCsvLoader(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    // Разобранный диапазон файла
+    private static final class Chunk {
+        final StudentBatch students = new StudentBatch(1024);
+        int[] lines = new int[1024];                // строка каждого студента внутри диапазона
+        final StudentLoadReport report = new StudentLoadReport();
+
+        void add(int id, String firstName, String lastName, double grade, int line) {
+            if (students.size == lines.length) {
+                lines = Arrays.copyOf(lines, lines.length * 2);
+            }
+            lines[students.size] = line;
+            students.add(id, firstName, lastName, grade);
+        }
+    }
+
+    StudentLoadReport load(Path path, StudentStore store) throws IOException {
+        List<Chunk> chunks;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            byte delimiter = detectDelimiter(channel);
+            chunks = pool.invoke(new ChunkTask(channel, delimiter, 0, channel.size()));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+
+        int total = 0;
+        for (Chunk chunk : chunks) {
+            total += chunk.students.size;
+        }
+        StudentBatch batch = new StudentBatch(total);
+        long[] lines = new long[total];
+        StudentLoadReport report = new StudentLoadReport();
+        for (Chunk chunk : chunks) {
+            long offset = report.lineCount();
+            StudentBatch students = chunk.students;
+            int[] nameIndexes = new int[students.nameCount];
+            for (int i = 0; i < students.nameCount; i++) {
+                nameIndexes[i] = batch.name(students.names[i]);
+            }
+            for (int i = 0; i < students.size; i++) {
+                lines[batch.size] = offset + chunk.lines[i];
+                batch.add(students.ids[i], nameIndexes[students.firstNames[i]],
+                        nameIndexes[students.lastNames[i]], students.grades[i]);
+            }
+            report.append(chunk.report);
+        }
+        StudentLoadReport duplicates = new StudentLoadReport();
+        int loaded = store.addAll(batch, i -> duplicates.reject(lines[i],
+                duplicates.wantsReason() ? "повторный id " + batch.ids[i] : null));
+        report.accept(loaded);
+        report.merge(duplicates);
+        return report;
+    }
+
+    @SuppressWarnings("serial")
+    private static final class ChunkTask extends RecursiveTask<List<Chunk>> {
+        private final FileChannel channel;
+        private final byte delimiter;
+        private final long start;
+        private final long end;
+
+        ChunkTask(FileChannel channel, byte delimiter, long start, long end) {
+            this.channel = channel;
+            this.delimiter = delimiter;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected List<Chunk> compute() {
+            try {
+                if (end - start > LEAF_BYTES) {
+                    long mid = nextLineStart(channel, start + (end - start) / 2, end);
+                    if (mid < end) {
+                        ChunkTask left = new ChunkTask(channel, delimiter, start, mid);
+                        left.fork();
+                        List<Chunk> right = new ChunkTask(channel, delimiter, mid, end).compute();
+                        List<Chunk> chunks = new ArrayList<>(left.join());
+                        chunks.addAll(right);
+                        return chunks;
+                    }
+                }
+                ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+                return List.of(parse(buffer, delimiter, start == 0));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    // ';' или табуляция, если они есть в первой строке, иначе ','
+    private static byte detectDelimiter(FileChannel channel) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        channel.read(buffer, 0);
+        boolean tab = false;
+        for (int i = 0; i < buffer.position() && buffer.get(i) != '\n'; i++) {
+            if (buffer.get(i) == ';') {
+                return ';';
+            }
+            tab |= buffer.get(i) == '\t';
+        }
+        return tab ? (byte) '\t' : (byte) ',';
+    }
+
+    // Позиция сразу после первого '\n' не раньше from (или end, если перевода строки нет)
+    private static long nextLineStart(FileChannel channel, long from, long end) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        long position = from;
+        while (position < end) {
+            buffer.clear();
+            int read = channel.read(buffer, position);
+            if (read <= 0) {
+                break;
+            }
+            for (int i = 0; i < read && position + i < end; i++) {
+                if (buffer.get(i) == '\n') {
+                    return position + i + 1;
+                }
+            }
+            position += read;
+        }
+        return end;
+    }
+
+    private static Chunk parse(ByteBuffer buffer, byte delimiter, boolean fileStart) {
+        Chunk chunk = new Chunk();
+        int[] fields = new int[8];                      // начало и конец каждого поля
+        int limit = buffer.limit();
+        int lineStart = 0;
+        // метка порядка байт, которую ставят выгрузки из Excel
+        if (fileStart && limit >= 3 && buffer.get(0) == (byte) 0xEF && buffer.get(1) == (byte) 0xBB
+                && buffer.get(2) == (byte) 0xBF) {
+            lineStart = 3;
+        }
+        while (lineStart < limit) {
+            int lineEnd = lineStart;
+            while (lineEnd < limit && buffer.get(lineEnd) != '\n' && buffer.get(lineEnd) != '\r') {
+                lineEnd++;
+            }
+            int line = (int) chunk.report.nextLine();
+            if (lineEnd > lineStart) {
+                parseLine(buffer, lineStart, lineEnd, delimiter, fields, fileStart && line == 1, line, chunk);
+            }
+            // "\r\n" - один перевод строки
+            if (lineEnd < limit && buffer.get(lineEnd) == '\r' && lineEnd + 1 < limit && buffer.get(lineEnd + 1) == '\n') {
+                lineEnd++;
+            }
+            lineStart = lineEnd + 1;
+        }
+        return chunk;
+    }
+
+    private static void parseLine(ByteBuffer buffer, int start, int end, byte delimiter, int[] fields,
+                                  boolean header, int line, Chunk chunk) {
+        StudentLoadReport report = chunk.report;
+        if (!splitFields(buffer, start, end, delimiter, fields)) {
+            report.reject(line, BAD_FORMAT);
+            return;
+        }
+        int id = parseId(buffer, fields[0], fields[1]);
+        if (id < 0) {
+            if (header && !hasDigit(buffer, fields[0], fields[1])) {
+                return;
+            }
+            report.reject(line, report.wantsReason() ? "неверный id '" + text(buffer, fields[0], fields[1]) + "'" : null);
+            return;
+        }
+        String firstName = text(buffer, fields[2], fields[3]);
+        String lastName = text(buffer, fields[4], fields[5]);
+        if (firstName.isEmpty() || lastName.isEmpty()) {
+            report.reject(line, firstName.isEmpty() ? "пустое имя" : "пустая фамилия");
+            return;
+        }
+        double grade = parseGrade(buffer, fields[6], fields[7]);
+        if (!(grade >= MIN_GRADE && grade <= MAX_GRADE)) {
+            String reason = null;
+            if (report.wantsReason()) {
+                reason = Double.isNaN(grade)
+                        ? "неверная оценка '" + text(buffer, fields[6], fields[7]) + "'"
+                        : "оценка " + text(buffer, fields[6], fields[7]) + " вне диапазона от "
+                                + (int) MIN_GRADE + " до " + (int) MAX_GRADE;
+            }
+            report.reject(line, reason);
+            return;
+        }
+        chunk.add(id, firstName, lastName, grade, line);
+    }
+
+    // Границы четырех полей без пробелов по краям; поле в кавычках - вместе с кавычками.
+    // Лишние поля допускаются только пустыми (разделители в конце строки)
+    private static boolean splitFields(ByteBuffer buffer, int start, int end, byte delimiter, int[] fields) {
+        int field = 0;
+        int i = start;
+        while (true) {
+            while (i < end && buffer.get(i) == ' ') {
+                i++;
+            }
+            int fieldStart = i;
+            int fieldEnd;
+            if (i < end && buffer.get(i) == '"') {
+                i++;
+                while (true) {
+                    if (i == end) {
+                        return false;       // нет закрывающей кавычки
+                    }
+                    if (buffer.get(i++) == '"') {
+                        if (i < end && buffer.get(i) == '"') {
+                            i++;
+                        } else {
+                            break;
+                        }
+                    }
+                }
+                fieldEnd = i;
+                while (i < end && buffer.get(i) == ' ') {
+                    i++;
+                }
+                if (i < end && buffer.get(i) != delimiter) {
+                    return false;
+                }
+            } else {
+                while (i < end && buffer.get(i) != delimiter) {
+                    i++;
+                }
+                fieldEnd = i;
+                while (fieldEnd > fieldStart && buffer.get(fieldEnd - 1) == ' ') {
+                    fieldEnd--;
+                }
+            }
+            if (field < 4) {
+                fields[2 * field] = fieldStart;
+                fields[2 * field + 1] = fieldEnd;
+            } else if (fieldEnd > fieldStart) {
+                return false;
+            }
+            field++;
+            if (i == end) {
+                return field >= 4;
+            }
+            i++;    // разделитель
+        }
+    }
+
+    // Положительный id из одних цифр или -1
+    private static int parseId(ByteBuffer buffer, int start, int end) {
+        if (start == end || end - start > 10) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            byte b = buffer.get(i);
+            if (b < '0' || b > '9') {
+                return -1;
+            }
+            value = value * 10 + (b - '0');
+        }
+        return value > 0 && value <= Integer.MAX_VALUE ? (int) value : -1;
+    }
+
+    private static boolean hasDigit(ByteBuffer buffer, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (buffer.get(i) >= '0' && buffer.get(i) <= '9') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Дробная часть отделяется точкой или запятой. Обычная запись вида 4.75 считается без строки:
+    // мантисса до 15 цифр точна в double, и одно деление на степень десяти округляет так же,
+    // как Double.parseDouble. Остальное (показатель, знак) - через parseDouble. NaN - не число
+    private static double parseGrade(ByteBuffer buffer, int start, int end) {
+        long mantissa = 0;
+        int digits = 0;
+        int fraction = -1;
+        for (int i = start; i < end; i++) {
+            byte b = buffer.get(i);
+            if (b >= '0' && b <= '9') {
+                mantissa = mantissa * 10 + (b - '0');
+                digits++;
+            } else if ((b == '.' || b == ',') && fraction < 0) {
+                fraction = i;
+            } else {
+                return parseGradeSlow(buffer, start, end);
+            }
+        }
+        if (digits == 0 || digits > 15) {
+            return digits == 0 ? Double.NaN : parseGradeSlow(buffer, start, end);
+        }
+        return fraction < 0 ? mantissa : mantissa / POWERS_OF_TEN[end - fraction - 1];
+    }
+
+    private static double parseGradeSlow(ByteBuffer buffer, int start, int end) {
+        String text = text(buffer, start, end).replace(',', '.');
+        for (int i = 0; i < text.length(); i++) {
+            // parseDouble понимает еще "NaN", "Infinity", 0x1p3 и суффиксы d/f - оценкой это не считается
+            if ("0123456789.eE+-".indexOf(text.charAt(i)) < 0) {
+                return Double.NaN;
+            }
+        }
+        try {
+            return Double.parseDouble(text);
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+
+    // Значение поля: кавычки по краям снимаются, "" внутри - одна кавычка
+    private static String text(ByteBuffer buffer, int start, int end) {
+        boolean quoted = end - start >= 2 && buffer.get(start) == '"';
+        if (quoted) {
+            start++;
+            end--;
+        }
+        byte[] bytes = new byte[end - start];
+        buffer.get(start, bytes);
+        String value = new String(bytes, StandardCharsets.UTF_8);
+        return quoted ? value.replace("\"\"", "\"").trim() : value;
+    }
+}
+
+// Замер поиска студентов по части имени: java StudentSearchBenchmark [студентов]
+// (на 10 млн студентов нужно около 4 ГБ кучи: java -Xmx4g StudentSearchBenchmark 10000000)
+class StudentSearchBenchmark {
+    public static void main(String[] args) {
+        testStudentNameSearch(args.length > 0 ? Integer.parseInt(args[0]) : 1000000);
+    }
+
+    // Поиск студента по части имени: подстрочный индекс против прежнего перебора с toLowerCase
+    private static void testStudentNameSearch(int studentCount) {
+        System.out.println("=== ПОИСК СТУДЕНТОВ ПО ЧАСТИ ИМЕНИ ===");
+        System.out.println("Количество студентов: " + studentCount);
+        System.out.println("--------------------------------------------------");
+
+        String consonants = "бвгдзклмнпрстфхцчшщ";
+        String vowels = "аеиоуыя";
+        String[] endings = {"ов", "ова", "ев", "ин", "ина", "ский", "ская", "енко", "ук"};
+        Random random = new Random(42);
+        StudentStore store = new StudentStore();
+        String[] lastNames = new String[studentCount];
+        long startTime = System.nanoTime();
+        for (int i = 0; i < studentCount; i++) {
+            StringBuilder first = new StringBuilder();
+            StringBuilder last = new StringBuilder();
+            for (int k = 0, n = 2 + random.nextInt(2); k < n; k++) {
+                first.append(consonants.charAt(random.nextInt(consonants.length())))
+                        .append(vowels.charAt(random.nextInt(vowels.length())));
+            }
+            for (int k = 0, n = 2 + random.nextInt(2); k < n; k++) {
+                last.append(consonants.charAt(random.nextInt(consonants.length())))
+                        .append(vowels.charAt(random.nextInt(vowels.length())));
+            }
+            last.append(endings[random.nextInt(endings.length)]);
+            first.setCharAt(0, Character.toUpperCase(first.charAt(0)));
+            last.setCharAt(0, Character.toUpperCase(last.charAt(0)));
+            lastNames[i] = last.toString();
+            store.add(new Student(i, first.toString(), lastNames[i], 2 + random.nextInt(31) / 10.0));
+        }
+        printRate("Заполнение с индексом", System.nanoTime() - startTime, studentCount);
+
+        // Запросы - подстроки фамилий длиной 4-6 символов в случайном регистре
+        int queries = 2000;
+        String[] queryText = new String[queries];
+        for (int q = 0; q < queries; q++) {
+            String name = lastNames[random.nextInt(studentCount)];
+            int length = Math.min(name.length(), 4 + random.nextInt(3));
+            int from = random.nextInt(name.length() - length + 1);
+            String part = name.substring(from, from + length);
+            queryText[q] = random.nextBoolean() ? part.toUpperCase() : part;
+        }
+        for (int q = 0; q < 1000; q++) { // прогрев JIT
+            store.findByName(queryText[q % queries], 20);
+        }
+        for (int limit : new int[]{20, Integer.MAX_VALUE}) {
+            long[] latencies = new long[queries];
+            long found = 0;
+            for (int q = 0; q < queries; q++) {
+                long start = System.nanoTime();
+                found += store.findByName(queryText[q], limit).size();
+                latencies[q] = System.nanoTime() - start;
+            }
+            Arrays.sort(latencies);
+            System.out.printf("Индекс, %s: p50 %.3f мс, p99 %.3f мс, max %.3f мс, в среднем найдено %.1f%n",
+                    limit == 20 ? "первые 20" : "все", latencies[queries / 2] / 1e6,
+                    latencies[queries * 99 / 100] / 1e6, latencies[queries - 1] / 1e6, (double) found / queries);
+        }
+
+        // Прежний поиск: два toLowerCase на студента и contains
+        int scans = 20;
+        long scanTime = 0;
+        for (int q = 0; q < scans; q++) {
+            String name = queryText[q].toLowerCase();
+            long start = System.nanoTime();
+            store.students().stream()
+                    .filter(s -> s.getFirstName().toLowerCase().contains(name) ||
+                            s.getLastName().toLowerCase().contains(name))
+                    .toList();
+            scanTime += System.nanoTime() - start;
+        }
+        System.out.printf("Перебор с toLowerCase: в среднем %.1f мс на запрос%n", scanTime / 1e6 / scans);
+        System.out.println();
+    }
+
+    private static void printRate(String name, long nanos, int count) {
+        System.out.printf("%-30s %-15d %-15d%n", name, nanos / 1000000, count * 1000000000L / Math.max(1, nanos));
+    }
+}
+
 public class StudentManagementSystem {
-    private List<Student> students;
+    private static final int NAME_RESULTS = 50;
+
+    private StudentStore students;
     private Scanner scanner;
 
     public StudentManagementSystem() {
-        students = new ArrayList<>();
+        this(new StudentStore());
+    }
+
+    public StudentManagementSystem(StudentStore students) {
+        this.students = students;
         scanner = new Scanner(System.in);
     }
 
@@ -62,7 +3267,20 @@ public class StudentManagementSystem {
             System.out.println("4. Показать всех студентов");
             System.out.println("5. Сортировать по фамилии");
             System.out.println("6. Найти студентов с оценкой выше заданной");
-            System.out.println("7. Выйти");
+            System.out.println("7. Найти студентов с оценкой в диапазоне");
+            System.out.println("8. Изменить оценку студента");
+            System.out.println("9. Сортировать по нескольким ключам");
+            System.out.println("10. Загрузить студентов из CSV");
+            System.out.println("11. Сохранить снимок");
+            System.out.println("12. Загрузить снимок");
+            System.out.println("13. Лучшие студенты");
+            System.out.println("14. Худшие студенты");
+            System.out.println("15. Медиана и перцентили оценок");
+            System.out.println("16. Гистограмма оценок");
+            System.out.println("17. Статистика оценок");
+            System.out.println("18. Статистика по группам");
+            System.out.println("19. Пересчитать статистику");
+            System.out.println("20. Выйти");
             System.out.print("Выберите действие: ");
 
             int choice = scanner.nextInt();
@@ -75,7 +3293,20 @@ public class StudentManagementSystem {
                 case 4 -> displayAllStudents();
                 case 5 -> sortStudents();
                 case 6 -> findStudentsByGrade();
-                case 7 -> {
+                case 7 -> findStudentsByGradeRange();
+                case 8 -> changeGrade();
+                case 9 -> sortStudentsByKeys();
+                case 10 -> loadFromCsv();
+                case 11 -> exportSnapshot();
+                case 12 -> importSnapshot();
+                case 13 -> showTopStudents();
+                case 14 -> showBottomStudents();
+                case 15 -> showPercentiles();
+                case 16 -> showHistogram();
+                case 17 -> showStatistics();
+                case 18 -> showGroupStatistics();
+                case 19 -> recomputeStatistics();
+                case 20 -> {
                     System.out.println("Выход из системы...");
                     return;
                 }
@@ -99,16 +3330,24 @@ public class StudentManagementSystem {
         double grade = scanner.nextDouble();
 
         Student student = new Student(id, firstName, lastName, grade);
-        students.add(student);
-        System.out.println("Студент добавлен!");
+        try {
+            if (students.add(student)) {
+                System.out.println("Студент добавлен!");
+            } else {
+                System.out.println("Студент с ID " + id + " уже есть!");
+            }
+        } catch (IllegalArgumentException e) {
+            System.out.println("Ошибка: " + e.getMessage());
+        } catch (UncheckedIOException e) {
+            System.out.println("Ошибка записи: " + e.getCause().getMessage());
+        }
     }
 
     private void removeStudent() {
         System.out.print("Введите ID студента для удаления: ");
         int id = scanner.nextInt();
 
-        boolean removed = students.removeIf(s -> s.getId() == id);
-        if (removed) {
+        if (students.remove(id)) {
             System.out.println("Студент удален!");
         } else {
             System.out.println("Студент не найден!");
@@ -117,12 +3356,9 @@ public class StudentManagementSystem {
 
     private void findStudentByName() {
         System.out.print("Введите имя для поиска: ");
-        String name = scanner.nextLine().toLowerCase();
+        String name = scanner.nextLine();
 
-        List<Student> found = students.stream()
-                .filter(s -> s.getFirstName().toLowerCase().contains(name) ||
-                        s.getLastName().toLowerCase().contains(name))
-                .toList();
+        List<Student> found = students.findByName(name, NAME_RESULTS);
 
         if (found.isEmpty()) {
             System.out.println("Студенты не найдены!");
@@ -130,6 +3366,9 @@ public class StudentManagementSystem {
             System.out.println("\nНайденные студенты:");
             System.out.println("ID    Фамилия         Имя             Оценка");
             found.forEach(System.out::println);
+            if (found.size() == NAME_RESULTS) {
+                System.out.println("(показаны первые " + NAME_RESULTS + ", уточните запрос)");
+            }
         }
     }
 
@@ -141,23 +3380,44 @@ public class StudentManagementSystem {
 
         System.out.println("\nСписок всех студентов:");
         System.out.println("ID    Фамилия         Имя             Оценка");
-        students.forEach(System.out::println);
+        students.students().forEach(System.out::println);
     }
 
     private void sortStudents() {
-        Collections.sort(students);
-        System.out.println("Студенты отсортированы по фамилии!");
-        displayAllStudents();
+        if (students.isEmpty()) {
+            System.out.println("Список студентов пуст!");
+            return;
+        }
+
+        System.out.println("\nСтуденты по фамилии:");
+        System.out.println("ID    Фамилия         Имя             Оценка");
+        students.sorted(StudentOrder.BY_NAME).forEach(System.out::println);
+    }
+
+    private void sortStudentsByKeys() {
+        System.out.print("Ключи через запятую (фамилия, имя, id, оценка; '-' - по убыванию): ");
+        StudentOrder order;
+        try {
+            order = StudentOrder.parse(scanner.nextLine());
+        } catch (IllegalArgumentException e) {
+            System.out.println("Ошибка: " + e.getMessage());
+            return;
+        }
+        if (students.isEmpty()) {
+            System.out.println("Список студентов пуст!");
+            return;
+        }
+
+        System.out.println("\nСтуденты по ключам " + order + ":");
+        System.out.println("ID    Фамилия         Имя             Оценка");
+        students.sorted(order).forEach(System.out::println);
     }
 
     private void findStudentsByGrade() {
         System.out.print("Введите минимальную оценку: ");
         double minGrade = scanner.nextDouble();
 
-        List<Student> found = students.stream()
-                .filter(s -> s.getGrade() > minGrade)
-                .sorted(Comparator.comparingDouble(Student::getGrade).reversed())
-                .toList();
+        List<Student> found = students.findByGradeAbove(minGrade);
 
         if (found.isEmpty()) {
             System.out.println("Студенты не найдены!");
@@ -168,8 +3428,263 @@ public class StudentManagementSystem {
         }
     }
 
-    public static void main(String[] args) {
-        StudentManagementSystem system = new StudentManagementSystem();
+    private void findStudentsByGradeRange() {
+        System.out.print("Введите минимальную оценку: ");
+        double from = scanner.nextDouble();
+
+        System.out.print("Введите максимальную оценку: ");
+        double to = scanner.nextDouble();
+
+        List<Student> found = students.findByGrade(from, true, to, true);
+
+        if (found.isEmpty()) {
+            System.out.println("Студенты не найдены!");
+        } else {
+            System.out.println("\nСтуденты с оценкой от " + from + " до " + to + ":");
+            System.out.println("ID    Фамилия         Имя             Оценка");
+            found.forEach(System.out::println);
+        }
+    }
+
+    private void changeGrade() {
+        System.out.print("Введите ID студента: ");
+        int id = scanner.nextInt();
+
+        System.out.print("Введите новую оценку: ");
+        double grade = scanner.nextDouble();
+
+        try {
+            if (students.setGrade(id, grade)) {
+                System.out.println("Оценка изменена!");
+            } else {
+                System.out.println("Студент не найден!");
+            }
+        } catch (IllegalArgumentException e) {
+            System.out.println("Ошибка: " + e.getMessage());
+        } catch (UncheckedIOException e) {
+            System.out.println("Ошибка записи: " + e.getCause().getMessage());
+        }
+    }
+
+    private void showTopStudents() {
+        System.out.print("Сколько студентов показать: ");
+        int k = scanner.nextInt();
+
+        try {
+            List<Student> found = students.top(k);
+            if (found.isEmpty()) {
+                System.out.println("Студенты не найдены!");
+            } else {
+                System.out.println("\nЛучшие " + found.size() + " по оценке:");
+                System.out.println("ID    Фамилия         Имя             Оценка");
+                found.forEach(System.out::println);
+            }
+        } catch (IllegalArgumentException e) {
+            System.out.println("Ошибка: " + e.getMessage());
+        }
+    }
+
+    private void showBottomStudents() {
+        System.out.print("Сколько студентов показать: ");
+        int k = scanner.nextInt();
+
+        try {
+            List<Student> found = students.bottom(k);
+            if (found.isEmpty()) {
+                System.out.println("Студенты не найдены!");
+            } else {
+                System.out.println("\nХудшие " + found.size() + " по оценке:");
+                System.out.println("ID    Фамилия         Имя             Оценка");
+                found.forEach(System.out::println);
+            }
+        } catch (IllegalArgumentException e) {
+            System.out.println("Ошибка: " + e.getMessage());
+        }
+    }
+
+    private void showPercentiles() {
+        if (students.isEmpty()) {
+            System.out.println("Список студентов пуст!");
+            return;
+        }
+
+        System.out.println("\nОценки " + students.size() + " студентов:");
+        System.out.printf("Минимум: %.2f%n", students.percentile(0));
+        for (int percent : new int[]{10, 25, 50, 75, 90, 99}) {
+            System.out.printf("%s: %.2f%n", percent == 50 ? "Медиана" : percent + "-й перцентиль",
+                    students.percentile(percent));
+        }
+        System.out.printf("Максимум: %.2f%n", students.percentile(100));
+    }
+
+    private void showHistogram() {
+        if (students.isEmpty()) {
+            System.out.println("Список студентов пуст!");
+            return;
+        }
+
+        System.out.print("Число интервалов: ");
+        int buckets = scanner.nextInt();
+
+        double min = students.percentile(0);
+        double max = students.percentile(100);
+        if (min == max) {
+            System.out.printf("У всех %d студентов оценка %.2f%n", students.size(), min);
+            return;
+        }
+        int[] counts;
+        try {
+            counts = students.histogram(min, max, buckets);
+        } catch (IllegalArgumentException e) {
+            System.out.println("Ошибка: " + e.getMessage());
+            return;
+        }
+        int largest = Arrays.stream(counts).max().orElse(0);
+        System.out.println("\nРаспределение оценок:");
+        for (int i = 0; i < buckets; i++) {
+            double from = min + (max - min) * i / buckets;
+            double to = min + (max - min) * (i + 1) / buckets;
+            int bar = largest == 0 ? 0 : (int) Math.round(50.0 * counts[i] / largest);
+            System.out.printf("%7.2f - %-7.2f %s %d%n", from, to, "#".repeat(bar), counts[i]);
+        }
+    }
+
+    private void showStatistics() {
+        if (students.isEmpty()) {
+            System.out.println("Список студентов пуст!");
+            return;
+        }
+
+        System.out.println("\nОценки: " + students.statistics());
+    }
+
+    private void showGroupStatistics() {
+        System.out.print("Группировать по (1 - первая буква фамилии, 2 - имя, 3 - целая часть оценки): ");
+        int choice = scanner.nextInt();
+        scanner.nextLine();
+
+        Function<Student, String> key = switch (choice) {
+            case 1 -> student -> student.getLastName().isEmpty()
+                    ? "" : student.getLastName().substring(0, 1).toUpperCase(Locale.ROOT);
+            case 2 -> Student::getFirstName;
+            case 3 -> student -> String.valueOf((long) Math.floor(student.getGrade()));
+            default -> null;
+        };
+        if (key == null) {
+            System.out.println("Неверный выбор!");
+            return;
+        }
+        if (students.isEmpty()) {
+            System.out.println("Список студентов пуст!");
+            return;
+        }
+
+        Map<String, GradeStatistics> groups = new TreeMap<>(choice == 3
+                ? Comparator.comparingLong(Long::parseLong) : StudentOrder.COLLATOR::compare);
+        groups.putAll(students.statisticsBy(key, ForkJoinPool.commonPool()));
+        System.out.println("\nГрупп: " + groups.size());
+        groups.forEach((group, statistics) -> System.out.printf("%-15s %s%n", group, statistics));
+    }
+
+    private void recomputeStatistics() {
+        GradeStatistics running = students.statistics();
+        long start = System.nanoTime();
+        GradeStatistics exact = students.recomputeStatistics(ForkJoinPool.commonPool());
+        long millis = (System.nanoTime() - start) / 1000000;
+
+        System.out.println("Пересчитано за " + millis + " мс: " + exact);
+        if (running.getCount() != exact.getCount()) {
+            System.out.println("Поддерживаемая сводка расходилась в числе студентов: " + running.getCount());
+        } else if (exact.getCount() > 0) {
+            System.out.printf("Расхождение поддерживаемой сводки: среднее %.3g, дисперсия %.3g%n",
+                    running.getMean() - exact.getMean(), running.getVariance() - exact.getVariance());
+        }
+    }
+
+    private void loadFromCsv() {
+        System.out.print("Введите имя CSV-файла: ");
+        String filename = scanner.nextLine();
+
+        try {
+            long start = System.nanoTime();
+            StudentLoadReport report = new StudentCsvLoader(ForkJoinPool.commonPool())
+                    .load(Path.of(filename), students);
+            long millis = (System.nanoTime() - start) / 1000000;
+            System.out.println("Загружено " + report.getLoaded() + " студентов из файла: " + filename
+                    + " за " + millis + " мс");
+            if (report.getRejected() > 0) {
+                System.out.println("Отклонено строк: " + report.getRejected());
+                for (StudentLoadReport.Rejection rejection : report.getSample()) {
+                    System.out.println("  " + rejection);
+                }
+                if (report.getRejected() > report.getSample().size()) {
+                    System.out.println("  ...");
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Ошибка загрузки: " + e.getMessage());
+        } catch (UncheckedIOException e) {
+            System.out.println("Ошибка записи: " + e.getCause().getMessage());
+        }
+    }
+
+    private void exportSnapshot() {
+        System.out.print("Введите имя файла снимка: ");
+        String filename = scanner.nextLine();
+
+        try {
+            students.exportSnapshot(Path.of(filename));
+            System.out.println("Снимок записан: " + filename + " (" + students.size() + " студентов)");
+        } catch (IOException e) {
+            System.out.println("Ошибка записи снимка: " + e.getMessage());
+        }
+    }
+
+    private void importSnapshot() {
+        System.out.print("Введите имя файла снимка: ");
+        loadSnapshot(Path.of(scanner.nextLine()));
+    }
+
+    private void loadSnapshot(Path path) {
+        try {
+            long start = System.nanoTime();
+            int loaded = students.importSnapshot(path);
+            long millis = (System.nanoTime() - start) / 1000000;
+            System.out.println("Загружено " + loaded + " студентов из снимка: " + path + " за " + millis + " мс");
+        } catch (IOException e) {
+            System.out.println("Ошибка чтения снимка: " + e.getMessage());
+        } catch (UncheckedIOException e) {
+            System.out.println("Ошибка записи: " + e.getCause().getMessage());
+        }
+    }
+
+    // Аргументы: [снимок | каталог хранилища [интервал сброса, мс]]. Существующий файл загружается
+    // как снимок; иначе аргумент - каталог, с которым хранилище работает напрямую
+    public static void main(String[] args) throws IOException {
+        StudentStore store;
+        Path snapshot = null;
+        if (args.length > 0 && !Files.isRegularFile(Path.of(args[0]))) {
+            long flushMillis = args.length > 1 ? Long.parseLong(args[1]) : 1000;
+            store = StudentStore.open(Path.of(args[0]), flushMillis);
+            System.out.println("Хранилище " + args[0] + ": " + store.size() + " студентов");
+        } else {
+            store = new StudentStore();
+            if (args.length > 0) {
+                snapshot = Path.of(args[0]);
+            }
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                store.close();
+            } catch (IOException e) {
+                System.err.println("Ошибка закрытия хранилища: " + e.getMessage());
+            }
+        }));
+
+        StudentManagementSystem system = new StudentManagementSystem(store);
+        if (snapshot != null) {
+            system.loadSnapshot(snapshot);
+        }
         system.run();
     }
 }